@@ -0,0 +1,147 @@
+/**
+ * Assignment of pad chunks to parties.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.Serializable;
+
+/**
+ * Tells which party owns which chunks of a pad, and in which order a party uses its chunks. The
+ * pad is cut into blocks of consecutive chunks, and the blocks are dealt to the parties in turn:
+ * block 0 to the first party, block 1 to the second, and so on. A block size of 1 is the classic
+ * round robin schedule, where every party owns every Nth chunk. Larger blocks keep the chunks of a
+ * message next to each other, so the key material of a message is read sequentially. That is
+ * the only gain: blocks are dealt statically, like single chunks are, so every party still owns
+ * 1/N of the pad and the share of a party that sends less is stranded either way. The
+ * allocation is a property of the pad and must be the same on all devices. Messages name the
+ * chunks they use, so receivers need no knowledge of the allocation for decryption.
+ */
+public final class ChunkAllocation implements Serializable {
+
+  /**
+   * Round robin allocation, the schedule of all pads created by earlier library versions.
+   */
+  public static final ChunkAllocation ROUND_ROBIN = new ChunkAllocation(1);
+
+  // Amount of consecutive chunks owned by the same party.
+  private final int blockSize;
+
+  private ChunkAllocation(int blockSize) {
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Creates an allocation that deals blocks of consecutive chunks to the parties.
+   *
+   * @param blockSize as the amount of consecutive chunks owned by the same party.
+   * @return the chunk allocation.
+   */
+  public static ChunkAllocation withBlockSize(int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be at least 1.");
+    }
+    return blockSize == 1 ? ROUND_ROBIN : new ChunkAllocation(blockSize);
+  }
+
+  /**
+   * Look up the amount of consecutive chunks owned by the same party.
+   *
+   * @return the block size.
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Look up the party that owns a chunk.
+   *
+   * @param chunkId     as the chunk to look up.
+   * @param partyAmount as the amount of parties of the pad.
+   * @return the index of the owning party.
+   */
+  public int getOwnerIndex(int chunkId, int partyAmount) {
+    return (chunkId / blockSize) % partyAmount;
+  }
+
+  /**
+   * Look up the position of a chunk among all chunks of its owner, in order of use.
+   *
+   * @param chunkId     as the chunk to look up.
+   * @param partyAmount as the amount of parties of the pad.
+   * @return the amount of chunks its owner uses before the provided chunk.
+   */
+  public int getSequenceIndex(int chunkId, int partyAmount) {
+    return chunkId / blockSize / partyAmount * blockSize + chunkId % blockSize;
+  }
+
+  /**
+   * Counterpart of getSequenceIndex. Looks up the chunk a party uses at a position of its sequence.
+   *
+   * @param partyIndex    as the index of the party.
+   * @param sequenceIndex as the position in the sequence of chunks of the party.
+   * @param partyAmount   as the amount of parties of the pad.
+   * @return the chunk id.
+   */
+  public int getChunkId(int partyIndex, int sequenceIndex, int partyAmount) {
+    int round = sequenceIndex / blockSize;
+    return (round * partyAmount + partyIndex) * blockSize + sequenceIndex % blockSize;
+  }
+
+  /**
+   * Look up the first chunk of a party.
+   *
+   * @param partyIndex  as the index of the party.
+   * @param partyAmount as the amount of parties of the pad.
+   * @return the chunk id the party uses first.
+   */
+  public int getFirstChunk(int partyIndex, int partyAmount) {
+    return getChunkId(partyIndex, 0, partyAmount);
+  }
+
+  /**
+   * Look up the chunk the owner of a chunk uses right after it.
+   *
+   * @param chunkId     as the chunk used last.
+   * @param partyAmount as the amount of parties of the pad.
+   * @return the chunk id to use next.
+   */
+  public int getNextChunk(int chunkId, int partyAmount) {
+    if ((chunkId + 1) % blockSize != 0) {
+      return chunkId + 1;
+    }
+    return chunkId + 1 + (partyAmount - 1) * blockSize;
+  }
+
+  /**
+   * Look up how many chunks of a pad a party owns.
+   *
+   * @param partyIndex  as the index of the party.
+   * @param partyAmount as the amount of parties of the pad.
+   * @param chunkAmount as the amount of chunks of the pad.
+   * @return the amount of chunks owned by the party.
+   */
+  public int getOwnedChunkAmount(int partyIndex, int partyAmount, int chunkAmount) {
+    int roundSize = partyAmount * blockSize;
+    int remainder = chunkAmount % roundSize - partyIndex * blockSize;
+    return chunkAmount / roundSize * blockSize + Math.max(0, Math.min(blockSize, remainder));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    return blockSize == ((ChunkAllocation) o).blockSize;
+  }
+
+  @Override
+  public int hashCode() {
+    return blockSize;
+  }
+}
@@ -0,0 +1,23 @@
+/**
+ * Custom exception to indicate chunks were used for more than one message.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * This exception is thrown if an encrypted message is added to a conversation, but some of its
+ * chunks were already used by a different message. This either indicates a forged message, or a
+ * party that used key material twice.
+ */
+public class ChunkCollisionException extends CryptorException {
+  /**
+   * Constructor for custom exception.
+   *
+   * @param cause as descritive text inticating the reason for exception.
+   */
+  public ChunkCollisionException(String cause) {
+    super(cause);
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Bookkeeping of all chunk ids used by the messages of a conversation.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact record of the chunk ids covered by the messages of a conversation. One bit per chunk of
+ * the pad tells whether the chunk was used, and every held message is indexed by its first chunk.
+ * This suffices to classify an incoming message in O(chops) as new, as an exact duplicate of a
+ * held message, or as a collision with held messages, which indicates forged messages or a party
+ * that reused key material.
+ */
+class ChunkLedger {
+
+  /**
+   * Possible outcomes of checking an encrypted message against the ledger.
+   */
+  enum Status {
+    NEW, DUPLICATE
+  }
+
+  // Chunk ids used by any held message.
+  private final BitSet usedChunks = new BitSet();
+
+  // Held messages by the chunk id they start at.
+  private final Map<Integer, EncryptedMessage> messagesByStart = new HashMap<>();
+
+  /**
+   * Classifies a message by the chunk ids it uses.
+   *
+   * @param encMessage as the message to classify.
+   * @return NEW if none of its chunks were used before, DUPLICATE if it equals a held message in
+   *     chunks, chops and codec.
+   * @throws ChunkCollisionException if the message uses chunks of held messages in any other way.
+   */
+  Status check(EncryptedMessage encMessage) throws ChunkCollisionException {
+
+    int[] chunksUsed = encMessage.getChunksUsed();
+    int alreadyUsed = 0;
+    for (int chunkId : chunksUsed) {
+      if (usedChunks.get(chunkId)) {
+        alreadyUsed++;
+      }
+    }
+
+    if (alreadyUsed == 0) {
+      return Status.NEW;
+    }
+    if (alreadyUsed == chunksUsed.length
+        && isCopyOf(encMessage, messagesByStart.get(chunksUsed[0]))) {
+      return Status.DUPLICATE;
+    }
+    throw new ChunkCollisionException("Message starting at chunk " + chunksUsed[0]
+        + " reuses chunks of a different message in the conversation.");
+  }
+
+  /**
+   * Marks all chunks of a message as used.
+   *
+   * @param encMessage as the message that was added to the conversation.
+   */
+  void register(EncryptedMessage encMessage) {
+    int[] chunksUsed = encMessage.getChunksUsed();
+    for (int chunkId : chunksUsed) {
+      usedChunks.set(chunkId);
+    }
+    messagesByStart.put(chunksUsed[0], encMessage);
+  }
+
+  /**
+   * Helper method to tell whether a message is an exact copy of a held message. Chunk ids are
+   * compared in order, so shorter or longer messages with the same start are no copies, and so are
+   * messages that reuse the chunk ids of a held message with different chops.
+   *
+   * @param encMessage as the message to compare.
+   * @param held       as the held message starting at the same chunk, may be null.
+   * @return whether both messages carry the same chunks, chops and codec.
+   */
+  private static boolean isCopyOf(EncryptedMessage encMessage, EncryptedMessage held) {
+    if (held == null) {
+      return false;
+    }
+    int[] chunksUsed = encMessage.getChunksUsed();
+    if (!Arrays.equals(chunksUsed, held.getChunksUsed())
+        || encMessage.getPayloadCodec() != held.getPayloadCodec()) {
+      return false;
+    }
+    for (int chunkId : chunksUsed) {
+      if (!Arrays.equals(encMessage.getChopReference(chunkId), held.getChopReference(chunkId))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Estimates the heap bytes retained by the ledger.
+   *
+   * @return estimated size of the ledger, its bit set and its index, not counting the messages.
+   */
+  long estimateHeapBytes() {
+    return MemoryFootprint.objectBytes(2 * MemoryFootprint.REFERENCE)
+        + estimateHeapBytes(usedChunks) + estimateHeapBytes(messagesByStart);
+  }
+
+  private static long estimateHeapBytes(BitSet bits) {
+    return MemoryFootprint.objectBytes(MemoryFootprint.REFERENCE + 4 + 1)
+        + MemoryFootprint.arrayBytes(bits.size() / 64, 8);
+  }
+
+  private static long estimateHeapBytes(Map<Integer, EncryptedMessage> index) {
+
+    // Hash map with its table, one node and one boxed key per entry.
+    long nodeBytes = MemoryFootprint.objectBytes(4 + 3 * MemoryFootprint.REFERENCE)
+        + MemoryFootprint.objectBytes(4);
+    long tableLength = index.isEmpty() ? 0 : Integer.highestOneBit(index.size() * 4 / 3 + 1) * 2L;
+    return MemoryFootprint.objectBytes(3 * MemoryFootprint.REFERENCE + 4 * 4)
+        + MemoryFootprint.arrayBytes(tableLength, MemoryFootprint.REFERENCE)
+        + index.size() * nodeBytes;
+  }
+}
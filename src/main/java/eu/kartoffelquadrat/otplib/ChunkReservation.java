@@ -0,0 +1,43 @@
+/**
+ * Interface for mechanisms that reserve chunks of a party before they are used for encryption.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+
+/**
+ * A chunk reservation guarantees that chunks used by a conversation are never handed out again,
+ * neither after a restart nor to another process acting as the same party. Conversations consult
+ * the reservation for every message they encrypt, before the message is returned.
+ */
+public interface ChunkReservation {
+
+  /**
+   * Reserves the chunks of a message encrypted by the party. If the chunks cannot be granted, the
+   * reservation instead names another start chunk, from where a message of the same length is
+   * reserved. The caller must then encrypt the message again at that position.
+   *
+   * @param startChunk    as the first chunk of the encrypted message.
+   * @param followUpChunk as the first chunk of the party behind the message.
+   * @return the provided start chunk if granted, otherwise the start chunk to use instead.
+   * @throws IOException if the reservation could not be persisted.
+   */
+  int reserve(int startChunk, int followUpChunk) throws IOException;
+
+  /**
+   * Getter for the pad the reservation applies to.
+   *
+   * @return the hash of the pad.
+   */
+  String getPadHash();
+
+  /**
+   * Getter for the party the reservation applies to.
+   *
+   * @return the name@machine string of the party.
+   */
+  String getParty();
+}
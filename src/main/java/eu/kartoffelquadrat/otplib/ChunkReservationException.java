@@ -0,0 +1,23 @@
+/**
+ * Custom exception to indicate chunks could not be reserved before use.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * This exception is thrown if a message was encrypted, but the reservation of its chunks could not
+ * be persisted. The encrypted message must then not be sent, since a restarted conversation might
+ * use the same chunks again.
+ */
+public class ChunkReservationException extends CryptorException {
+  /**
+   * Constructor for custom exception.
+   *
+   * @param cause as descritive text inticating the reason for exception.
+   */
+  public ChunkReservationException(String cause) {
+    super(cause);
+  }
+}
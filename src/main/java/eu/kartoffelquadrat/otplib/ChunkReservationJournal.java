@@ -0,0 +1,267 @@
+/**
+ * Write-ahead journal of the chunks a party reserved for encryption.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * Persists how far a party reserved its chunks, before messages encrypted with them leave the
+ * conversation. A conversation restored after a crash continues behind the reserved chunks, even if
+ * the history of the last messages was never saved. Reservations are made in batches, so the file
+ * is only forced to disk once per batch rather than once per message. Chunks reserved but not used
+ * before a restart are skipped for good.
+ *
+ * <p>The journal is a small memory-mapped file. A header binds it to a pad and party, followed by a
+ * ring of checksummed records. A record torn by a crash fails its checksum and recovery falls back
+ * to the previous one, which is safe because a reservation only takes effect once it was forced.
+ * One journal must only be used by a single conversation at a time.
+ */
+public class ChunkReservationJournal implements ChunkReservation, MemoryAccountable, Closeable {
+
+  // Magic number at the start of every journal file, "OTPJ" in ASCII.
+  private static final int JOURNAL_MAGIC = 0x4F54504A;
+
+  private static final int JOURNAL_VERSION = 1;
+
+  // Bytes reserved for magic, version, pad hash and party name.
+  private static final int HEADER_SIZE = 256;
+
+  // Every record holds a serial number, the reserved chunk bound and a checksum over both.
+  private static final int RECORD_SIZE = 16;
+
+  private static final int RECORD_AMOUNT = 64;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final String padHash;
+  private final String party;
+  private final int partyIndex;
+  private final int partyAmount;
+  private final ChunkAllocation allocation;
+  private final int batchSize;
+
+  // First chunk id of the party that is not reserved yet.
+  private int reservedChunkBound;
+
+  // Reserved chunk bound found on opening. Chunks below may have been used before a restart.
+  private int recoveredChunkBound;
+
+  private long serial;
+
+  // Amount of records forced to disk since the journal was opened.
+  private int persistedReservations;
+
+  /**
+   * Opens a reservation journal or creates it if the file does not exist yet.
+   *
+   * @param journalFile as the location of the journal.
+   * @param pad         as the pad whose chunks are reserved.
+   * @param party       as the name@machine string of the party reserving chunks.
+   * @param batchSize   as the amount of chunks reserved beyond the need of the current message.
+   * @return the opened journal, continuing behind the last reservation found in the file.
+   * @throws IOException           if the journal cannot be accessed or belongs to another pad or
+   *                               party.
+   * @throws InvalidPartyException if the party is not associated with the pad.
+   */
+  public static ChunkReservationJournal open(Path journalFile, OneTimePad pad, String party,
+                                             int batchSize)
+      throws IOException, InvalidPartyException {
+    if (batchSize < 0) {
+      throw new IllegalArgumentException("Batch size must not be negative.");
+    }
+    int partyIndex = pad.getPartyIndex(party);
+    FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      return new ChunkReservationJournal(channel, pad, party, partyIndex, batchSize);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private ChunkReservationJournal(FileChannel channel, OneTimePad pad, String party,
+                                  int partyIndex, int batchSize) throws IOException {
+    this.channel = channel;
+    this.padHash = pad.getHash();
+    this.party = party;
+    this.partyIndex = partyIndex;
+    this.partyAmount = pad.getPartyAmount();
+    this.allocation = pad.getChunkAllocation();
+    this.batchSize = batchSize;
+
+    // A file without magic never got a record forced, since the header is forced first.
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        HEADER_SIZE + (long) RECORD_SIZE * RECORD_AMOUNT);
+    if (buffer.getInt(0) == 0) {
+      writeHeader();
+    } else {
+      verifyHeader();
+    }
+    reservedChunkBound = allocation.getFirstChunk(partyIndex, partyAmount);
+    recover();
+    recoveredChunkBound = reservedChunkBound;
+  }
+
+  /**
+   * Getter for the first chunk id of the party that has not been reserved.
+   *
+   * @return the reserved chunk bound.
+   */
+  public synchronized int getReservedChunkBound() {
+    return reservedChunkBound;
+  }
+
+  @Override
+  public String getPadHash() {
+    return padHash;
+  }
+
+  @Override
+  public String getParty() {
+    return party;
+  }
+
+  /**
+   * Tells how often reservations were forced to disk since the journal was opened.
+   *
+   * @return the amount of persisted reservations.
+   */
+  public synchronized int getPersistedReservations() {
+    return persistedReservations;
+  }
+
+  /**
+   * Makes sure all chunks of the party below the provided follow-up chunk are reserved. Returns
+   * immediately if a previous batch already covers them, otherwise reserves them plus another batch
+   * and forces the reservation to disk. Messages starting below the bound recovered on opening are
+   * refused, since their chunks may have been used before the restart.
+   *
+   * @param startChunk    as the first chunk of the encrypted message.
+   * @param followUpChunk as the first chunk of the party behind the message.
+   * @return the provided start chunk if granted, otherwise the recovered bound.
+   * @throws IOException if the reservation could not be persisted.
+   */
+  @Override
+  public synchronized int reserve(int startChunk, int followUpChunk) throws IOException {
+    if (startChunk < recoveredChunkBound) {
+      return recoveredChunkBound;
+    }
+    if (followUpChunk <= reservedChunkBound) {
+      return startChunk;
+    }
+    int bound = allocation.getChunkId(partyIndex,
+        allocation.getSequenceIndex(followUpChunk, partyAmount) + batchSize, partyAmount);
+    if (bound < followUpChunk) {
+      // Chunk ids beyond the integer range, only the requested chunks can be reserved.
+      bound = followUpChunk;
+    }
+    writeRecord(serial + 1, bound);
+    buffer.force();
+    serial++;
+    reservedChunkBound = bound;
+    persistedReservations++;
+    return startChunk;
+  }
+
+  /**
+   * Estimates the memory retained by this journal. The journal file is mapped into memory outside
+   * of the heap.
+   *
+   * @return the estimated footprint of the journal object and its mapping.
+   */
+  @Override
+  public MemoryFootprint getMemoryFootprint() {
+    return new MemoryFootprint(
+        Collections.singletonMap("metadata",
+            MemoryFootprint.objectBytes(6 * MemoryFootprint.REFERENCE + 7 * 4 + 8)),
+        Collections.singletonMap("mappedJournal", (long) buffer.capacity()));
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Helper method to restore the bound of the valid record with the highest serial number.
+   */
+  private void recover() {
+    for (int slot = 0; slot < RECORD_AMOUNT; slot++) {
+      int offset = HEADER_SIZE + slot * RECORD_SIZE;
+      long recordSerial = buffer.getLong(offset);
+      int recordBound = buffer.getInt(offset + 8);
+      if (recordSerial > serial && buffer.getInt(offset + 12) == checksum(recordSerial,
+          recordBound)) {
+        serial = recordSerial;
+        reservedChunkBound = Math.max(reservedChunkBound, recordBound);
+      }
+    }
+  }
+
+  private void writeRecord(long recordSerial, int bound) {
+    int offset = HEADER_SIZE + (int) (recordSerial % RECORD_AMOUNT) * RECORD_SIZE;
+    buffer.putLong(offset, recordSerial);
+    buffer.putInt(offset + 8, bound);
+    buffer.putInt(offset + 12, checksum(recordSerial, bound));
+  }
+
+  private static int checksum(long recordSerial, int bound) {
+    CRC32 crc = new CRC32();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (recordSerial >>> shift));
+    }
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      crc.update(bound >>> shift);
+    }
+    return (int) crc.getValue();
+  }
+
+  private void writeHeader() throws IOException {
+    byte[] hashBytes = padHash.getBytes(StandardCharsets.UTF_8);
+    byte[] partyBytes = party.getBytes(StandardCharsets.UTF_8);
+    if (16 + hashBytes.length + partyBytes.length > HEADER_SIZE) {
+      throw new IOException("Pad hash and party do not fit into the journal header.");
+    }
+    buffer.putInt(0, JOURNAL_MAGIC);
+    buffer.putInt(4, JOURNAL_VERSION);
+    buffer.position(8);
+    buffer.putInt(hashBytes.length);
+    buffer.put(hashBytes);
+    buffer.putInt(partyBytes.length);
+    buffer.put(partyBytes);
+    buffer.force();
+  }
+
+  private void verifyHeader() throws IOException {
+    if (buffer.getInt(0) != JOURNAL_MAGIC || buffer.getInt(4) != JOURNAL_VERSION) {
+      throw new IOException("File is not a chunk reservation journal of a supported version.");
+    }
+    buffer.position(8);
+    if (!padHash.equals(readHeaderString()) || !party.equals(readHeaderString())) {
+      throw new IOException("Chunk reservation journal belongs to another pad or party.");
+    }
+  }
+
+  private String readHeaderString() throws IOException {
+    int length = buffer.getInt();
+    if (length < 0 || length > HEADER_SIZE - buffer.position()) {
+      throw new IOException("Chunk reservation journal has an inconsistent header.");
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,22 @@
+/**
+ * Custom exception to indicate key material was wiped after use.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * This exception is thrown if a chunk was requested, but its key material has been wiped because
+ * the chunk was consumed. Messages encrypted with wiped chunks cannot be decrypted anymore.
+ */
+public class ChunkWipedException extends OutOfChunksException {
+  /**
+   * Constructor for custom exception.
+   *
+   * @param cause as descritive text inticating the reason for exception.
+   */
+  public ChunkWipedException(String cause) {
+    super(cause);
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Binary wire format for encrypted messages.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Compact alternative to the hex line serialization of encrypted messages. Instead of repeating pad
+ * hash prefix and chunk id on every line and doubling every byte into two hex characters, a single
+ * header carries the pad fingerprint, the chunk schedule and the payload codec, followed by the
+ * ciphertext chops as one contiguous body. Messages whose chunks are evenly spaced, as with round
+ * robin allocation, are written in layout version 1 (big endian):
+ *
+ * <pre>
+ * magic (1) | version (1) | codec (1) | chunk index digits (1) | pad hash (16)
+ * | start chunk (4) | hop (4) | chop size (4) | chop amount (4) | chops (chop size * amount)
+ * </pre>
+ *
+ * <p>All other messages, for instance messages crossing a block of a block allocation, are written
+ * in layout version 2, which lists every chunk id:
+ *
+ * <pre>
+ * magic (1) | version (1) | codec (1) | chunk index digits (1) | pad hash (16)
+ * | follow-up chunk (4) | chop size (4) | chop amount (4) | chunk ids (4 * amount)
+ * | chops (chop size * amount)
+ * </pre>
+ */
+final class CompactMessageFormat {
+
+  // Marks the start of a compact message.
+  private static final byte MAGIC = 'O';
+
+  // Layout versions for evenly spaced chunks and for explicitly listed chunks.
+  private static final byte EVENLY_SPACED = 1;
+  private static final byte LISTED = 2;
+
+  // Amount of bytes of the MD5 pad hash.
+  private static final int HASH_SIZE = 16;
+
+  // Chunk ids are non-negative ints, so their decimal representation has at most ten digits.
+  private static final int MAX_CHUNK_INDEX_DIGITS = 10;
+
+  // Amount of bytes preceding the ciphertext body of evenly spaced messages.
+  static final int HEADER_SIZE = 4 + HASH_SIZE + 4 * 4;
+
+  private CompactMessageFormat() {
+  }
+
+  /**
+   * Encodes an encrypted message to the compact binary format.
+   *
+   * @param message as the encrypted message to encode.
+   * @return byte array holding header and ciphertext.
+   */
+  static byte[] encode(EncryptedMessage message) {
+
+    int[] chunksUsed = message.getChunksUsed();
+    int chopSize = message.getChopSize();
+    int hop = (message.getFollowUpChunkIndex() - chunksUsed[0]) / chunksUsed.length;
+    boolean evenlySpaced = hop > 0;
+    for (int i = 0; i < chunksUsed.length && evenlySpaced; i++) {
+      evenlySpaced = chunksUsed[i] == chunksUsed[0] + i * hop;
+    }
+    evenlySpaced &= message.getFollowUpChunkIndex() == chunksUsed[0] + chunksUsed.length * hop;
+
+    // Listed messages replace start chunk and hop by the follow-up chunk, and list all chunk ids.
+    int listSize = evenlySpaced ? 0 : 4 * chunksUsed.length - 4;
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + listSize + chunksUsed.length * chopSize);
+    buffer.put(MAGIC);
+    buffer.put(evenlySpaced ? EVENLY_SPACED : LISTED);
+    buffer.put((byte) message.getPayloadCodec().ordinal());
+    buffer.put((byte) message.getChunkIndexDigits());
+    buffer.put(decodeHash(message.getOtpHash()));
+    if (evenlySpaced) {
+      buffer.putInt(chunksUsed[0]);
+      buffer.putInt(hop);
+    } else {
+      buffer.putInt(message.getFollowUpChunkIndex());
+    }
+    buffer.putInt(chopSize);
+    buffer.putInt(chunksUsed.length);
+    for (int i = 0; !evenlySpaced && i < chunksUsed.length; i++) {
+      buffer.putInt(chunksUsed[i]);
+    }
+    for (int chunkId : chunksUsed) {
+      buffer.put(message.getChopReference(chunkId));
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Restores an encrypted message from the compact binary format.
+   *
+   * @param encodedMessage as byte array holding header and ciphertext.
+   * @return the encrypted message.
+   * @throws CryptorException if the provided bytes are not a valid compact message.
+   */
+  static EncryptedMessage decode(byte[] encodedMessage) throws CryptorException {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(encodedMessage);
+      final byte magic = buffer.get();
+      final byte version = buffer.get();
+      if (magic != MAGIC || (version != EVENLY_SPACED && version != LISTED)) {
+        throw new CryptorException("Provided bytes are not a compact encrypted message.");
+      }
+      final int codecOrdinal = buffer.get();
+      final int chunkIndexDigits = buffer.get();
+      byte[] hash = new byte[HASH_SIZE];
+      buffer.get(hash);
+      final int startOrFollowUp = buffer.getInt();
+      final int hop = version == EVENLY_SPACED ? buffer.getInt() : 1;
+      int chopSize = buffer.getInt();
+      int chopAmount = buffer.getInt();
+
+      PayloadCodec[] codecs = PayloadCodec.values();
+      long listSize = version == LISTED ? 4L * chopAmount : 0;
+      if (codecOrdinal < 0 || codecOrdinal >= codecs.length || chunkIndexDigits < 1
+          || chunkIndexDigits > MAX_CHUNK_INDEX_DIGITS || chopSize <= 0 || chopAmount <= 0
+          || startOrFollowUp < 0 || hop <= 0
+          || listSize + (long) chopSize * chopAmount != buffer.remaining()) {
+        throw new CryptorException("Compact encrypted message has an inconsistent header.");
+      }
+
+      int[] chunkIds = new int[chopAmount];
+      for (int i = 0; i < chunkIds.length; i++) {
+        chunkIds[i] = version == LISTED ? buffer.getInt() : startOrFollowUp + i * hop;
+        if (chunkIds[i] < 0 || (i > 0 && chunkIds[i] <= chunkIds[i - 1])) {
+          throw new CryptorException("Compact encrypted message lists invalid chunk ids.");
+        }
+      }
+      byte[][] chops = new byte[chopAmount][chopSize];
+      for (byte[] chop : chops) {
+        buffer.get(chop);
+      }
+      String otpHash = Hex.encodeHexString(hash).toUpperCase();
+      if (version == EVENLY_SPACED) {
+        return new EncryptedMessage(otpHash, chunkIndexDigits, startOrFollowUp, hop, chops,
+            codecs[codecOrdinal]);
+      }
+      return new EncryptedMessage(otpHash, chunkIndexDigits, chunkIds, startOrFollowUp, chops,
+          codecs[codecOrdinal]);
+    } catch (BufferUnderflowException e) {
+      throw new CryptorException("Compact encrypted message is truncated.");
+    }
+  }
+
+  private static byte[] decodeHash(String otpHash) {
+    try {
+      return Hex.decodeHex(otpHash);
+    } catch (DecoderException e) {
+      throw new IllegalStateException("Pad hash is not hexadecimal.", e);
+    }
+  }
+}
@@ -7,10 +7,20 @@
 
 package eu.kartoffelquadrat.otplib;
 
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Main access point for library users. Using this class lets you conveniently add new messages to a
@@ -20,23 +30,88 @@ import java.util.List;
  * chunk ids by the library user, without them having to bother about how to determine the next save
  * chunk to use for encryption.
  *
+ * <p>A conversation can hold a chain of pre-shared pads. Once the party's chunks of the current pad
+ * run out, messages are transparently encrypted with the next pad of the chain. Every message names
+ * the pad it was encrypted with, so received messages are decrypted with the matching pad, no
+ * matter how far the receiving side has advanced in the chain.
+ *
  * @author Maximilian Schiedermeier
  */
-public class Conversation {
+public class Conversation implements MemoryAccountable {
 
   // Party associated to this conversation object. New encrypted messages can only be added on
   // behalf o this party.
   private final String conversationParty;
   private final List<EncryptedMessage> history;
 
-  // Internal reference for the next chunkId to use for encryption. This field changes on every
-  // encrypted message added to the conversation, to rule out any double-use of a given one time
-  // pad chunk.
+  // Logical counterpart of the history, ordered by position of the pad in the chain, author party
+  // index and then by first chunk id. Messages arriving late are inserted in logarithmic time, so
+  // the logical order never needs to be restored by sorting.
+  private final NavigableMap<Long, EncryptedMessage> chunkOrderedHistory =
+      new ConcurrentSkipListMap<>();
+
+  // Pads of this conversation in order of use, and the same pads indexed by their hash.
+  private final List<PadState> padChain = new ArrayList<>();
+  private final Map<String, PadState> padsByHash = new HashMap<>();
+
+  // Pad that provides the chunks for the next encrypted message.
+  private PadState currentPad;
+
+  // Estimated heap bytes of all messages in the history, updated as messages are added.
+  private volatile long historyHeapBytes;
+
+  // Tells how to handle received messages that are already in the history.
+  private DuplicatePolicy duplicatePolicy = DuplicatePolicy.IGNORE;
+
+  // Codec applied to payloads of messages encrypted by this conversation.
+  private PayloadCodec payloadCodec = PayloadCodec.NONE;
+
+  // Internal reference for the next chunkId of the current pad to use for encryption. This field
+  // changes on every encrypted message added to the conversation, to rule out any double-use of a
+  // given one time pad chunk.
   private int nextChunkIdForEncryption;
 
-  // Coryptographic material used for this conversation
+  // Coryptographic material this conversation was started with, the first pad of the chain.
   private final OneTimePad oneTimePad;
 
+  // Subscriptions of all parties that want to be notified about messages added to the history.
+  private final List<ConversationSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  /**
+   * Bookkeeping of a single pad of the chain. Every pad has chunk ids of its own, so high-water
+   * marks, used chunks and reservations are tracked per pad.
+   */
+  private static final class PadState {
+    final OneTimePad pad;
+    final int chainIndex;
+
+    // Index of the conversation's party in the pad.
+    final int ownPartyIndex;
+
+    // Per party index, the first chunk id not yet covered by any message in the history.
+    final int[] highWaterMarks;
+
+    // Record of all chunk ids used by messages in the history, to detect duplicates and
+    // collisions.
+    final ChunkLedger chunkLedger = new ChunkLedger();
+
+    // Optional mechanism that reserves the chunks used for encryption before messages leave.
+    ChunkReservation chunkReservation;
+
+    PadState(OneTimePad pad, int chainIndex, int ownPartyIndex) {
+      this.pad = pad;
+      this.chainIndex = chainIndex;
+      this.ownPartyIndex = ownPartyIndex;
+
+      // Without any message, a party's high-water mark is the first chunk it owns.
+      int partyAmount = pad.getPartyAmount();
+      highWaterMarks = new int[partyAmount];
+      for (int partyIndex = 0; partyIndex < partyAmount; partyIndex++) {
+        highWaterMarks[partyIndex] =
+            pad.getChunkAllocation().getFirstChunk(partyIndex, partyAmount);
+      }
+    }
+  }
 
   /**
    * Constructor to set up a new conversation. This associates a provided one time pad with a
@@ -48,18 +123,19 @@ public class Conversation {
    */
   public Conversation(OneTimePad oneTimePad, String party) throws InvalidPartyException {
 
-    this(oneTimePad, party, new LinkedList<EncryptedMessage>());
+    this(Collections.singletonList(oneTimePad), party, new ArrayList<EncryptedMessage>());
   }
 
   /**
    * Overloaded constructor. For internal use only upon restoring a conversation from persisted
-   * files.
+   * files. All messages of the history must belong to a pad of the chain.
    *
-   * @param oneTimePad as the cryptographic material to be used for this conversation.
-   * @param party      as the identifier of the party adding plain messages to encrypt.
-   * @param history    as a list of all previously exchanged encrypted messages.
+   * @param padChain as the cryptographic material to be used for this conversation, in order of
+   *                 use.
+   * @param party    as the identifier of the party adding plain messages to encrypt.
+   * @param history  as a list of all previously exchanged encrypted messages.
    */
-  private Conversation(OneTimePad oneTimePad, String party, List<EncryptedMessage> history)
+  private Conversation(List<OneTimePad> padChain, String party, List<EncryptedMessage> history)
       throws InvalidPartyException {
 
     // Initialize empty message history.
@@ -69,12 +145,26 @@ public class Conversation {
     // object.
     this.conversationParty = party;
 
-    // Set next chunk id to use by the associated party for message encryption
-    this.nextChunkIdForEncryption = getNextAvailableChunkId(history, oneTimePad.getPartyAmount(),
-        oneTimePad.getPartyIndex(party));
-
     // Store the cryptogrpahic material
-    this.oneTimePad = oneTimePad;
+    this.oneTimePad = padChain.get(0);
+    for (OneTimePad pad : padChain) {
+      chain(pad);
+    }
+
+    // Index the provided history per pad and party. Encryption continues on the last pad the
+    // associated party already used.
+    currentPad = this.padChain.get(0);
+    for (EncryptedMessage encMessage : history) {
+      PadState padState = padsByHash.get(encMessage.getOtpHash());
+      index(padState, encMessage);
+      if (padState.chainIndex > currentPad.chainIndex
+          && getAuthorIndex(padState, encMessage) == padState.ownPartyIndex) {
+        currentPad = padState;
+      }
+    }
+
+    // Set next chunk id to use by the associated party for message encryption
+    this.nextChunkIdForEncryption = getFirstUnusedChunk(currentPad);
   }
 
 
@@ -88,7 +178,57 @@ public class Conversation {
   }
 
   /**
-   * Exports the encrypted entire message history.
+   * Getter for the one time pad this conversation is based on. This is the first pad of the chain.
+   *
+   * @return the pad of this conversation.
+   */
+  public OneTimePad getOneTimePad() {
+    return oneTimePad;
+  }
+
+  /**
+   * Getter for the pad that provides the chunks for the next message encrypted by this
+   * conversation.
+   *
+   * @return the current pad of the chain.
+   */
+  public OneTimePad getCurrentPad() {
+    return currentPad.pad;
+  }
+
+  /**
+   * Getter for all pads of this conversation, in the order they are used for encryption.
+   *
+   * @return read-only list of the pads of the chain.
+   */
+  public List<OneTimePad> getPadChain() {
+    List<OneTimePad> pads = new ArrayList<>(padChain.size());
+    for (PadState padState : padChain) {
+      pads.add(padState.pad);
+    }
+    return Collections.unmodifiableList(pads);
+  }
+
+  /**
+   * Appends a pre-shared pad to the chain of this conversation. Once the associated party runs out
+   * of chunks on all previous pads, messages are encrypted with the new pad. Pads must be added in
+   * the same order on all devices, and before messages encrypted with them are received.
+   *
+   * @param successorPad as the pad to use after the current last pad of the chain.
+   * @throws InvalidPartyException        if the party of this conversation does not use the pad.
+   * @throws OneTimePadMissmatchException if the pad is part of the chain already.
+   */
+  public void addSuccessorPad(OneTimePad successorPad)
+      throws InvalidPartyException, OneTimePadMissmatchException {
+    if (padsByHash.containsKey(successorPad.getHash())) {
+      throw new OneTimePadMissmatchException(
+          "Pad " + successorPad.getHash() + " is part of the conversation already.");
+    }
+    chain(successorPad);
+  }
+
+  /**
+   * Exports the encrypted entire message history, in order of arrival.
    *
    * @return List of all emcrypted messages ever added to this conversation.
    */
@@ -98,6 +238,42 @@ public class Conversation {
   }
 
 
+  /**
+   * Exports the encrypted entire message history in logical order, that is grouped by author and
+   * ordered by the chunks each author used. Unlike the arrival order, the logical order does not
+   * depend on the order in which messages of different devices were received. The returned
+   * collection is a read-only view, it does not need to be sorted on access.
+   *
+   * @return Collection of all encrypted messages, ordered by author party and chunk id.
+   */
+  public Collection<EncryptedMessage> getChunkOrderedConversationHistory() {
+    return Collections.unmodifiableCollection(chunkOrderedHistory.values());
+  }
+
+  /**
+   * Exports the encrypted messages of a single party, in the order of the chunks used.
+   *
+   * @param party as the name@machine string of the party.
+   * @return Collection of all encrypted messages authored by the provided party.
+   * @throws InvalidPartyException if the party is not associated with the first pad of this
+   *                               conversation.
+   */
+  public Collection<EncryptedMessage> getChunkOrderedPartyHistory(String party)
+      throws InvalidPartyException {
+    oneTimePad.getPartyIndex(party);
+    List<EncryptedMessage> partyHistory = new ArrayList<>();
+    for (PadState padState : padChain) {
+      if (!padState.pad.isAssociatedParty(party)) {
+        continue;
+      }
+      int partyIndex = padState.pad.getPartyIndex(party);
+      partyHistory.addAll(chunkOrderedHistory.subMap(
+          toLogicalKey(padState.chainIndex, partyIndex, 0), true,
+          toLogicalKey(padState.chainIndex, partyIndex + 1, 0), false).values());
+    }
+    return Collections.unmodifiableCollection(partyHistory);
+  }
+
   /**
    * Exports the unencrypted counterpart of the entire message history.
    *
@@ -112,15 +288,56 @@ public class Conversation {
 
     // Iterate over history and decrypt
     for (EncryptedMessage encMessage : history) {
-      result.add(Cryptor.decryptMessage(encMessage, oneTimePad, true));
+      result.add(Cryptor.decryptMessage(encMessage, getPadState(encMessage).pad, true));
     }
 
     return result;
   }
 
+  /**
+   * Decrypts a range of bytes of an encrypted message, without decrypting the rest of it. Offsets
+   * refer to the payload including its trailing whitespace padding. The message does not need to be
+   * part of the history, but must be encrypted with a pad of this conversation and without payload
+   * codec.
+   *
+   * @param encryptedMessage as the message to decrypt partially.
+   * @param offset           as the position of the first byte to decrypt.
+   * @param length           as the amount of bytes to decrypt.
+   * @return the decrypted bytes of the range.
+   * @throws CryptorException if the message's pad is not part of the chain, or the payload of the
+   *                          message is encoded.
+   */
+  public byte[] decryptRange(EncryptedMessage encryptedMessage, long offset, int length)
+      throws CryptorException {
+    return Cryptor.decryptRange(encryptedMessage, getPadState(encryptedMessage).pad, offset,
+        length);
+  }
+
+  /**
+   * Opens a read-only, seekable channel on the plain payload of an encrypted message. Reads only
+   * decrypt the chunks covering the bytes read, which suits previews and resumed downloads of large
+   * messages. The same restrictions as for decryptRange apply.
+   *
+   * @param encryptedMessage as the message to decrypt on demand.
+   * @return channel spanning the padded payload of the message.
+   * @throws CryptorException if the message's pad is not part of the chain, or the payload of the
+   *                          message is encoded.
+   */
+  public SeekableByteChannel openDecryptingChannel(EncryptedMessage encryptedMessage)
+      throws CryptorException {
+    PadState padState = getPadState(encryptedMessage);
+    if (encryptedMessage.getPayloadCodec() != PayloadCodec.NONE) {
+      throw new CryptorException("Message with payload codec "
+          + encryptedMessage.getPayloadCodec() + " cannot be decrypted partially.");
+    }
+    return new DecryptingChannel(encryptedMessage, padState.pad);
+  }
+
   /**
    * GHelper method to add a plain message to the conversation. The method implementation
    * automatically figures out the next chunk id to use to ensure message procetion and integrity.
+   * If the message does not fit into the party's remaining chunks of the current pad, it is
+   * encrypted with the next pad of the chain.
    *
    * @param message as the plain message to add to the conversation.
    * @return the encrypted counterpart of the added message.
@@ -129,11 +346,27 @@ public class Conversation {
   public EncryptedMessage encryptAndAddMessage(PlainMessage message) throws CryptorException {
 
     // Apply next chunk to use to create a new encypted message
-    EncryptedMessage encMessage =
-        Cryptor.encryptMessage(message, oneTimePad, nextChunkIdForEncryption);
+    EncryptedMessage encMessage = encrypt(message, currentPad, nextChunkIdForEncryption);
+    PadState padState = getPadState(encMessage);
+
+    // The message must not leave before its chunks are safe from reuse. If the reservation grants
+    // other chunks, the message is encrypted again with those.
+    while (padState.chunkReservation != null) {
+      int grantedChunk = reserve(padState.chunkReservation, encMessage.getStartChunkIndex(),
+          encMessage.getFollowUpChunkIndex());
+      if (grantedChunk == encMessage.getStartChunkIndex()) {
+        break;
+      }
+      encMessage = encrypt(message, padState, grantedChunk);
+      padState = getPadState(encMessage);
+    }
+
+    // Never add a message whose chunks were already used by someone else
+    padState.chunkLedger.check(encMessage);
 
     // Then add to history and update chunk id reference (so next message has no chunk overlap)
-    history.add(encMessage);
+    append(padState, encMessage);
+    currentPad = padState;
     nextChunkIdForEncryption = encMessage.getFollowUpChunkIndex();
 
     // Finally return the encrypted message object
@@ -141,6 +374,66 @@ public class Conversation {
   }
 
 
+  /**
+   * Reserves a range of consecutive chunks of the associated party for bulk encryption, for
+   * instance of a large file. The chunks are never used for messages of this conversation. If the
+   * party's chunks of the current pad do not suffice, the range is reserved on the next pad of the
+   * chain, which then becomes the current pad. Reserved chunks count towards the party's high-water
+   * mark, and are reserved by the chunk reservation of the pad.
+   *
+   * <p>The range never enters the history, so a conversation restored from its serialized history
+   * does not know about it. The pad of the range must therefore have a chunk reservation attached,
+   * see setChunkReservation. Restored conversations must attach the reservation again, a reopened
+   * ChunkReservationJournal then keeps their messages behind the range.
+   *
+   * @param chunkAmount as the amount of chunks to reserve.
+   * @return the first chunk of the range, in the current pad. Further chunks of the range follow
+   *     the pad's chunk allocation.
+   * @throws CryptorException if no pad of the chain holds enough chunks, the pad of the range has
+   *                          no chunk reservation, or the reservation could not be persisted.
+   */
+  public int reserveChunks(int chunkAmount) throws CryptorException {
+    if (chunkAmount < 1) {
+      throw new IllegalArgumentException("At least one chunk must be reserved.");
+    }
+    PadState padState = currentPad;
+    int startChunk = nextChunkIdForEncryption;
+    while (true) {
+      ChunkAllocation allocation = padState.pad.getChunkAllocation();
+      int partyAmount = padState.pad.getPartyAmount();
+      int startSequence = allocation.getSequenceIndex(startChunk, partyAmount);
+      long lastChunk = allocation.getChunkId(padState.ownPartyIndex,
+          startSequence + chunkAmount - 1, partyAmount);
+      if (lastChunk < 0 || lastChunk >= padState.pad.getChunkAmount()) {
+        if (padState.chainIndex + 1 == padChain.size()) {
+          throw new OutOfChunksException(
+              "No pad of the conversation holds " + chunkAmount + " more chunks of the party.");
+        }
+        padState = padChain.get(padState.chainIndex + 1);
+        startChunk = getFirstUnusedChunk(padState);
+        continue;
+      }
+      int followUpChunk = allocation.getChunkId(padState.ownPartyIndex,
+          startSequence + chunkAmount, partyAmount);
+      if (padState.chunkReservation == null) {
+        throw new ChunkReservationException("Pad " + padState.pad.getHash()
+            + " has no chunk reservation, reserved chunks would be lost on restore.");
+      }
+      int grantedChunk = reserve(padState.chunkReservation, startChunk, followUpChunk);
+      if (grantedChunk != startChunk) {
+        startChunk = grantedChunk;
+        continue;
+      }
+
+      // Messages continue behind the range.
+      currentPad = padState;
+      nextChunkIdForEncryption = followUpChunk;
+      padState.highWaterMarks[padState.ownPartyIndex] =
+          Math.max(padState.highWaterMarks[padState.ownPartyIndex], followUpChunk);
+      return startChunk;
+    }
+  }
+
   /**
    * Similar to previous message, but crates temporary preview of encrypted message without yet
    * adding the resulting encrypted message to the internal store or burning the associated one
@@ -152,11 +445,12 @@ public class Conversation {
    * @throws CryptorException if the encryption of the plain message failed.
    */
   public EncryptedMessage getEncryptedMessagePreview(PlainMessage message) throws CryptorException {
-    return Cryptor.encryptMessage(message, oneTimePad, nextChunkIdForEncryption);
+    return encrypt(message, currentPad, nextChunkIdForEncryption);
   }
 
   /**
-   * Adds an encrypted message to the internal store of conversations.
+   * Adds an encrypted message to the internal store of conversations. A message covering exactly
+   * the chunks of a message already in the history is handled according to the duplicate policy.
    *
    * @param encryptedMessage message that should be added to the history.
    * @return plain message variant of the encrypted message.
@@ -165,11 +459,169 @@ public class Conversation {
   public PlainMessage addEncryptedMessage(EncryptedMessage encryptedMessage)
       throws CryptorException {
 
-    PlainMessage message = Cryptor.decryptMessage(encryptedMessage, oneTimePad, true);
-    history.add(encryptedMessage);
+    PadState padState = getPadState(encryptedMessage);
+    PlainMessage message = Cryptor.decryptMessage(encryptedMessage, padState.pad, true);
+    if (padState.chunkLedger.check(encryptedMessage) == ChunkLedger.Status.NEW) {
+      append(padState, encryptedMessage);
+    } else if (duplicatePolicy == DuplicatePolicy.REJECT) {
+      throw new DuplicateMessageException("Message starting at chunk "
+          + encryptedMessage.getStartChunkIndex() + " is already in the conversation.");
+    }
     return message;
   }
 
+  /**
+   * Getter for the codec applied to payloads prior to encryption.
+   *
+   * @return the current payload codec.
+   */
+  public PayloadCodec getPayloadCodec() {
+    return payloadCodec;
+  }
+
+  /**
+   * Setter for the codec applied to payloads of messages encrypted from now on. Compressing
+   * payloads saves key material and bandwidth at the cost of CPU time. Messages the codec would not
+   * shrink by at least one chunk are encrypted without codec. Received messages are always decoded
+   * with the codec stored in the message, regardless of this setting.
+   *
+   * @param payloadCodec as the new payload codec.
+   */
+  public void setPayloadCodec(PayloadCodec payloadCodec) {
+    this.payloadCodec = payloadCodec;
+  }
+
+  /**
+   * Getter for the mechanism that reserves chunks of the current pad for messages encrypted by this
+   * conversation.
+   *
+   * @return the chunk reservation, or null if chunks of the current pad are not reserved.
+   */
+  public ChunkReservation getChunkReservation() {
+    return currentPad.chunkReservation;
+  }
+
+  /**
+   * Setter for a mechanism that reserves the chunks used by this conversation's party, before the
+   * encrypted messages are returned. A ChunkReservationJournal makes a conversation restored from
+   * an outdated history safe to use, a SharedChunkLease lets several processes act as the same
+   * party. Every pad of the chain has a reservation of its own, the reservation is assigned to the
+   * pad it belongs to.
+   *
+   * @param chunkReservation as the reservation to use, or null to stop reserving chunks of all
+   *                         pads.
+   * @throws OneTimePadMissmatchException if the reservation belongs to a pad outside the chain.
+   * @throws InvalidPartyException        if the reservation belongs to another party.
+   */
+  public void setChunkReservation(ChunkReservation chunkReservation)
+      throws OneTimePadMissmatchException, InvalidPartyException {
+    if (chunkReservation == null) {
+      for (PadState padState : padChain) {
+        padState.chunkReservation = null;
+      }
+      return;
+    }
+    PadState padState = padsByHash.get(chunkReservation.getPadHash());
+    if (padState == null) {
+      throw new OneTimePadMissmatchException(
+          "Chunk reservation belongs to different cryptographic material.");
+    }
+    if (!chunkReservation.getParty().equals(conversationParty)) {
+      throw new InvalidPartyException(
+          "Chunk reservation belongs to party " + chunkReservation.getParty() + ".");
+    }
+    padState.chunkReservation = chunkReservation;
+  }
+
+  /**
+   * Getter for the policy applied to received messages that are already in the history.
+   *
+   * @return the current duplicate policy.
+   */
+  public DuplicatePolicy getDuplicatePolicy() {
+    return duplicatePolicy;
+  }
+
+  /**
+   * Setter for the policy applied to received messages that are already in the history. Received
+   * messages that only partially overlap with held messages are always refused.
+   *
+   * @param duplicatePolicy as the new duplicate policy.
+   */
+  public void setDuplicatePolicy(DuplicatePolicy duplicatePolicy) {
+    this.duplicatePolicy = duplicatePolicy;
+  }
+
+  /**
+   * Registers a subscriber to be notified about every message added to this conversation from now
+   * on. Messages are delivered in the order they are added, but only as far as the subscriber
+   * requested them through the subscription handed to its onSubscribe method. Until then they are
+   * buffered.
+   *
+   * @param subscriber as the party to notify about new messages.
+   */
+  public void subscribe(ConversationSubscriber subscriber) {
+    ConversationSubscription subscription = new ConversationSubscription(subscriber);
+    subscriptions.add(subscription);
+    subscriber.onSubscribe(subscription);
+  }
+
+  /**
+   * Helper method to forward a message that was just added to the history to all subscribers.
+   * Subscriptions that have been cancelled in the meantime are dropped.
+   *
+   * @param padState         as the pad the message was encrypted with.
+   * @param encryptedMessage as the message that was added to the history.
+   */
+  private void publish(PadState padState, EncryptedMessage encryptedMessage) {
+    ConversationUpdate update = new ConversationUpdate(encryptedMessage, padState.pad);
+    for (ConversationSubscription subscription : subscriptions) {
+      if (subscription.isCancelled()) {
+        subscriptions.remove(subscription);
+      } else {
+        subscription.publish(update);
+      }
+    }
+  }
+
+  /**
+   * Estimates the memory retained by this conversation. The estimate is kept up to date as messages
+   * are added, so polling it does not walk the history. Pads may be shared with other
+   * conversations or a pad registry, they are reported as a component of their own to avoid
+   * counting them twice.
+   *
+   * @return the estimated footprint of history, indexes, ledgers, pads and reservations.
+   */
+  @Override
+  public MemoryFootprint getMemoryFootprint() {
+    Map<String, Long> heap = new LinkedHashMap<>();
+    heap.put("history", historyHeapBytes);
+
+    // Arrival ordered list plus one skip list node, boxed key and on average a third of an index
+    // node per message.
+    int messageAmount = chunkOrderedHistory.size();
+    long nodeBytes = MemoryFootprint.objectBytes(3 * MemoryFootprint.REFERENCE);
+    long perMessage = nodeBytes + MemoryFootprint.objectBytes(8) + nodeBytes / 3;
+    heap.put("historyIndex", MemoryFootprint.arrayBytes(messageAmount, MemoryFootprint.REFERENCE)
+        + messageAmount * perMessage);
+
+    long ledgerBytes = 0;
+    long padBytes = 0;
+    long reservationBytes = 0;
+    for (PadState padState : padChain) {
+      ledgerBytes += padState.chunkLedger.estimateHeapBytes()
+          + MemoryFootprint.arrayBytes(padState.highWaterMarks.length, 4);
+      padBytes += padState.pad.getMemoryFootprint().getHeapBytes();
+      if (padState.chunkReservation instanceof MemoryAccountable) {
+        reservationBytes += ((MemoryAccountable) padState.chunkReservation).getMemoryFootprint()
+            .getOffHeapBytes();
+      }
+    }
+    heap.put("ledgers", ledgerBytes);
+    heap.put("pads", padBytes);
+    return new MemoryFootprint(heap, Collections.singletonMap("reservations", reservationBytes));
+  }
+
   /**
    * Returns a json string version of the full encrypted conversation history. Internal messages are
    * stored encrypted and in an ASCII compatible hexcode representation.
@@ -182,7 +634,8 @@ public class Conversation {
 
   /**
    * Restores a previously exported conversation back to a java object. Useful for loading a
-   * conversation from disk on program startup.
+   * conversation from disk on program startup. The record of used chunks, which guards against
+   * duplicate and colliding messages, is rebuilt from the restored history.
    *
    * @param serializedEncryptedMessages json string representing an array of encrypted messages.
    * @param party                       owner of this conversation.
@@ -194,18 +647,39 @@ public class Conversation {
   public static Conversation restore(String serializedEncryptedMessages, String party,
                                      OneTimePad oneTimePad)
       throws InvalidPartyException, OneTimePadMissmatchException {
+    return restore(serializedEncryptedMessages, party, Collections.singletonList(oneTimePad));
+  }
+
+  /**
+   * Overloaded variant of restore for conversations that use a chain of pads. The pads must be
+   * provided in the order they were added to the original conversation. Encryption continues on
+   * the last pad the provided party used.
+   *
+   * @param serializedEncryptedMessages json string representing an array of encrypted messages.
+   * @param party                       owner of this conversation.
+   * @param padChain                    the key material used for this conversation, in order of
+   *                                    use.
+   * @return conversation as a java object.
+   * @throws InvalidPartyException        if the provided party does not match one of the pads.
+   * @throws OneTimePadMissmatchException if a message belongs to a pad outside the chain.
+   */
+  public static Conversation restore(String serializedEncryptedMessages, String party,
+                                     List<OneTimePad> padChain)
+      throws InvalidPartyException, OneTimePadMissmatchException {
 
-    // verify the party is associated to this pad (throws exception if not indexed)
-    oneTimePad.isAssociatedParty(party);
+    // verify the party is associated to all pads (throws exception if not indexed)
+    for (OneTimePad pad : padChain) {
+      pad.isAssociatedParty(party);
+    }
 
     // restore the provided json string of encrypted messages back to an object
     EncryptedMessage[] encryptedMessagesArray = SerializationTools.getGsonPadConverter()
         .fromJson(serializedEncryptedMessages, EncryptedMessage[].class);
-    List<EncryptedMessage> history = Arrays.asList(encryptedMessagesArray);
+    List<EncryptedMessage> history = new ArrayList<>(Arrays.asList(encryptedMessagesArray));
 
-    // verify the messages match the provided one time pad
-    if (encryptedMessagesArray.length > 0) {
-      if (!encryptedMessagesArray[0].getOtpHash().equals(oneTimePad.getHash())) {
+    // verify the messages match the provided one time pads
+    for (EncryptedMessage encMessage : encryptedMessagesArray) {
+      if (!containsPad(padChain, encMessage.getOtpHash())) {
         throw new OneTimePadMissmatchException(
             "Conversation cannot be restored because the provided message history is not compatible"
                 + " to the provided cryptographic material.");
@@ -213,33 +687,260 @@ public class Conversation {
     }
 
     // Combine the validated parameters back to a conversation object.
-    return new Conversation(oneTimePad, party, history);
+    return new Conversation(padChain, party, history);
   }
 
   /**
-   * Helper method to identify determine the next chunk id to use by the assicated partyu for
-   * encryption. This is needed to determine the followUp chunkId on conversation reconstruction, to
-   * ensure no chunk is used twice.
+   * Helper method to tell whether a list of pads contains the pad with a given hash.
    *
-   * @param history       as the list of encrytped messages to analyze.
-   * @param amountParties as the number of parties associated to the conversation per one time pad.
-   * @param partyIndex    integer indicating party for which we are seeking the most recent
-   *                      message.
-   * @return null if the parte never communicated or the most recent encrypted message otherwise.
+   * @param pads    as the pads to search.
+   * @param padHash as the hash to look for.
+   * @return true if one of the pads has the provided hash.
    */
-  private int getNextAvailableChunkId(List<EncryptedMessage> history, int amountParties,
-                                      int partyIndex) {
+  private static boolean containsPad(List<OneTimePad> pads, String padHash) {
+    for (OneTimePad pad : pads) {
+      if (pad.getHash().equals(padHash)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-    // Invert the history, so we begin search with the most recent messages.
-    Collections.reverse(history);
-    for (EncryptedMessage encMessage : history) {
+  /**
+   * Summarizes the messages held by this conversation as one high-water mark per party. Another
+   * device holding the same conversation can use the vector to determine which messages this
+   * conversation is missing, see getEncryptedMessagesSince. The vector only covers messages of the
+   * first pad of the chain, see getHistoryVectors for the other pads.
+   *
+   * @return history vector of this conversation.
+   */
+  public HistoryVector getHistoryVector() {
+    return new HistoryVector(oneTimePad.getHash(), padChain.get(0).highWaterMarks);
+  }
+
+  /**
+   * Summarizes the messages held by this conversation as one history vector per pad of the chain.
+   *
+   * @return history vectors of this conversation, in order of the chain.
+   */
+  public List<HistoryVector> getHistoryVectors() {
+    List<HistoryVector> historyVectors = new ArrayList<>(padChain.size());
+    for (PadState padState : padChain) {
+      historyVectors.add(new HistoryVector(padState.pad.getHash(), padState.highWaterMarks));
+    }
+    return historyVectors;
+  }
+
+  /**
+   * Looks up all messages held by this conversation, but not covered by the provided history
+   * vector. The cost of the lookup scales with the amount of missing messages, not with the length
+   * of the history. Both devices must have received the messages of each party in order, see
+   * HistoryVector.
+   *
+   * @param remoteVector as the history vector of the conversation to synchronize.
+   * @return list of messages unknown to the remote conversation, ordered by party and chunk id.
+   * @throws OneTimePadMissmatchException if the vector belongs to a pad outside the chain, or does
+   *                                      not hold one high-water mark per party.
+   */
+  public List<EncryptedMessage> getEncryptedMessagesSince(HistoryVector remoteVector)
+      throws OneTimePadMissmatchException {
+
+    PadState padState = padsByHash.get(remoteVector.getOtpHash());
+    if (padState == null) {
+      throw new OneTimePadMissmatchException(
+          "Messages cannot be synchronized because the provided history vector belongs to "
+              + "different cryptographic material.");
+    }
+    remoteVector.validate(padState.highWaterMarks.length);
+
+    List<EncryptedMessage> missingMessages = new LinkedList<>();
+    for (int partyIndex = 0; partyIndex < padState.highWaterMarks.length; partyIndex++) {
+      missingMessages.addAll(chunkOrderedHistory.subMap(
+          toLogicalKey(padState.chainIndex, partyIndex, remoteVector.getHighWaterMark(partyIndex)),
+          true, toLogicalKey(padState.chainIndex, partyIndex + 1, 0), false).values());
+    }
+    return missingMessages;
+  }
+
+  /**
+   * Incremental counterpart of serializeEncryptedMessagesToJson. Serializes only the messages not
+   * covered by the provided history vector.
+   *
+   * @param remoteVector as the history vector of the conversation to synchronize.
+   * @return Json string representation of an array of the missing encrypted messages.
+   * @throws OneTimePadMissmatchException if the vector belongs to a pad outside the chain, or does
+   *                                      not hold one high-water mark per party.
+   */
+  public String serializeEncryptedMessagesSince(HistoryVector remoteVector)
+      throws OneTimePadMissmatchException {
+    return SerializationTools.getGsonPadConverter()
+        .toJson(getEncryptedMessagesSince(remoteVector).toArray());
+  }
+
+  /**
+   * Adds all messages of a serialized delta, as produced by serializeEncryptedMessagesSince on
+   * another device, to this conversation. Messages already held are skipped, regardless of the
+   * duplicate policy.
+   *
+   * @param serializedEncryptedMessages json string representing an array of encrypted messages.
+   * @return plain variants of the messages actually added.
+   * @throws CryptorException if one of the messages cannot be decrypted with this conversation's
+   *                          pads.
+   */
+  public List<PlainMessage> mergeEncryptedMessages(String serializedEncryptedMessages)
+      throws CryptorException {
 
-      // return message on first party match
-      if (encMessage.getChunksUsed()[0] % amountParties == partyIndex) {
-        return encMessage.getFollowUpChunkIndex();
+    EncryptedMessage[] delta = SerializationTools.getGsonPadConverter()
+        .fromJson(serializedEncryptedMessages, EncryptedMessage[].class);
+
+    List<PlainMessage> addedMessages = new LinkedList<>();
+    for (EncryptedMessage encMessage : delta) {
+      if (getPadState(encMessage).chunkLedger.check(encMessage) == ChunkLedger.Status.NEW) {
+        addedMessages.add(addEncryptedMessage(encMessage));
+      }
+    }
+    return addedMessages;
+  }
+
+  /**
+   * Helper method to encrypt a message, starting at a given chunk of a pad. If the party's chunks
+   * of the pad do not suffice, the message is encrypted with the party's first unused chunk of the
+   * next pad in the chain instead. Chunks that were wiped are never skipped.
+   *
+   * @param message  as the plain message to encrypt.
+   * @param padState as the pad to try first.
+   * @param chunkId  as the first chunk to use in that pad.
+   * @return the encrypted message, carrying the hash of the pad actually used.
+   * @throws CryptorException if the message could not be encrypted with any remaining pad.
+   */
+  private EncryptedMessage encrypt(PlainMessage message, PadState padState, int chunkId)
+      throws CryptorException {
+    try {
+      return Cryptor.encryptMessage(message, padState.pad, chunkId, payloadCodec);
+    } catch (OutOfChunksException e) {
+      if (e instanceof ChunkWipedException || padState.chainIndex + 1 == padChain.size()) {
+        throw e;
       }
+      PadState successor = padChain.get(padState.chainIndex + 1);
+      return encrypt(message, successor, getFirstUnusedChunk(successor));
+    }
+  }
+
+  /**
+   * Helper method to append a pad to the chain and create its bookkeeping.
+   *
+   * @param pad as the pad to append.
+   * @throws InvalidPartyException if the party of this conversation does not use the pad.
+   */
+  private void chain(OneTimePad pad) throws InvalidPartyException {
+    PadState padState =
+        new PadState(pad, padChain.size(), pad.getPartyIndex(conversationParty));
+    padChain.add(padState);
+    padsByHash.put(pad.getHash(), padState);
+  }
+
+  /**
+   * Helper method to look up the pad a message was encrypted with.
+   *
+   * @param encMessage as the message to analyze.
+   * @return bookkeeping of the message's pad.
+   * @throws OneTimePadMissmatchException if the message's pad is not part of the chain.
+   */
+  private PadState getPadState(EncryptedMessage encMessage) throws OneTimePadMissmatchException {
+    PadState padState = padsByHash.get(encMessage.getOtpHash());
+    if (padState == null) {
+      throw new OneTimePadMissmatchException("Message was encrypted with pad "
+          + encMessage.getOtpHash() + ", which is not part of the conversation.");
+    }
+    return padState;
+  }
+
+  /**
+   * Helper method to determine the first chunk of a pad the associated party did not use yet.
+   *
+   * @param padState as the pad to analyze.
+   * @return the high-water mark of the associated party in that pad.
+   */
+  private static int getFirstUnusedChunk(PadState padState) {
+    return padState.highWaterMarks[padState.ownPartyIndex];
+  }
+
+  /**
+   * Helper method to reserve a range of chunks of the associated party.
+   *
+   * @param chunkReservation as the reservation of the range's pad.
+   * @param startChunk       as the first chunk of the range.
+   * @param followUpChunk    as the first chunk of the party behind the range.
+   * @return the start chunk granted by the reservation.
+   * @throws ChunkReservationException if the reservation could not be persisted.
+   */
+  private static int reserve(ChunkReservation chunkReservation, int startChunk, int followUpChunk)
+      throws ChunkReservationException {
+    try {
+      return chunkReservation.reserve(startChunk, followUpChunk);
+    } catch (IOException e) {
+      throw new ChunkReservationException(
+          "Chunks could not be reserved: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Helper method to add a message to the history, update all indexes and notify subscribers.
+   *
+   * @param padState   as the pad the message was encrypted with.
+   * @param encMessage as the message to add.
+   */
+  private void append(PadState padState, EncryptedMessage encMessage) {
+    history.add(encMessage);
+    index(padState, encMessage);
+    publish(padState, encMessage);
+  }
+
+  /**
+   * Helper method to register a message that was just added to the history in the per party index
+   * and high-water marks. Messages of the associated party, for instance sent from another device,
+   * also move encryption on the current pad behind their chunks.
+   *
+   * @param padState   as the pad the message was encrypted with.
+   * @param encMessage as the message added to the history.
+   */
+  private void index(PadState padState, EncryptedMessage encMessage) {
+    int partyIndex = getAuthorIndex(padState, encMessage);
+    chunkOrderedHistory.put(
+        toLogicalKey(padState.chainIndex, partyIndex, encMessage.getStartChunkIndex()), encMessage);
+    padState.highWaterMarks[partyIndex] =
+        Math.max(padState.highWaterMarks[partyIndex], encMessage.getFollowUpChunkIndex());
+    if (padState == currentPad && partyIndex == padState.ownPartyIndex) {
+      nextChunkIdForEncryption =
+          Math.max(nextChunkIdForEncryption, padState.highWaterMarks[partyIndex]);
     }
+    padState.chunkLedger.register(encMessage);
+    historyHeapBytes += encMessage.getMemoryFootprint().getHeapBytes();
+  }
 
-    return partyIndex;
+  /**
+   * Helper method to determine the party index of a message's author. Every party only uses the
+   * chunks the pad's allocation assigns to it.
+   *
+   * @param padState   as the pad the message was encrypted with.
+   * @param encMessage as the message to analyze.
+   * @return index of the authoring party.
+   */
+  private static int getAuthorIndex(PadState padState, EncryptedMessage encMessage) {
+    return padState.pad.getChunkAllocation()
+        .getOwnerIndex(encMessage.getStartChunkIndex(), padState.pad.getPartyAmount());
+  }
+
+  /**
+   * Helper method to combine position of the pad in the chain, author party index and first chunk
+   * id of a message to a single key, whose natural order is the logical order of messages.
+   *
+   * @param chainIndex as the position of the message's pad in the chain.
+   * @param partyIndex as the index of the authoring party.
+   * @param chunkId    as the first chunk id of the message.
+   * @return key for the chunk ordered history.
+   */
+  private static long toLogicalKey(int chainIndex, int partyIndex, int chunkId) {
+    return ((long) chainIndex << 48) | ((long) partyIndex << 32) | (chunkId & 0xFFFFFFFFL);
   }
 }
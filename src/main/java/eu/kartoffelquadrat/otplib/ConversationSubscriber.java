@@ -0,0 +1,39 @@
+/**
+ * Callback interface for library users who want to be notified about new conversation messages.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Subscribers receive every message appended to a conversation, in the order of appending. The
+ * contract mirrors the reactive streams publisher / subscriber protocol: Nothing is delivered
+ * until the subscriber signals demand via the subscription handed to onSubscribe.
+ */
+public interface ConversationSubscriber {
+
+  /**
+   * Invoked exactly once, directly on subscription. Implementations should store the provided
+   * subscription and request an initial amount of updates.
+   *
+   * @param subscription as the handle for signalling demand or cancelling the subscription.
+   */
+  void onSubscribe(ConversationSubscription subscription);
+
+  /**
+   * Invoked once per message appended to the conversation, but never more often than requested.
+   *
+   * @param update as the wrapper of the newly added encrypted message.
+   */
+  void onNext(ConversationUpdate update);
+
+  /**
+   * Invoked at most once, if onNext threw an exception. The subscription is cancelled by then and
+   * no further updates are delivered. The conversation itself is not affected.
+   *
+   * @param error as the exception thrown by onNext.
+   */
+  default void onError(RuntimeException error) {
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Demand handle linking a single subscriber to a conversation.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Subscription handed to a conversation subscriber. Updates published by the conversation are
+ * buffered here and only forwarded to the subscriber as far as it requested them, so the pace of
+ * delivery is entirely controlled by the subscriber.
+ */
+public class ConversationSubscription {
+
+  // The subscriber receiving updates through this subscription.
+  private final ConversationSubscriber subscriber;
+
+  // Updates published but not yet delivered, for lack of demand.
+  private final Deque<ConversationUpdate> pendingUpdates = new ArrayDeque<>();
+
+  // Amount of updates the subscriber is still willing to receive.
+  private long demand;
+
+  // Set once the subscriber no longer wants to receive updates.
+  private boolean cancelled;
+
+  // Guard against recursive draining, e.g. if request is called from within onNext.
+  private boolean draining;
+
+  /**
+   * Constructor for a new subscription. Only created by the conversation being subscribed to.
+   *
+   * @param subscriber as the party to notify about conversation updates.
+   */
+  protected ConversationSubscription(ConversationSubscriber subscriber) {
+    this.subscriber = subscriber;
+  }
+
+  /**
+   * Signals the subscriber is ready to receive the provided amount of additional updates.
+   * Buffered updates are delivered right away, within the calling thread.
+   *
+   * @param amount as the number of additional updates to receive. Must be positive.
+   */
+  public void request(long amount) {
+    if (amount <= 0) {
+      throw new IllegalArgumentException("Requested amount of updates must be positive.");
+    }
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      // Cap at max value, which reactive streams interpret as unbounded demand.
+      demand = demand + amount < 0 ? Long.MAX_VALUE : demand + amount;
+    }
+    drain();
+  }
+
+  /**
+   * Stops delivery of any further updates and discards all buffered ones.
+   */
+  public synchronized void cancel() {
+    cancelled = true;
+    pendingUpdates.clear();
+  }
+
+  /**
+   * Tells whether the subscriber cancelled this subscription.
+   *
+   * @return true if cancelled, false otherwise.
+   */
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Look up how many updates have been published but not yet delivered, for lack of demand.
+   *
+   * @return amount of buffered updates.
+   */
+  public synchronized int getPendingUpdateAmount() {
+    return pendingUpdates.size();
+  }
+
+  /**
+   * Buffers a new update and delivers it if the subscriber signalled demand.
+   *
+   * @param update as the update to forward to the subscriber.
+   */
+  protected void publish(ConversationUpdate update) {
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      pendingUpdates.add(update);
+    }
+    drain();
+  }
+
+  /**
+   * Forwards buffered updates to the subscriber, as long as there is demand. If the subscriber
+   * throws while handling an update, the subscription is cancelled.
+   */
+  private void drain() {
+    while (true) {
+      ConversationUpdate next;
+      synchronized (this) {
+        if (draining || cancelled || demand == 0 || pendingUpdates.isEmpty()) {
+          return;
+        }
+        draining = true;
+        next = pendingUpdates.poll();
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+      }
+      try {
+        subscriber.onNext(next);
+      } catch (RuntimeException e) {
+
+        // A failing subscriber must neither break the conversation nor other subscribers. Its
+        // subscription ends, and it is told why.
+        cancel();
+        try {
+          subscriber.onError(e);
+        } catch (RuntimeException ignored) {
+          // Nothing left to notify, the subscription is cancelled already.
+        }
+      } finally {
+        synchronized (this) {
+          draining = false;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * Wrapper for a single message that was appended to a conversation.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Update object handed to conversation subscribers. The encrypted message is always available,
+ * the plain counterpart is only decrypted if a subscriber actually asks for it.
+ */
+public class ConversationUpdate {
+
+  // The message that was appended to the conversation.
+  private final EncryptedMessage encryptedMessage;
+
+  // Key material needed to lazily decrypt the message.
+  private final OneTimePad oneTimePad;
+
+  // Cached plain message, null until first requested.
+  private PlainMessage plainMessage;
+
+  /**
+   * Constructor for a new update. Only created by the conversation publishing the message.
+   *
+   * @param encryptedMessage as the message appended to the conversation.
+   * @param oneTimePad       as the pad that can decrypt the message.
+   */
+  protected ConversationUpdate(EncryptedMessage encryptedMessage, OneTimePad oneTimePad) {
+    this.encryptedMessage = encryptedMessage;
+    this.oneTimePad = oneTimePad;
+  }
+
+  /**
+   * Getter for the encrypted message that was added to the conversation.
+   *
+   * @return the encrypted message.
+   */
+  public EncryptedMessage getEncryptedMessage() {
+    return encryptedMessage;
+  }
+
+  /**
+   * Decrypts the wrapped message on first access. Subsequent calls return the cached result.
+   *
+   * @return the plain counterpart of the encrypted message.
+   * @throws CryptorException if the message cannot be decrypted.
+   */
+  public synchronized PlainMessage getPlainMessage() throws CryptorException {
+    if (plainMessage == null) {
+      plainMessage = Cryptor.decryptMessage(encryptedMessage, oneTimePad, true);
+    }
+    return plainMessage;
+  }
+}
@@ -22,22 +22,64 @@ public class Cryptor {
    */
   protected static EncryptedMessage encryptMessage(PlainMessage message, OneTimePad pad,
                                                 int startChunkId) throws CryptorException {
+    return encryptMessage(message, pad, startChunkId, PayloadCodec.NONE);
+  }
+
+  /**
+   * Overloaded variant of encryptMessage that encodes the payload prior to encryption. Padding is
+   * applied to the encoded payload. If the encoded payload does not save chunks, the plain payload
+   * is encrypted without codec instead, so no codec ever uses more key material than none.
+   *
+   * @param message      as the message object whose payload to encrypt.
+   * @param pad          as the one time pad to use for encryption
+   * @param startChunkId as the index of the first chunk in the pad to use.
+   * @param codec        as the codec to apply to the payload prior to encryption.
+   * @return a new Encrypted message object with the protected material.
+   * @throws CryptorException in case the message cannot be converted.
+   */
+  protected static EncryptedMessage encryptMessage(PlainMessage message, OneTimePad pad,
+                                                int startChunkId, PayloadCodec codec)
+      throws CryptorException {
+    byte[] payload = message.getPayload();
+    byte[] encodedPayload = codec.encode(payload);
+    if (codec != PayloadCodec.NONE
+        && !PayloadCodec.savesChunks(payload.length, encodedPayload.length, pad.getChunkSize())) {
+      return encryptEncodedPayload(payload, pad, startChunkId, PayloadCodec.NONE);
+    }
+    return encryptEncodedPayload(encodedPayload, pad, startChunkId, codec);
+  }
+
+  /**
+   * Encrypts a payload that has already been encoded with the provided codec. Use this variant if
+   * the amount of chunks needed must be known before the start chunk can be chosen.
+   *
+   * @param encodedPayload as the payload, already encoded with the provided codec.
+   * @param pad            as the one time pad to use for encryption
+   * @param startChunkId   as the index of the first chunk in the pad to use.
+   * @param codec          as the codec that was applied to the payload.
+   * @return a new Encrypted message object with the protected material.
+   * @throws CryptorException in case the message cannot be converted.
+   */
+  protected static EncryptedMessage encryptEncodedPayload(byte[] encodedPayload, OneTimePad pad,
+                                                       int startChunkId, PayloadCodec codec)
+      throws CryptorException {
 
     // Iterate in hops over the needed amount of chunks.
-    byte[][] messageChops = chop(message.getPayload(), pad.getChunkSize());
+    byte[][] messageChops = chop(encodedPayload, pad.getChunkSize());
 
     // Create target array for encrypted messages payload.
     byte[][] encryptedMessageChops = new byte[messageChops.length][];
 
     // encrypt every message chunk and append to list of encrypted messages
+    // Consecutive chops use the chunks the pad's allocation schedules for the author.
     int currentChunkId = startChunkId;
-    int hopSize = pad.getParties().length;
+    ChunkAllocation allocation = pad.getChunkAllocation();
     for (int i = 0; i < messageChops.length; i++) {
       encryptedMessageChops[i] =
-          cryptChunkSizedMessage(messageChops[i], pad.getChunkContent(currentChunkId));
-      currentChunkId += hopSize;
+          cryptChunkSizedMessage(messageChops[i], pad.getVerifiedChunkContent(currentChunkId));
+      currentChunkId = allocation.getNextChunk(currentChunkId, pad.getPartyAmount());
     }
-    return new EncryptedMessage(pad, startChunkId, encryptedMessageChops);
+    return new EncryptedMessage(pad, startChunkId, encryptedMessageChops, codec);
   }
 
   /**
@@ -72,22 +114,78 @@ public class Cryptor {
     for (int i = 0; i < chunksUsed.length; i++) {
       int chunkIndex = chunksUsed[i];
       byte[] encryptedMessageChop = encryptedMessage.getChop(chunkIndex);
-      byte[] cryptoChunk = pad.getChunkContent(chunkIndex);
+      byte[] cryptoChunk = pad.getVerifiedChunkContent(chunkIndex);
       byte[] plainMessageChop = cryptChunkSizedMessage(encryptedMessageChop, cryptoChunk);
       System.arraycopy(plainMessageChop, 0, resultMessage, i * chunkSize, chunkSize);
     }
 
+    // Undo the payload encoding, trailing padding is discarded by the codec
+    resultMessage = encryptedMessage.getPayloadCodec().decode(resultMessage);
+
     // Trim the result if indicated as string payload
     if (text) {
       resultMessage = new String(resultMessage).trim().getBytes();
     }
 
-    int partyId = encryptedMessage.getChunksUsed()[0] % pad.getPartyAmount();
+    int partyId = pad.getChunkAllocation()
+        .getOwnerIndex(encryptedMessage.getStartChunkIndex(), pad.getPartyAmount());
     String author = pad.getParties()[partyId].split("@")[0];
     String machine = pad.getParties()[partyId].split("@")[1];
     return new PlainMessage(author, machine, resultMessage);
   }
 
+  /**
+   * Decrypts a range of bytes of an encrypted message, using only the chunks that cover the range.
+   * Offsets refer to the encrypted payload including its trailing whitespace padding, so the
+   * message spans chop amount times chunk size bytes. Encoded payloads can only be decoded as a
+   * whole, messages with a codec other than NONE are therefore refused.
+   *
+   * @param encryptedMessage as the message to decrypt partially.
+   * @param pad              as the pad that contains the key material needed for decryption.
+   * @param offset           as the position of the first byte to decrypt.
+   * @param length           as the amount of bytes to decrypt.
+   * @return the decrypted bytes of the range.
+   * @throws CryptorException in case the message and pad are not compatible, or the message
+   *                          payload is encoded.
+   */
+  protected static byte[] decryptRange(EncryptedMessage encryptedMessage, OneTimePad pad,
+                                       long offset, int length) throws CryptorException {
+
+    // Verify the provided pad is the right key material, and that the payload was not encoded.
+    if (!encryptedMessage.getOtpHash().equals(pad.getHash())) {
+      throw new CryptorException(
+          "Message cannot be decrypted because the provided key material is not compatible.");
+    }
+    if (encryptedMessage.getPayloadCodec() != PayloadCodec.NONE) {
+      throw new CryptorException("Message with payload codec "
+          + encryptedMessage.getPayloadCodec() + " cannot be decrypted partially.");
+    }
+    int chunkSize = pad.getChunkSize();
+    long messageSize = (long) encryptedMessage.getChopAmount() * chunkSize;
+    if (offset < 0 || length < 0 || offset + length > messageSize) {
+      throw new IllegalArgumentException("Range of " + length + " bytes at offset " + offset
+          + " exceeds the message of " + messageSize + " bytes.");
+    }
+
+    // Every byte is encrypted with the byte at the same position of its chop's chunk.
+    byte[] result = new byte[length];
+    int decrypted = 0;
+    while (decrypted < length) {
+      long position = offset + decrypted;
+      int chopOffset = (int) (position % chunkSize);
+      int amount = Math.min(chunkSize - chopOffset, length - decrypted);
+      int chunkId = encryptedMessage.getChunkIdOfChop((int) (position / chunkSize));
+      byte[] encryptedChop = encryptedMessage.getChopReference(chunkId);
+      byte[] cryptoChunk = pad.getVerifiedChunkContent(chunkId);
+      for (int i = 0; i < amount; i++) {
+        result[decrypted + i] =
+            (byte) (encryptedChop[chopOffset + i] ^ cryptoChunk[chopOffset + i]);
+      }
+      decrypted += amount;
+    }
+    return result;
+  }
+
   /**
    * Cuts a provided byte[] into smaller byte arrays that each have the requested size. The lase
    * chunk is filled up with whitespace bytes, to reach the requested size.
@@ -134,11 +232,9 @@ public class Cryptor {
    * @return a whitespace only byte array.
    */
   protected static byte[] getWhiteSpaceByteArray(int length) {
-    String whitespace = "";
-    for (int i = 0; i < length; i++) {
-      whitespace += " ";
-    }
-    return whitespace.getBytes();
+    byte[] whitespace = new byte[length];
+    Arrays.fill(whitespace, (byte) ' ');
+    return whitespace;
   }
 
   /**
@@ -170,6 +266,22 @@ public class Cryptor {
     return convertedMessage;
   }
 
+  /**
+   * Applies XOR in place, without allocating. Bulk encryption of files uses this variant, the loop
+   * is simple enough for the JIT compiler to vectorize.
+   *
+   * @param data       as the bytes to convert in place.
+   * @param dataOffset as the position of the first byte to convert.
+   * @param key        as the key material.
+   * @param keyOffset  as the position of the first key byte to use.
+   * @param length     as the amount of bytes to convert.
+   */
+  static void xorInPlace(byte[] data, int dataOffset, byte[] key, int keyOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      data[dataOffset + i] ^= key[keyOffset + i];
+    }
+  }
+
   /**
    * Helper method to pad a String with trailing whitespaces. Can be used to adjust the length of a
    * plain String message that is shorter than a chunk, prior to calling the cryptor method.
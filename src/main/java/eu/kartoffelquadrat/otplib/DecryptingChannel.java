@@ -0,0 +1,107 @@
+/**
+ * Read-only channel view on the plain payload of an encrypted message.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Seekable channel that decrypts an encrypted message on demand. Every read only decrypts the
+ * chunks covering the bytes read, so previews and resumed downloads of large messages never pay
+ * for decrypting the entire message. The channel spans the padded payload, see
+ * Cryptor.decryptRange.
+ */
+final class DecryptingChannel implements SeekableByteChannel {
+
+  // Upper bound of bytes decrypted per read, to keep temporary arrays small.
+  private static final int MAX_READ_BYTES = 64 * 1024;
+
+  private final EncryptedMessage encryptedMessage;
+  private final OneTimePad pad;
+  private final long size;
+  private long position;
+  private boolean open = true;
+
+  /**
+   * Creates a channel positioned at the start of the message.
+   *
+   * @param encryptedMessage as the message to decrypt.
+   * @param pad              as the pad the message was encrypted with.
+   */
+  DecryptingChannel(EncryptedMessage encryptedMessage, OneTimePad pad) {
+    this.encryptedMessage = encryptedMessage;
+    this.pad = pad;
+    this.size = (long) encryptedMessage.getChopAmount() * encryptedMessage.getChopSize();
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (position >= size) {
+      return -1;
+    }
+    int length = (int) Math.min(Math.min(dst.remaining(), MAX_READ_BYTES), size - position);
+    try {
+      dst.put(Cryptor.decryptRange(encryptedMessage, pad, position, length));
+    } catch (CryptorException e) {
+      throw new IOException("Message range cannot be decrypted: " + e.getMessage());
+    }
+    position += length;
+    return length;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Position must not be negative.");
+    }
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public synchronized long size() throws IOException {
+    ensureOpen();
+    return size;
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public synchronized void close() {
+    open = false;
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
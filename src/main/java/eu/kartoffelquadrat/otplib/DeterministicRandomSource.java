@@ -0,0 +1,52 @@
+/**
+ * Reproducible random source for benchmarks and simulations. NOT SECURE.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.SplittableRandom;
+
+/**
+ * INSECURE random source that produces the same bytes for the same seed. Pads generated from it
+ * are predictable by anyone who knows or guesses the seed, and must never protect real messages.
+ * It exists for benchmarks, simulations and tests, which need reproducible pads and fast
+ * generation. Pads are generated from it with OneTimePadGenerator.generateInsecurePad only,
+ * which marks them as insecure.
+ */
+public class DeterministicRandomSource implements RandomSource {
+
+  private final SplittableRandom random;
+
+  /**
+   * Creates a source producing a fixed series of bytes.
+   *
+   * @param seed as the seed that determines all produced bytes.
+   */
+  public DeterministicRandomSource(long seed) {
+    this.random = new SplittableRandom(seed);
+  }
+
+  @Override
+  public synchronized void nextBytes(byte[] target) {
+    int i = 0;
+    while (i < target.length) {
+      long bits = random.nextLong();
+      for (int j = 0; j < 8 && i < target.length; j++) {
+        target[i++] = (byte) bits;
+        bits >>>= 8;
+      }
+    }
+  }
+
+  /**
+   * Deterministic sources are never secure.
+   *
+   * @return false.
+   */
+  @Override
+  public boolean isSecure() {
+    return false;
+  }
+}
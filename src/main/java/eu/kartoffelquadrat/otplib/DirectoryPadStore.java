@@ -0,0 +1,83 @@
+/**
+ * Pad store backed by a directory of pad files.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * Stores every pad in a file named after its hash, as written by the batch command line tool. New
+ * pads are written in binary form, existing files ending on ".json" are read as well. Storing a pad
+ * that already has a file replaces that file, see SerializationTools.rewriteBinaryPadFile. Hashes
+ * are checked to be upper case hex MD5 digests before any file name is derived from them, so
+ * hashes received from other parties cannot address files outside the directory.
+ */
+public class DirectoryPadStore implements PadStore {
+
+  // Form of pad hashes, see OneTimePad.getHash.
+  private static final Pattern PAD_HASH = Pattern.compile("[0-9A-F]{32}");
+
+  private final Path directory;
+
+  /**
+   * Creates a store on an existing directory.
+   *
+   * @param directory as the directory holding the pad files.
+   */
+  public DirectoryPadStore(Path directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public OneTimePad load(String padHash) throws IOException {
+    Path padFile = findPadFile(padHash);
+    if (padFile == null) {
+      throw new NoSuchFileException(directory.resolve(padHash + ".pad").toString());
+    }
+    OneTimePad pad = SerializationTools.readPadFile(padFile);
+    if (!pad.getHash().equals(padHash)) {
+      throw new IOException("Pad file " + padFile + " holds pad " + pad.getHash() + ".");
+    }
+    return pad;
+  }
+
+  @Override
+  public void store(OneTimePad pad) throws IOException {
+    Path padFile = findPadFile(pad.getHash());
+    if (padFile == null) {
+      SerializationTools.writePadFile(pad, directory.resolve(pad.getHash() + ".pad"));
+    } else {
+      // Binary content is detected on load, so replaced JSON files keep their name
+      SerializationTools.rewriteBinaryPadFile(pad, padFile);
+    }
+  }
+
+  /**
+   * Helper method to find the existing file of a pad.
+   *
+   * @param padHash as the hash of the pad.
+   * @return the binary or JSON file of the pad, or null if there is none.
+   * @throws IOException if the hash is malformed.
+   */
+  private Path findPadFile(String padHash) throws IOException {
+    if (padHash == null || !PAD_HASH.matcher(padHash).matches()) {
+      throw new IOException("Malformed pad hash: " + padHash);
+    }
+    Path padFile = directory.resolve(padHash + ".pad");
+    if (Files.exists(padFile)) {
+      return padFile;
+    }
+    padFile = directory.resolve(padHash + ".json");
+    if (Files.exists(padFile)) {
+      return padFile;
+    }
+    return null;
+  }
+}
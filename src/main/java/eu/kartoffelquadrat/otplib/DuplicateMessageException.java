@@ -0,0 +1,22 @@
+/**
+ * Custom exception to indicate a message was received twice.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * This exception is thrown if an encrypted message is added to a conversation that already holds a
+ * message with the very same chunks, and the conversation is set to reject duplicates.
+ */
+public class DuplicateMessageException extends CryptorException {
+  /**
+   * Constructor for custom exception.
+   *
+   * @param cause as descritive text inticating the reason for exception.
+   */
+  public DuplicateMessageException(String cause) {
+    super(cause);
+  }
+}
@@ -0,0 +1,24 @@
+/**
+ * Options for handling encrypted messages that are received more than once.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Tells a conversation what to do with an encrypted message that covers exactly the chunks of a
+ * message already in its history.
+ */
+public enum DuplicatePolicy {
+
+  /**
+   * Duplicates are decrypted and returned, but not added to the history a second time.
+   */
+  IGNORE,
+
+  /**
+   * Duplicates are refused with a DuplicateMessageException.
+   */
+  REJECT
+}
@@ -2,7 +2,11 @@ package eu.kartoffelquadrat.otplib;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 /**
@@ -10,7 +14,7 @@ import org.apache.commons.codec.binary.Hex;
  * indicate the otp-chunk that has been used for encryption as well as the resulting byte array for
  * he corresponding chunk.
  */
-public class EncryptedMessage implements Serializable {
+public class EncryptedMessage implements Serializable, MemoryAccountable {
 
   // Name reference to the one time pad used for encryption.
 
@@ -38,6 +42,13 @@ public class EncryptedMessage implements Serializable {
   // Stores the amount of digits needed to index all the pads chunks.
   private final int chunkIndexDigits;
 
+  // Codec applied to the payload prior to encryption. Null for messages of older library versions,
+  // which were never encoded.
+  private final PayloadCodec payloadCodec;
+
+  // Chunk ids of the chops by position, built on the first positional access.
+  private transient volatile int[] chunkSchedule;
+
   /**
    * Constructor for creation of an encrypted message bundle.
    *
@@ -46,24 +57,105 @@ public class EncryptedMessage implements Serializable {
    * @param chops           as the actual encrypted message as 2D byte array.
    */
   protected EncryptedMessage(OneTimePad pad, int startChunkIndex, byte[][] chops) {
+    this(pad, startChunkIndex, chops, PayloadCodec.NONE);
+  }
 
-    // Distance between two otp chunks used for consecutive message chops. This equals the amount
-    // of parties used in the pad.
-    int chunkHop = pad.getParties().length;
+  /**
+   * Constructor for creation of an encrypted message bundle with encoded payload.
+   *
+   * @param pad             as the pad that was used for encryption.
+   * @param startChunkIndex as the first chunk id that was used for encryption.
+   * @param chops           as the actual encrypted message as 2D byte array.
+   * @param payloadCodec    as the codec applied to the payload prior to encryption.
+   */
+  protected EncryptedMessage(OneTimePad pad, int startChunkIndex, byte[][] chops,
+                             PayloadCodec payloadCodec) {
 
-    // Store hash of oth used
-    otpHash = pad.getHash();
+    // Consecutive message chops use the chunks the pad's allocation schedules for the author.
+    // Chunk ids are never padded to more digits than needed to index all chunks.
+    this(pad.getHash(), Integer.toString(pad.getChunkAmount()).length(),
+        scheduleChunks(pad, startChunkIndex, chops.length), chops, payloadCodec);
+  }
 
-    // We will never need more padding there are digits than there are needed to index the chunks.
-    chunkIndexDigits = Integer.toString(pad.getChunkAmount()).length();
+  /**
+   * Constructor for restoring an encrypted message from its wire representation, without access to
+   * the one time pad.
+   *
+   * @param otpHash          as the hash of the pad that was used for encryption.
+   * @param chunkIndexDigits as the amount of digits needed to index all chunks of the pad.
+   * @param startChunkIndex  as the first chunk id that was used for encryption.
+   * @param chunkHop         as the distance between the chunks used for consecutive chops.
+   * @param chops            as the actual encrypted message as 2D byte array.
+   * @param payloadCodec     as the codec applied to the payload prior to encryption.
+   */
+  protected EncryptedMessage(String otpHash, int chunkIndexDigits, int startChunkIndex,
+                             int chunkHop, byte[][] chops, PayloadCodec payloadCodec) {
+    this(otpHash, chunkIndexDigits, scheduleChunks(startChunkIndex, chunkHop, chops.length), chops,
+        payloadCodec);
+  }
+
+  /**
+   * Constructor for restoring an encrypted message whose chunks are not evenly spaced, from its
+   * wire representation.
+   *
+   * @param otpHash            as the hash of the pad that was used for encryption.
+   * @param chunkIndexDigits   as the amount of digits needed to index all chunks of the pad.
+   * @param chunkIds           as the chunk ids used for the chops, in order.
+   * @param followUpChunkIndex as the chunk id the author uses next.
+   * @param chops              as the actual encrypted message as 2D byte array.
+   * @param payloadCodec       as the codec applied to the payload prior to encryption.
+   */
+  protected EncryptedMessage(String otpHash, int chunkIndexDigits, int[] chunkIds,
+                             int followUpChunkIndex, byte[][] chops, PayloadCodec payloadCodec) {
+    this(otpHash, chunkIndexDigits, appendFollowUp(chunkIds, followUpChunkIndex), chops,
+        payloadCodec);
+  }
+
+  /**
+   * Common constructor of all variants.
+   *
+   * @param otpHash          as the hash of the pad that was used for encryption.
+   * @param chunkIndexDigits as the amount of digits needed to index all chunks of the pad.
+   * @param schedule         as the chunk ids used for the chops, followed by the follow-up id.
+   * @param chops            as the actual encrypted message as 2D byte array.
+   * @param payloadCodec     as the codec applied to the payload prior to encryption.
+   */
+  private EncryptedMessage(String otpHash, int chunkIndexDigits, int[] schedule, byte[][] chops,
+                           PayloadCodec payloadCodec) {
+
+    this.payloadCodec = payloadCodec;
+    this.otpHash = otpHash;
+    this.chunkIndexDigits = chunkIndexDigits;
 
     // Store received chops in internal map
-    int currentChunkIndex = startChunkIndex;
     for (int i = 0; i < chops.length; i++) {
-      choppedMessage.put(currentChunkIndex, chops[i]);
-      currentChunkIndex += chunkHop;
+      choppedMessage.put(schedule[i], chops[i]);
+    }
+    followUpChunkIndex = schedule[chops.length];
+  }
+
+  private static int[] scheduleChunks(OneTimePad pad, int startChunkIndex, int chopAmount) {
+    ChunkAllocation allocation = pad.getChunkAllocation();
+    int[] schedule = new int[chopAmount + 1];
+    schedule[0] = startChunkIndex;
+    for (int i = 1; i < schedule.length; i++) {
+      schedule[i] = allocation.getNextChunk(schedule[i - 1], pad.getPartyAmount());
     }
-    followUpChunkIndex = currentChunkIndex;
+    return schedule;
+  }
+
+  private static int[] scheduleChunks(int startChunkIndex, int chunkHop, int chopAmount) {
+    int[] schedule = new int[chopAmount + 1];
+    for (int i = 0; i < schedule.length; i++) {
+      schedule[i] = startChunkIndex + i * chunkHop;
+    }
+    return schedule;
+  }
+
+  private static int[] appendFollowUp(int[] chunkIds, int followUpChunkIndex) {
+    int[] schedule = Arrays.copyOf(chunkIds, chunkIds.length + 1);
+    schedule[chunkIds.length] = followUpChunkIndex;
+    return schedule;
   }
 
   /**
@@ -80,6 +172,15 @@ public class EncryptedMessage implements Serializable {
     return otpHash.substring(0, 6) + "-" + paddedChunkId + "-";
   }
 
+  /**
+   * Look up the codec that was applied to the payload prior to encryption.
+   *
+   * @return the payload codec of this message.
+   */
+  public PayloadCodec getPayloadCodec() {
+    return payloadCodec == null ? PayloadCodec.NONE : payloadCodec;
+  }
+
   /**
    * Public access method to retrieve the amount of chops this encrypted message consists of.
    *
@@ -98,6 +199,15 @@ public class EncryptedMessage implements Serializable {
     return choppedMessage.keySet().stream().mapToInt(Integer::intValue).toArray();
   }
 
+  /**
+   * Returns the first chunk id used for encryption.
+   *
+   * @return the lowest chunk id used for encryption.
+   */
+  protected int getStartChunkIndex() {
+    return choppedMessage.keySet().iterator().next();
+  }
+
   /**
    * Public access methof to retireve a copy of the byte array representing a singe encrypted
    * message chop.
@@ -110,19 +220,114 @@ public class EncryptedMessage implements Serializable {
     return Arrays.copyOf(targetChop, targetChop.length);
   }
 
+  /**
+   * Looks up the chunk id used for the chop at a given position of the message.
+   *
+   * @param chopPosition as the position of the chop, starting at zero.
+   * @return the chunk id used to encrypt that chop.
+   */
+  int getChunkIdOfChop(int chopPosition) {
+    int[] schedule = chunkSchedule;
+    if (schedule == null) {
+      schedule = getChunksUsed();
+      chunkSchedule = schedule;
+    }
+    return schedule[chopPosition];
+  }
+
+  /**
+   * Internal access to a chop without defensive copy. Callers must not modify the result.
+   *
+   * @param chopIndex as the index of the mssage chop to receive.
+   * @return the stored byte array.
+   */
+  byte[] getChopReference(int chopIndex) {
+    return choppedMessage.get(chopIndex);
+  }
+
+  /**
+   * Look up the size of the individual chops, which equals the chunk size of the pad.
+   *
+   * @return amount of bytes per chop.
+   */
+  protected int getChopSize() {
+    return choppedMessage.values().iterator().next().length;
+  }
+
+  /**
+   * Look up the amount of digits used for chunk ids in the hex serialization.
+   *
+   * @return amount of digits needed to index all chunks of the pad.
+   */
+  protected int getChunkIndexDigits() {
+    return chunkIndexDigits;
+  }
+
+  /**
+   * Serializes the encrypted message to a compact binary representation. A single header carries
+   * pad fingerprint, chunk schedule and codec, followed by the ciphertext as contiguous body. This
+   * is less than half the size of the hex serialization.
+   *
+   * @return binary serialized version of encrypted message.
+   */
+  public byte[] serializeToBytes() {
+    return CompactMessageFormat.encode(this);
+  }
+
+  /**
+   * Base64 variant of the compact binary serialization, for channels that only transport text.
+   *
+   * @return base64 serialized version of encrypted message.
+   */
+  public String serializeToBase64() {
+    return Base64.getEncoder().encodeToString(serializeToBytes());
+  }
+
+  /**
+   * Restores an encrypted message from its compact binary serialization.
+   *
+   * @param serializedMessage as the output of serializeToBytes.
+   * @return the encrypted message.
+   * @throws CryptorException if the provided bytes are not a valid serialized message.
+   */
+  public static EncryptedMessage deserializeFromBytes(byte[] serializedMessage)
+      throws CryptorException {
+    return CompactMessageFormat.decode(serializedMessage);
+  }
+
+  /**
+   * Restores an encrypted message from its base64 serialization.
+   *
+   * @param serializedMessage as the output of serializeToBase64.
+   * @return the encrypted message.
+   * @throws CryptorException if the provided string is not a valid serialized message.
+   */
+  public static EncryptedMessage deserializeFromBase64(String serializedMessage)
+      throws CryptorException {
+    try {
+      return deserializeFromBytes(Base64.getDecoder().decode(serializedMessage));
+    } catch (IllegalArgumentException e) {
+      throw new CryptorException("Provided string is not base64 encoded.");
+    }
+  }
+
   /**
    * Utils method that serializes an encrypted to a printable string, conaining only ASCII
-   * characters. The outcome can be safely transmitted over insecure channels.
+   * characters. The outcome can be safely transmitted over insecure channels. Lines of messages
+   * with encoded payload name the codec between chunk id and chop.
    *
    * @return ascii serialized version of encrypted message.
    */
   public String serializeToHex() {
 
     StringBuilder hexSerializationBuilder = new StringBuilder("");
+    String codecMarker =
+        getPayloadCodec() == PayloadCodec.NONE ? "" : getPayloadCodec().name() + "-";
 
     // for each chop, append prefix + serialization + newline
     for (int chopKey : choppedMessage.keySet()) {
       hexSerializationBuilder.append(getPrefix(chopKey, chunkIndexDigits));
+      hexSerializationBuilder.append(codecMarker);
       String hexSerializedChop = Hex.encodeHexString(choppedMessage.get(chopKey)).toUpperCase();
       hexSerializationBuilder.append(hexSerializedChop);
       hexSerializationBuilder.append("\n");
@@ -131,6 +336,60 @@ public class EncryptedMessage implements Serializable {
     return hexSerializationBuilder.toString();
   }
 
+  /**
+   * Restores an encrypted message from its hex serialization. Lines only carry the first six
+   * characters of the pad hash, so the pad must be provided. Lines without codec marker belong to
+   * messages encrypted without codec.
+   *
+   * @param serializedMessage as the output of serializeToHex.
+   * @param pad               as the pad the message was encrypted with.
+   * @return the encrypted message.
+   * @throws OneTimePadMissmatchException if the lines do not belong to the provided pad.
+   * @throws CryptorException             if the provided string is not a hex serialized message.
+   */
+  public static EncryptedMessage deserializeFromHex(String serializedMessage, OneTimePad pad)
+      throws CryptorException {
+    String[] lines = serializedMessage.trim().split("\n");
+    int[] chunkIds = new int[lines.length];
+    byte[][] chops = new byte[lines.length][];
+    int chunkIndexDigits = 0;
+    PayloadCodec payloadCodec = null;
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i].trim();
+      int separator = line.indexOf('-', 7);
+      if (line.indexOf('-') != 6 || separator < 0) {
+        throw new CryptorException("Line " + i + " is not a hex serialized message chop.");
+      }
+      if (!line.regionMatches(0, pad.getHash(), 0, 6)) {
+        throw new OneTimePadMissmatchException(
+            "Hex serialized message was not encrypted with the provided pad.");
+      }
+
+      // An optional codec marker follows the chunk id, all lines of a message must agree on it.
+      int codecSeparator = line.indexOf('-', separator + 1);
+      PayloadCodec lineCodec = PayloadCodec.NONE;
+      try {
+        if (codecSeparator >= 0) {
+          lineCodec = PayloadCodec.valueOf(line.substring(separator + 1, codecSeparator));
+        }
+        chunkIds[i] = Integer.parseInt(line.substring(7, separator));
+        chops[i] = Hex.decodeHex(
+            line.substring(Math.max(separator, codecSeparator) + 1).toCharArray());
+      } catch (IllegalArgumentException | DecoderException e) {
+        throw new CryptorException("Line " + i + " is not a hex serialized message chop.");
+      }
+      if (payloadCodec != null && payloadCodec != lineCodec) {
+        throw new CryptorException("Line " + i + " names a different codec than line 0.");
+      }
+      payloadCodec = lineCodec;
+      chunkIndexDigits = separator - 7;
+    }
+    int followUpChunkIndex = pad.getChunkAllocation()
+        .getNextChunk(chunkIds[lines.length - 1], pad.getPartyAmount());
+    return new EncryptedMessage(pad.getHash(), chunkIndexDigits, chunkIds, followUpChunkIndex,
+        chops, payloadCodec);
+  }
+
   /**
    * Helper method to tell which chunk id should be used as startChunkId for the next message
    * encryption call to the cryptor class.
@@ -140,4 +399,37 @@ public class EncryptedMessage implements Serializable {
   protected int getFollowUpChunkIndex() {
     return followUpChunkIndex;
   }
+
+  /**
+   * Estimates the heap retained by this message. Besides the encrypted chops, every chop costs an
+   * entry of the chop map and, for chunk ids beyond the integer cache, a boxed key.
+   *
+   * @return the estimated footprint of chops, chop index and metadata.
+   */
+  @Override
+  public MemoryFootprint getMemoryFootprint() {
+    Map<String, Long> heap = new LinkedHashMap<>();
+    long chopBytes = 0;
+    long boxedKeyBytes = 0;
+    for (Map.Entry<Integer, byte[]> chop : choppedMessage.entrySet()) {
+      chopBytes += MemoryFootprint.arrayBytes(chop.getValue().length, 1);
+      if (chop.getKey() > 127) {
+        boxedKeyBytes += MemoryFootprint.objectBytes(4);
+      }
+    }
+    heap.put("chops", chopBytes);
+
+    // Hash tables start with 16 buckets and double whenever they are filled to three quarters.
+    int buckets = 16;
+    while (choppedMessage.size() > buckets * 3 / 4) {
+      buckets *= 2;
+    }
+    heap.put("chopIndex", MemoryFootprint.objectBytes(6 * MemoryFootprint.REFERENCE + 4 * 4 + 1)
+        + MemoryFootprint.arrayBytes(buckets, MemoryFootprint.REFERENCE)
+        + choppedMessage.size() * MemoryFootprint.objectBytes(4 + 5 * MemoryFootprint.REFERENCE)
+        + boxedKeyBytes);
+    heap.put("metadata", MemoryFootprint.objectBytes(3 * MemoryFootprint.REFERENCE + 2 * 4)
+        + MemoryFootprint.stringBytes(otpHash));
+    return new MemoryFootprint(heap, Collections.emptyMap());
+  }
 }
@@ -0,0 +1,316 @@
+/**
+ * Parallel encryption and decryption of large files.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts files to files, using a consecutive range of chunks reserved up front. Byte i of the
+ * file is encrypted with byte i modulo chunk size of the chunk at position i divided by chunk size
+ * of the range, so the file splits into segments without any dependency between them. Segments are
+ * processed by a fork join pool, using positional reads and writes on shared file channels, and
+ * XOR in place. Encryption therefore scales with the amount of cores and the disk bandwidth.
+ *
+ * <p>Encrypted files start with a header naming pad, first chunk and plain size, followed by the
+ * encrypted bytes. Unlike messages, files are not padded to whole chunks.
+ */
+public class FileCryptor {
+
+  // Identifies files written by this class, "OTPF" in ASCII.
+  private static final int FILE_MAGIC = 0x4F545046;
+
+  // Version of the file format.
+  private static final byte FILE_VERSION = 1;
+
+  // Targeted amount of bytes per segment. Segments always cover whole chunks.
+  private static final int SEGMENT_BYTES = 1024 * 1024;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates a file cryptor that processes segments on the common fork join pool.
+   */
+  public FileCryptor() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a file cryptor that processes segments on the provided pool.
+   *
+   * @param pool as the pool to process segments on.
+   */
+  public FileCryptor(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Encrypts a file on behalf of the party of a conversation. All chunks needed are reserved from
+   * the conversation before the first byte is encrypted, see Conversation.reserveChunks. The pad
+   * must therefore have a chunk reservation attached to the conversation.
+   *
+   * @param conversation as the conversation whose party encrypts the file.
+   * @param source       as the plain file.
+   * @param target       as the encrypted file to create or overwrite.
+   * @throws IOException      if one of the files cannot be accessed.
+   * @throws CryptorException if the conversation cannot provide enough chunks, or has no chunk
+   *                          reservation for them.
+   */
+  public void encrypt(Conversation conversation, Path source, Path target)
+      throws IOException, CryptorException {
+    long plainSize = Files.size(source);
+
+    // Reserving may roll over to a successor pad of another chunk size. Reserve again until the
+    // range suffices for the pad it was reserved on.
+    int chunkAmount = getChunkAmount(plainSize, conversation.getCurrentPad().getChunkSize());
+    int startChunk = conversation.reserveChunks(chunkAmount);
+    OneTimePad pad = conversation.getCurrentPad();
+    while (getChunkAmount(plainSize, pad.getChunkSize()) > chunkAmount) {
+      chunkAmount = getChunkAmount(plainSize, pad.getChunkSize());
+      startChunk = conversation.reserveChunks(chunkAmount);
+      pad = conversation.getCurrentPad();
+    }
+
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      byte[] hash = pad.getHash().getBytes(StandardCharsets.UTF_8);
+      ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + hash.length + 4 + 8);
+      header.putInt(FILE_MAGIC).put(FILE_VERSION).putShort((short) hash.length).put(hash)
+          .putInt(startChunk).putLong(plainSize).flip();
+      writeFully(out, header, 0);
+      transform(pad, startChunk, in, 0, out, header.capacity(), plainSize);
+    }
+  }
+
+  /**
+   * Decrypts a file encrypted by any party of a conversation. The pad is looked up in the
+   * conversation's pad chain.
+   *
+   * @param conversation as a conversation holding the pad the file was encrypted with.
+   * @param source       as the encrypted file.
+   * @param target       as the plain file to create or overwrite.
+   * @throws IOException                  if one of the files cannot be accessed, or the source is
+   *                                      no encrypted file or names a chunk outside the pad.
+   * @throws OneTimePadMissmatchException if the file was encrypted with a pad outside the chain.
+   * @throws CryptorException             if the chunks of the file are not available.
+   */
+  public void decrypt(Conversation conversation, Path source, Path target)
+      throws IOException, CryptorException {
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+
+      // Header fields up to the length of the pad hash, then the hash and the remaining fields.
+      ByteBuffer prefix = ByteBuffer.allocate(4 + 1 + 2);
+      readFully(in, prefix, 0);
+      prefix.flip();
+      if (prefix.getInt() != FILE_MAGIC || prefix.get() != FILE_VERSION) {
+        throw new IOException("File " + source + " is no encrypted file of a supported version.");
+      }
+      ByteBuffer rest = ByteBuffer.allocate(prefix.getShort() + 4 + 8);
+      readFully(in, rest, prefix.capacity());
+      rest.flip();
+      byte[] hash = new byte[rest.capacity() - 4 - 8];
+      rest.get(hash);
+      int startChunk = rest.getInt();
+      long plainSize = rest.getLong();
+      long headerSize = prefix.capacity() + rest.capacity();
+      if (in.size() - headerSize != plainSize) {
+        throw new IOException("File " + source + " does not hold " + plainSize + " bytes.");
+      }
+
+      OneTimePad pad = findPad(conversation, new String(hash, StandardCharsets.UTF_8));
+      if (startChunk < 0 || startChunk >= pad.getChunkAmount()) {
+        throw new IOException("File " + source + " starts at chunk " + startChunk
+            + ", which is not part of the pad.");
+      }
+      try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        transform(pad, startChunk, in, headerSize, out, 0, plainSize);
+      }
+    }
+  }
+
+  /**
+   * Helper method to determine how many chunks a file of a given size needs. Empty files still use
+   * one chunk, so every encrypted file names a valid range.
+   *
+   * @param size      as the amount of bytes to encrypt.
+   * @param chunkSize as the amount of bytes per chunk.
+   * @return the amount of chunks needed.
+   * @throws OutOfChunksException if the file exceeds the chunks any pad can index.
+   */
+  private static int getChunkAmount(long size, int chunkSize) throws OutOfChunksException {
+    long chunkAmount = Math.max(1, (size + chunkSize - 1) / chunkSize);
+    if (chunkAmount > Integer.MAX_VALUE) {
+      throw new OutOfChunksException("File of " + size + " bytes exceeds any pad.");
+    }
+    return (int) chunkAmount;
+  }
+
+  private static OneTimePad findPad(Conversation conversation, String padHash)
+      throws OneTimePadMissmatchException {
+    for (OneTimePad pad : conversation.getPadChain()) {
+      if (pad.getHash().equals(padHash)) {
+        return pad;
+      }
+    }
+    throw new OneTimePadMissmatchException(
+        "File was encrypted with pad " + padHash + ", which is not part of the conversation.");
+  }
+
+  /**
+   * Helper method to encrypt or decrypt a range of bytes from one channel to another, segment by
+   * segment on the pool.
+   *
+   * @param pad        as the pad holding the chunks.
+   * @param startChunk as the chunk used for the first byte.
+   * @param in         as the channel to read from.
+   * @param inOffset   as the position of the first byte to read.
+   * @param out        as the channel to write to.
+   * @param outOffset  as the position of the first byte to write.
+   * @param size       as the amount of bytes to transform.
+   * @throws IOException      if reading or writing failed.
+   * @throws CryptorException if a chunk is not available or corrupted.
+   */
+  private void transform(OneTimePad pad, int startChunk, FileChannel in, long inOffset,
+                         FileChannel out, long outOffset, long size)
+      throws IOException, CryptorException {
+    Transfer transfer = new Transfer(pad, startChunk, in, inOffset, out, outOffset, size);
+    try {
+      pool.invoke(new SegmentTask(transfer, 0, transfer.segmentAmount));
+    } catch (SegmentFailure e) {
+
+      // The pool may wrap the failure of a worker once more, unwrap to the original cause.
+      Throwable cause = e.getCause();
+      while (cause instanceof SegmentFailure) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof CryptorException) {
+        throw (CryptorException) cause;
+      }
+      throw e;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("File ended before " + buffer.capacity() + " bytes were read.");
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  /**
+   * Shared parameters of a transformation and the work of a single segment.
+   */
+  private static final class Transfer {
+    final OneTimePad pad;
+    final ChunkAllocation allocation;
+    final int partyAmount;
+    final int ownerIndex;
+    final int startSequence;
+    final int chunkSize;
+    final int segmentBytes;
+    final long segmentAmount;
+    final FileChannel in;
+    final long inOffset;
+    final FileChannel out;
+    final long outOffset;
+    final long size;
+
+    Transfer(OneTimePad pad, int startChunk, FileChannel in, long inOffset, FileChannel out,
+             long outOffset, long size) {
+      this.pad = pad;
+      this.allocation = pad.getChunkAllocation();
+      this.partyAmount = pad.getPartyAmount();
+      this.ownerIndex = allocation.getOwnerIndex(startChunk, partyAmount);
+      this.startSequence = allocation.getSequenceIndex(startChunk, partyAmount);
+      this.chunkSize = pad.getChunkSize();
+      this.segmentBytes = Math.max(1, SEGMENT_BYTES / chunkSize) * chunkSize;
+      this.segmentAmount = (size + segmentBytes - 1) / segmentBytes;
+      this.in = in;
+      this.inOffset = inOffset;
+      this.out = out;
+      this.outOffset = outOffset;
+      this.size = size;
+    }
+
+    void process(long segment) throws IOException, CryptorException {
+      long offset = segment * segmentBytes;
+      int length = (int) Math.min(segmentBytes, size - offset);
+      byte[] data = new byte[length];
+      readFully(in, ByteBuffer.wrap(data), inOffset + offset);
+      int sequenceIndex = startSequence + (int) (offset / chunkSize);
+      for (int done = 0; done < length; done += chunkSize) {
+        int chunkId = allocation.getChunkId(ownerIndex, sequenceIndex++, partyAmount);
+        Cryptor.xorInPlace(data, done, pad.getVerifiedChunkReference(chunkId), 0,
+            Math.min(chunkSize, length - done));
+      }
+      writeFully(out, ByteBuffer.wrap(data), outOffset + offset);
+    }
+  }
+
+  /**
+   * Splits a range of segments in halves until single segments remain.
+   */
+  private static final class SegmentTask extends RecursiveAction {
+    private final Transfer transfer;
+    private final long fromSegment;
+    private final long toSegment;
+
+    SegmentTask(Transfer transfer, long fromSegment, long toSegment) {
+      this.transfer = transfer;
+      this.fromSegment = fromSegment;
+      this.toSegment = toSegment;
+    }
+
+    @Override
+    protected void compute() {
+      if (toSegment - fromSegment <= 1) {
+        for (long segment = fromSegment; segment < toSegment; segment++) {
+          try {
+            transfer.process(segment);
+          } catch (IOException | CryptorException e) {
+            throw new SegmentFailure(e);
+          }
+        }
+        return;
+      }
+      long middle = (fromSegment + toSegment) >>> 1;
+      invokeAll(new SegmentTask(transfer, fromSegment, middle),
+          new SegmentTask(transfer, middle, toSegment));
+    }
+  }
+
+  /**
+   * Carries a checked failure of a segment out of the pool.
+   */
+  private static final class SegmentFailure extends RuntimeException {
+    SegmentFailure(Throwable cause) {
+      super(cause);
+    }
+  }
+}
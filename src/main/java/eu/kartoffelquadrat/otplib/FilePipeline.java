@@ -0,0 +1,200 @@
+/**
+ * Pipelined file transformation for the command line tool.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a series of files, transforms their content and writes the results, with reading, CPU
+ * work and writing overlapping. One reader thread feeds a bounded queue, several worker threads
+ * transform, and one writer thread drains a second bounded queue. Files are read and transformed
+ * as a whole, the bounds limit the amount of files held in memory, no matter how many files are
+ * processed. Memory consumption therefore scales with the queue capacities times the size of the
+ * largest file.
+ */
+final class FilePipeline {
+
+  // Marks the end of the job stream. Compared by reference.
+  private static final Job END = new Job(null, null);
+
+  private final int workerAmount;
+  private final int queueCapacity;
+
+  // First failure of any stage. Once set, remaining jobs are skipped.
+  private volatile Throwable failure;
+
+  /**
+   * Transformation applied to the content of every file.
+   */
+  interface Transformation {
+
+    /**
+     * Transforms the content of a file.
+     *
+     * @param content as the content of the source file.
+     * @return the content of the target file.
+     * @throws IOException      if state accompanying the transformation cannot be persisted.
+     * @throws CryptorException if the content cannot be transformed.
+     */
+    byte[] apply(byte[] content) throws IOException, CryptorException;
+  }
+
+  /**
+   * A single file to transform. The content is replaced as the job passes the stages.
+   */
+  static final class Job {
+    private final Path source;
+    private final Path target;
+    private byte[] content;
+
+    Job(Path source, Path target) {
+      this.source = source;
+      this.target = target;
+    }
+  }
+
+  /**
+   * Creates a pipeline.
+   *
+   * @param workerAmount  as the amount of threads applying the transformation.
+   * @param queueCapacity as the maximum amount of files waiting between two stages.
+   */
+  FilePipeline(int workerAmount, int queueCapacity) {
+    this.workerAmount = workerAmount;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Runs all jobs through the pipeline and blocks until the last file is written. Target
+   * directories are created as needed.
+   *
+   * @param jobs           as the files to transform. Iterated by the reader thread only.
+   * @param transformation as the transformation to apply.
+   * @return the amount of files written.
+   * @throws IOException          if a file cannot be read or written.
+   * @throws CryptorException     if the transformation failed for a file.
+   * @throws InterruptedException if interrupted while waiting for the pipeline.
+   */
+  int run(Iterator<Job> jobs, Transformation transformation)
+      throws IOException, CryptorException, InterruptedException {
+
+    BlockingQueue<Job> readQueue = new ArrayBlockingQueue<>(queueCapacity);
+    BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+    int[] written = new int[1];
+
+    Thread reader = new Thread(() -> read(jobs, readQueue), "otplib-pipeline-reader");
+    final Thread writer =
+        new Thread(() -> written[0] = write(writeQueue), "otplib-pipeline-writer");
+    Thread[] workers = new Thread[workerAmount];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(() -> transform(readQueue, writeQueue, transformation),
+          "otplib-pipeline-worker-" + i);
+    }
+
+    reader.start();
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    writer.start();
+    reader.join();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    writer.join();
+
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure instanceof CryptorException) {
+      throw (CryptorException) failure;
+    }
+    if (failure != null) {
+      throw new IOException("File pipeline failed.", failure);
+    }
+    return written[0];
+  }
+
+  private void read(Iterator<Job> jobs, BlockingQueue<Job> readQueue) {
+    try {
+      try {
+        while (failure == null && jobs.hasNext()) {
+          Job job = jobs.next();
+          job.content = Files.readAllBytes(job.source);
+          readQueue.put(job);
+        }
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      } finally {
+        // Every worker needs its own end marker.
+        for (int i = 0; i < workerAmount; i++) {
+          readQueue.put(END);
+        }
+      }
+    } catch (InterruptedException e) {
+      fail(e);
+    }
+  }
+
+  private void transform(BlockingQueue<Job> readQueue, BlockingQueue<Job> writeQueue,
+                         Transformation transformation) {
+    try {
+      Job job = readQueue.take();
+      while (job != END) {
+        if (failure == null) {
+          try {
+            job.content = transformation.apply(job.content);
+            writeQueue.put(job);
+          } catch (IOException | CryptorException | RuntimeException e) {
+            fail(e);
+          }
+        }
+        job = readQueue.take();
+      }
+      writeQueue.put(END);
+    } catch (InterruptedException e) {
+      fail(e);
+    }
+  }
+
+  private int write(BlockingQueue<Job> writeQueue) {
+    int written = 0;
+    int endMarkers = 0;
+    try {
+      while (endMarkers < workerAmount) {
+        Job job = writeQueue.take();
+        if (job == END) {
+          endMarkers++;
+        } else if (failure == null) {
+          try {
+            Path parent = job.target.toAbsolutePath().getParent();
+            if (parent != null) {
+              Files.createDirectories(parent);
+            }
+            Files.write(job.target, job.content);
+            written++;
+          } catch (IOException | RuntimeException e) {
+            fail(e);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      fail(e);
+    }
+    return written;
+  }
+
+  private synchronized void fail(Throwable cause) {
+    if (failure == null) {
+      failure = cause;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Compact summary of the messages held by a conversation, used for synchronizing devices.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.Arrays;
+
+/**
+ * Since every party encrypts with its own, strictly increasing series of chunks, the messages held
+ * by a conversation are summarized by one high-water mark per party: the first chunk id of that
+ * party not yet covered by any held message. Two devices exchange these vectors to find out which
+ * messages the other one is missing, without looking at the full history.
+ *
+ * <p>A high-water mark covers every chunk below it, so the vector can only summarize a history
+ * without gaps. Messages of each party must therefore be added in the order they were encrypted.
+ * A message received before an older message of the same party raises the mark over the older
+ * one, which is then never reported as missing. Transports that reorder messages have to restore
+ * the order per party before adding them, or exchange full histories with
+ * mergeEncryptedMessages instead.
+ */
+public class HistoryVector {
+
+  // Hash of the one time pad the summarized conversation is based on.
+  private final String otpHash;
+
+  // Per party index, the first chunk id not yet covered by a message of that party.
+  private final int[] highWaterMarks;
+
+  /**
+   * Constructor for a history vector.
+   *
+   * @param otpHash        as the hash of the pad of the summarized conversation.
+   * @param highWaterMarks as first uncovered chunk id per party index.
+   */
+  protected HistoryVector(String otpHash, int[] highWaterMarks) {
+    this.otpHash = otpHash;
+    this.highWaterMarks = Arrays.copyOf(highWaterMarks, highWaterMarks.length);
+  }
+
+  /**
+   * Helper method to look up hash of the one time pad associated to the summarized conversation.
+   *
+   * @return the one time pad hash.
+   */
+  protected String getOtpHash() {
+    return otpHash;
+  }
+
+  /**
+   * Look up the first chunk id of a party, not yet covered by any summarized message.
+   *
+   * @param partyIndex as the index of the party in the one time pad.
+   * @return first uncovered chunk id.
+   */
+  public int getHighWaterMark(int partyIndex) {
+    return highWaterMarks[partyIndex];
+  }
+
+  /**
+   * Ensures the vector holds one non-negative high-water mark per party of a pad. Vectors received
+   * from other devices are not checked on deserialization, so they must be validated before use.
+   *
+   * @param partyAmount as the amount of parties of the pad the vector is used with.
+   * @throws OneTimePadMissmatchException if the vector does not match the amount of parties.
+   */
+  protected void validate(int partyAmount) throws OneTimePadMissmatchException {
+    if (highWaterMarks == null || highWaterMarks.length != partyAmount) {
+      throw new OneTimePadMissmatchException("History vector does not hold one high-water mark "
+          + "for each of the " + partyAmount + " parties of the pad.");
+    }
+    for (int highWaterMark : highWaterMarks) {
+      if (highWaterMark < 0) {
+        throw new OneTimePadMissmatchException("History vector holds a negative high-water mark.");
+      }
+    }
+  }
+
+  /**
+   * Converts the vector to a json string, for transmission to another device.
+   *
+   * @return json representation of the vector.
+   */
+  public String serializeToJson() {
+    return SerializationTools.getGsonPadConverter().toJson(this);
+  }
+
+  /**
+   * Restores a history vector that was received from another device.
+   *
+   * @param serializedVector as the json string produced by serializeToJson.
+   * @return the history vector as java object.
+   */
+  public static HistoryVector deserializeFromJson(String serializedVector) {
+    return SerializationTools.getGsonPadConverter().fromJson(serializedVector, HistoryVector.class);
+  }
+}
@@ -0,0 +1,22 @@
+/**
+ * Interface for library objects that report their memory consumption.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Objects implementing this interface estimate the memory they retain. Metrics exporters can poll
+ * any collection of pads, messages and conversations through this interface, for sizing nodes or
+ * triggering eviction.
+ */
+public interface MemoryAccountable {
+
+  /**
+   * Estimates the memory currently retained by this object.
+   *
+   * @return the estimated footprint, broken down by component.
+   */
+  MemoryFootprint getMemoryFootprint();
+}
@@ -0,0 +1,131 @@
+/**
+ * Estimated memory consumption of library objects.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimate of the memory retained by a pad, a message or a conversation, broken down by component.
+ * Heap bytes are estimated from the object layout of a 64 bit JVM with compressed references,
+ * off-heap bytes count memory mapped files. Estimates are computed from sizes and counts only,
+ * never by walking the key material, so they are cheap enough to be polled by metrics exporters.
+ * Component names are stable and can be used as metric labels.
+ */
+public final class MemoryFootprint {
+
+  // Object layout of a 64 bit JVM with compressed references.
+  static final int OBJECT_HEADER = 12;
+  static final int ARRAY_HEADER = 16;
+  static final int REFERENCE = 4;
+  private static final int ALIGNMENT = 8;
+
+  // Estimated heap bytes per component, in order of insertion.
+  private final Map<String, Long> heapComponents;
+
+  // Estimated off-heap bytes per component, in order of insertion.
+  private final Map<String, Long> offHeapComponents;
+
+  /**
+   * Creates a footprint from its components. The maps are copied.
+   *
+   * @param heapComponents    as the heap bytes per component.
+   * @param offHeapComponents as the off-heap bytes per component.
+   */
+  MemoryFootprint(Map<String, Long> heapComponents, Map<String, Long> offHeapComponents) {
+    this.heapComponents = Collections.unmodifiableMap(new LinkedHashMap<>(heapComponents));
+    this.offHeapComponents = Collections.unmodifiableMap(new LinkedHashMap<>(offHeapComponents));
+  }
+
+  /**
+   * Getter for the estimated heap bytes of all components.
+   *
+   * @return sum of the heap components.
+   */
+  public long getHeapBytes() {
+    return sum(heapComponents);
+  }
+
+  /**
+   * Getter for the estimated off-heap bytes of all components.
+   *
+   * @return sum of the off-heap components.
+   */
+  public long getOffHeapBytes() {
+    return sum(offHeapComponents);
+  }
+
+  /**
+   * Getter for the estimated heap bytes per component.
+   *
+   * @return read-only map of component names to bytes, in a stable order.
+   */
+  public Map<String, Long> getHeapComponents() {
+    return heapComponents;
+  }
+
+  /**
+   * Getter for the estimated off-heap bytes per component.
+   *
+   * @return read-only map of component names to bytes, in a stable order.
+   */
+  public Map<String, Long> getOffHeapComponents() {
+    return offHeapComponents;
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryFootprint{heap=" + heapComponents + ", offHeap=" + offHeapComponents + "}";
+  }
+
+  private static long sum(Map<String, Long> components) {
+    long total = 0;
+    for (long bytes : components.values()) {
+      total += bytes;
+    }
+    return total;
+  }
+
+  /**
+   * Estimates the heap bytes of an object.
+   *
+   * @param fieldBytes as the bytes of all fields of the object.
+   * @return the aligned size of the object.
+   */
+  static long objectBytes(long fieldBytes) {
+    return align(OBJECT_HEADER + fieldBytes);
+  }
+
+  /**
+   * Estimates the heap bytes of an array.
+   *
+   * @param length       as the amount of elements.
+   * @param elementBytes as the bytes per element.
+   * @return the aligned size of the array.
+   */
+  static long arrayBytes(long length, int elementBytes) {
+    return align(ARRAY_HEADER + length * elementBytes);
+  }
+
+  /**
+   * Estimates the heap bytes of a string of single byte characters, including its backing array.
+   *
+   * @param string as the string to estimate, may be null.
+   * @return the size of the string, or zero for null.
+   */
+  static long stringBytes(String string) {
+    if (string == null) {
+      return 0;
+    }
+    return objectBytes(REFERENCE + 4 + 2) + arrayBytes(string.length(), 1);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+}
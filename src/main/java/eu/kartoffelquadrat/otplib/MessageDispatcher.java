@@ -0,0 +1,271 @@
+/**
+ * Routes incoming encrypted messages to the conversations of their pads.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches incoming messages of many pads to the conversations registered for them. Pads are
+ * indexed by the first six hex characters of their hash, the prefix carried by every line of the
+ * hex serialization, in a primitive keyed hash table. Routing therefore takes constant time,
+ * regardless of the amount of registered pads.
+ *
+ * <p>Every conversation is assigned to one of several worker threads, and all messages of its pads
+ * are added to it on that worker. Conversations are therefore never accessed concurrently and need
+ * no locks, while different conversations are processed in parallel. Registered conversations must
+ * not be used by other threads while the dispatcher runs.
+ */
+public class MessageDispatcher implements AutoCloseable {
+
+  /**
+   * Registered conversation of a pad. Pads sharing a prefix are chained.
+   */
+  private static final class Route {
+    final String padHash;
+    final OneTimePad pad;
+    final Conversation conversation;
+    final ExecutorService worker;
+    Route samePrefix;
+
+    Route(OneTimePad pad, Conversation conversation, ExecutorService worker) {
+      this.padHash = pad.getHash();
+      this.pad = pad;
+      this.conversation = conversation;
+      this.worker = worker;
+    }
+  }
+
+  private final ExecutorService[] workers;
+
+  // Open addressing table, keyed by the numeric value of the hash prefix. Guarded by this.
+  private int[] prefixes = new int[16];
+  private Route[] routes = new Route[16];
+  private int routeAmount;
+
+  /**
+   * Creates a dispatcher with the provided amount of worker threads.
+   *
+   * @param workerAmount as the amount of pads processed in parallel.
+   */
+  public MessageDispatcher(int workerAmount) {
+    workers = new ExecutorService[workerAmount];
+    for (int i = 0; i < workerAmount; i++) {
+      workers[i] = Executors.newSingleThreadExecutor();
+    }
+  }
+
+  /**
+   * Registers the receiving conversation of a pad. Messages of all pads in the conversation's pad
+   * chain are added to it from now on, on the same worker. Successor pads must therefore be added
+   * to the conversation before it is registered.
+   *
+   * @param conversation as the conversation to add messages of its pads to.
+   * @throws OneTimePadMissmatchException if a conversation of the same pad is registered already.
+   */
+  public synchronized void register(Conversation conversation)
+      throws OneTimePadMissmatchException {
+    List<OneTimePad> padChain = conversation.getPadChain();
+    for (OneTimePad pad : padChain) {
+      if (lookup(pad.getHash()) != null) {
+        throw new OneTimePadMissmatchException(
+            "A conversation of pad " + pad.getHash() + " is registered already.");
+      }
+    }
+    ExecutorService worker = workers[routeAmount % workers.length];
+    for (OneTimePad pad : padChain) {
+      insert(new Route(pad, conversation, worker));
+    }
+  }
+
+  /**
+   * Helper method to add a route to the table of its prefix.
+   *
+   * @param route as the route to add.
+   */
+  private void insert(Route route) {
+    int prefix = toPrefix(route.padHash);
+    int slot = findSlot(prefix);
+    if (routes[slot] == null) {
+      prefixes[slot] = prefix;
+      routes[slot] = route;
+      routeAmount++;
+      if (2 * routeAmount > routes.length) {
+        grow();
+      }
+    } else {
+      route.samePrefix = routes[slot];
+      routes[slot] = route;
+    }
+  }
+
+  /**
+   * Adds an encrypted message to the conversation of its pad, on the worker of the pad.
+   *
+   * @param message as the received message.
+   * @return the plain message, once it was added.
+   */
+  public CompletableFuture<PlainMessage> dispatch(EncryptedMessage message) {
+    Route route = lookup(message.getOtpHash());
+    if (route == null) {
+      return failed(new OneTimePadMissmatchException(
+          "No conversation registered for pad " + message.getOtpHash() + "."));
+    }
+    return submit(route, () -> route.conversation.addEncryptedMessage(message));
+  }
+
+  /**
+   * Dispatches a batch of hex serialized messages, as produced by serializeToHex and separated by
+   * empty lines. Lines only carry a prefix of the pad hash, so a message whose prefix is shared by
+   * several registered pads cannot be routed and fails.
+   *
+   * @param lines as the hex serialized messages.
+   * @return one future per message, in order of the batch.
+   */
+  public List<CompletableFuture<PlainMessage>> dispatchHexLines(String lines) {
+    List<CompletableFuture<PlainMessage>> results = new ArrayList<>();
+    for (String serializedMessage : lines.split("\\n\\s*\\n")) {
+      if (serializedMessage.trim().isEmpty()) {
+        continue;
+      }
+      Route route = lookupPrefix(serializedMessage.trim());
+      if (route == null) {
+        results.add(failed(new OneTimePadMissmatchException(
+            "No conversation registered for the prefix of a hex serialized message.")));
+      } else if (route.samePrefix != null) {
+        results.add(failed(new OneTimePadMissmatchException(
+            "Prefix of a hex serialized message is shared by several registered pads.")));
+      } else {
+        results.add(submit(route, () -> route.conversation.addEncryptedMessage(
+            EncryptedMessage.deserializeFromHex(serializedMessage, route.pad))));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Stops all workers after the messages dispatched so far were processed. Messages dispatched
+   * afterwards fail with a RejectedExecutionException.
+   */
+  @Override
+  public void close() {
+    for (ExecutorService worker : workers) {
+      worker.shutdown();
+    }
+  }
+
+  /**
+   * Work items of the workers. Unlike a Callable, they may throw the library's exceptions.
+   */
+  private interface Delivery {
+    PlainMessage deliver() throws CryptorException;
+  }
+
+  private static CompletableFuture<PlainMessage> submit(Route route, Delivery delivery) {
+    CompletableFuture<PlainMessage> result = new CompletableFuture<>();
+    try {
+      route.worker.execute(() -> {
+        try {
+          result.complete(delivery.deliver());
+        } catch (CryptorException | RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The dispatcher was closed, the message is refused like messages of unknown pads.
+      return failed(e);
+    }
+    return result;
+  }
+
+  private static CompletableFuture<PlainMessage> failed(Throwable cause) {
+    CompletableFuture<PlainMessage> result = new CompletableFuture<>();
+    result.completeExceptionally(cause);
+    return result;
+  }
+
+  private synchronized Route lookup(String padHash) {
+    if (padHash == null || padHash.length() < 6) {
+      return null;
+    }
+    int prefix = parsePrefix(padHash);
+    if (prefix < 0) {
+      return null;
+    }
+    for (Route route = routes[findSlot(prefix)]; route != null; route = route.samePrefix) {
+      if (route.padHash.equals(padHash)) {
+        return route;
+      }
+    }
+    return null;
+  }
+
+  private synchronized Route lookupPrefix(String hexLine) {
+    int prefix = hexLine.length() < 6 ? -1 : parsePrefix(hexLine);
+    return prefix < 0 ? null : routes[findSlot(prefix)];
+  }
+
+  /**
+   * Helper method to find the slot of a prefix, or the empty slot it would be stored in.
+   *
+   * @param prefix as the numeric prefix.
+   * @return index of the slot.
+   */
+  private int findSlot(int prefix) {
+    int mask = routes.length - 1;
+    int slot = (prefix * 0x9E3779B9 >>> 8) & mask;
+    while (routes[slot] != null && prefixes[slot] != prefix) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    int[] oldPrefixes = prefixes;
+    Route[] oldRoutes = routes;
+    prefixes = new int[oldRoutes.length * 2];
+    routes = new Route[oldRoutes.length * 2];
+    for (int i = 0; i < oldRoutes.length; i++) {
+      if (oldRoutes[i] != null) {
+        int slot = findSlot(oldPrefixes[i]);
+        prefixes[slot] = oldPrefixes[i];
+        routes[slot] = oldRoutes[i];
+      }
+    }
+  }
+
+  private static int toPrefix(String padHash) {
+    int prefix = parsePrefix(padHash);
+    if (prefix < 0) {
+      throw new IllegalArgumentException("Pad hash does not start with six hex digits.");
+    }
+    return prefix;
+  }
+
+  /**
+   * Helper method to convert the first six characters of a hash or hex line into a number, without
+   * creating intermediate strings.
+   *
+   * @param text as the hash or line.
+   * @return the numeric prefix, or -1 if the characters are not hex digits.
+   */
+  private static int parsePrefix(String text) {
+    int prefix = 0;
+    for (int i = 0; i < 6; i++) {
+      int digit = Character.digit(text.charAt(i), 16);
+      if (digit < 0) {
+        return -1;
+      }
+      prefix = prefix << 4 | digit;
+    }
+    return prefix;
+  }
+}
@@ -2,20 +2,25 @@ package eu.kartoffelquadrat.otplib;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
 /**
- * Immutable implementation of One Time Pad object. Cannot be changed once created. The one time pad
- * holds a series of chunks which are meant for single encryption use by a given communication
- * party.
+ * Implementation of One Time Pad object. The one time pad holds a series of chunks which are meant
+ * for single encryption use by a given communication party. Parties, hash and the content of live
+ * chunks never change once created. The pad does change internally though: the digest tree and
+ * the record of verified blocks are built lazily, consumed chunks can be wiped, and chunks at the
+ * end can be carved into sub-pads. Wiping and carving are synchronized.
  *
  * @author Maximilian Schiedermeier
  */
-public class OneTimePad implements Serializable {
+public class OneTimePad implements Serializable, MemoryAccountable {
 
-  // Indicates timestamp of creation
+  // Indicates timestamp of creation. For sub-pads it also tells parent pad and carved range.
   private final String timeStamp;
 
   // First party is implicitly assumed creator
@@ -26,18 +31,76 @@ public class OneTimePad implements Serializable {
   private final String hash;
   private final byte[][] chunks;
 
+  // Digests over blocks of chunks, to detect corrupted key material. Null for pads stored by older
+  // library versions, computed on first use then.
+  private PadDigestTree digestTree;
+
+  // Assignment of chunks to parties. Null for pads stored by older library versions, which all use
+  // round robin.
+  private final ChunkAllocation chunkAllocation;
+
+  // Order in which the chunks are stored. Null for pads stored by older library versions, which all
+  // store chunks in order of their ids.
+  private final PadLayout layout;
+
+  // Amount of chunks at the end of the pad handed out to sub-pads. These chunks are never used by
+  // this pad again.
+  private volatile int carvedChunkAmount;
+
+  // Blocks whose chunks have been checked against the digest tree since the pad was loaded. Races
+  // are benign, at worst a block is checked twice.
+  private transient volatile boolean[] verifiedBlocks;
+
+  // Bytes per chunk, looked up once since leading chunks may be wiped.
+  private transient volatile int chunkSize;
+
+  // Physical index of the first chunk of every party, for the party major layout.
+  private transient volatile int[] regionOffsets;
+
+  // Whether the chunk arrays are shared with another pad in memory, see carveSubPad. Wiping then
+  // only drops references, zero filling would corrupt the other pad.
+  private transient volatile boolean sharedChunks;
+
+  // Incremented whenever chunks are wiped or carved off, so caches notice changed pads cheaply.
+  private transient volatile int modificationCount;
+
   /**
-   * Constructor for the One Time Pad class.
+   * Constructor for the One Time Pad class. The digest tree is computed from the provided chunks.
    *
    * @param chunks    as a 2D byte array, representing the content of the individual chunks.
    * @param parties   as the name@machine strings representing the associated parties.
    * @param timeStamp as string encoding the moment of pad creation.
    */
   protected OneTimePad(String timeStamp, String[] parties, byte[][] chunks) {
+    this(timeStamp, parties, chunks, null, ChunkAllocation.ROUND_ROBIN, PadLayout.INTERLEAVED);
+  }
+
+  /**
+   * Constructor for pads restored from storage, along with their stored digest tree. Chunks are
+   * verified against the tree lazily, on first access to their block.
+   *
+   * @param chunks     as a 2D byte array, representing the content of the individual chunks in
+   *                   storage order.
+   * @param parties    as the name@machine strings representing the associated parties.
+   * @param timeStamp  as string encoding the moment of pad creation.
+   * @param digestTree as the stored digest tree, or null to compute it from the chunks.
+   * @param allocation as the assignment of chunks to parties.
+   * @param layout     as the order in which the provided chunks are stored.
+   */
+  OneTimePad(String timeStamp, String[] parties, byte[][] chunks, PadDigestTree digestTree,
+             ChunkAllocation allocation, PadLayout layout) {
     this.chunks = chunks;
+    this.chunkAllocation = allocation;
+    this.layout = layout;
     this.parties = parties;
     this.timeStamp = timeStamp;
     hash = computeCreationMessageDigest5(timeStamp, parties);
+    this.digestTree = digestTree;
+    if (digestTree == null) {
+      this.digestTree =
+          PadDigestTree.compute(chunks.length, getChunkSize(), this::getChunkReference);
+      markAllBlocksVerified();
+    }
   }
 
   /**
@@ -86,6 +149,462 @@ public class OneTimePad implements Serializable {
     return Hex.encodeHexString(DigestUtils.md5(concatIdentifier)).toUpperCase();
   }
 
+  /**
+   * Verifies the pad was not corrupted in storage or transfer. All chunks not wiped must be of
+   * equal size, and the stored hash must match timestamp and parties. This matters for pads loaded
+   * from JSON, where the hash is restored as it was stored rather than recomputed.
+   *
+   * @throws CryptorException if the pad is not consistent.
+   */
+  protected void verifyConsistency() throws CryptorException {
+    if (parties == null || parties.length == 0 || chunks == null || chunks.length == 0) {
+      throw new CryptorException("Pad has no parties or no chunks.");
+    }
+    if (!computeCreationMessageDigest5(timeStamp, parties).equals(hash)) {
+      throw new CryptorException("Pad hash does not match timestamp and parties.");
+    }
+    int chunkSize = getChunkSize();
+    for (int i = 0; i < chunks.length; i++) {
+      if (chunks[i] != null && (chunks[i].length != chunkSize || chunkSize == 0)) {
+        throw new CryptorException("Chunk " + i + " of pad is of irregular size.");
+      }
+    }
+  }
+
+  /**
+   * Verifies all chunks against the stored digest tree, using all cores. Pads stored by older
+   * library versions carry no digests, for them the tree is computed now and protects the pad from
+   * here on.
+   *
+   * @throws PadIntegrityException if a block of chunks does not match its digest.
+   */
+  public void verifyIntegrity() throws PadIntegrityException {
+    if (digestTree == null) {
+      digestTree = PadDigestTree.compute(chunks.length, getChunkSize(), this::getChunkReference);
+    } else {
+      int corruptedBlock =
+          getDigestTree().findCorruptedBlock(chunks.length, this::getChunkReference);
+      if (corruptedBlock >= 0) {
+        throw new PadIntegrityException(createCorruptionMessage(corruptedBlock));
+      }
+    }
+    markAllBlocksVerified();
+  }
+
+  /**
+   * Hex encoded root of the digest tree over all chunks. Two devices hold identical key material if
+   * the roots of their pads match, so comparing roots is a cheap alternative to comparing pads.
+   * The root covers the key material as generated, wiping chunks does not change it. It is folded
+   * from the stored leaves once and attests those only: call verifyIntegrity first to make sure the
+   * chunks still match them.
+   *
+   * @return the digest root of the key material.
+   */
+  public String getDigestRoot() {
+    return Hex.encodeHexString(getDigestTree().getRoot()).toUpperCase();
+  }
+
+  /**
+   * Access to the contents of one chunk, verifying its block against the digest tree on first
+   * access. Encryption and decryption use this method, so corrupted key material is detected
+   * before it garbles a message, without hashing the entire pad on load.
+   *
+   * @param chunkId as index of the target chunk in the One Time Pad.
+   * @return byte array holding copy of requested chunk contents.
+   * @throws OutOfChunksException  if the requests index exceeds the stored chunk array.
+   * @throws PadIntegrityException if the block of the chunk does not match its digest.
+   */
+  protected byte[] getVerifiedChunkContent(int chunkId) throws CryptorException {
+    byte[] chunk = getVerifiedChunkReference(chunkId);
+    return Arrays.copyOf(chunk, chunk.length);
+  }
+
+  /**
+   * Internal variant of getVerifiedChunkContent without defensive copy, for bulk encryption.
+   * Callers must not modify the result.
+   *
+   * @param chunkId as index of the target chunk in the One Time Pad.
+   * @return the stored chunk.
+   * @throws OutOfChunksException  if the requests index exceeds the stored chunk array.
+   * @throws PadIntegrityException if the block of the chunk does not match its digest.
+   */
+  byte[] getVerifiedChunkReference(int chunkId) throws CryptorException {
+    byte[] chunk = getAvailableChunkReference(chunkId);
+    PadDigestTree tree = getDigestTree();
+    boolean[] verified = getVerifiedBlocks();
+    int block = tree.getBlockOf(chunkId);
+    if (!verified[block]) {
+      if (!tree.isIntact(chunks.length, this::getChunkReference, block)) {
+        throw new PadIntegrityException(createCorruptionMessage(block));
+      }
+      verified[block] = true;
+    }
+    return chunk;
+  }
+
+  /**
+   * Carves a sub-pad for a subset of parties, or any other group, from the end of this pad. The
+   * sub-pad references the key bytes of this pad rather than copying them. Carved chunks are
+   * withdrawn from this pad for good, and consecutive carvings take consecutive ranges towards the
+   * start of the pad, so no chunk can ever be used by two pads. Since parties consume chunks from
+   * the start of a pad, the end is consumed last. Carving is refused if any party of this pad
+   * already consumed a chunk of the range, according to the provided high-water marks. Pass marks
+   * that cover all devices, for instance the history vector of a conversation that is in sync with
+   * all other devices. Devices derive identical sub-pads by carving the same amounts for the same
+   * parties in the same order. The hash of the sub-pad is derived from the hash of this pad, the
+   * carved range and the sub-pad parties, so messages encrypted with a sub-pad carved differently
+   * are rejected rather than garbled.
+   *
+   * @param chunkAmount as the amount of chunks to carve.
+   * @param parties     as the name@machine strings of the parties using the sub-pad, all of them
+   *                    parties of this pad.
+   * @param consumed    as the first chunk id per party of this pad not yet consumed.
+   * @return the new sub-pad.
+   * @throws PadGeneratorException        if one of the parties does not follow string convention.
+   * @throws InvalidPartyException        if one of the parties is not a party of this pad.
+   * @throws OneTimePadMissmatchException if the vector belongs to another pad, or does not hold
+   *                                      one high-water mark per party.
+   * @throws OutOfChunksException         if not enough chunks are left, or the range overlaps with
+   *                                      consumed chunks.
+   * @throws CryptorException             if the carved range is corrupted or wiped.
+   */
+  public synchronized OneTimePad carveSubPad(int chunkAmount, String[] parties,
+                                             HistoryVector consumed)
+      throws PadGeneratorException, CryptorException {
+
+    OneTimePadGenerator.validateParties(parties);
+    for (String party : parties) {
+      if (!isAssociatedParty(party)) {
+        throw new InvalidPartyException(
+            "Sub-pad party " + party + " is not a party of the pad to carve from.");
+      }
+    }
+    if (!consumed.getOtpHash().equals(hash)) {
+      throw new OneTimePadMissmatchException(
+          "Sub-pad cannot be carved because the provided history vector belongs to different "
+              + "cryptographic material.");
+    }
+    consumed.validate(this.parties.length);
+    int end = chunks.length - carvedChunkAmount;
+    int start = end - chunkAmount;
+    if (chunkAmount <= 0 || start < 0) {
+      throw new OutOfChunksException("Cannot carve " + chunkAmount + " chunks, only " + end
+          + " chunks are left in the pad.");
+    }
+
+    // Chunk ids of a party grow with its sequence, so the last consumed chunk of every party must
+    // lie before the range.
+    ChunkAllocation allocation = getChunkAllocation();
+    for (int partyIndex = 0; partyIndex < this.parties.length; partyIndex++) {
+      int consumedAmount = allocation.getSequenceIndex(consumed.getHighWaterMark(partyIndex),
+          this.parties.length);
+      if (consumedAmount > 0 && allocation.getChunkId(partyIndex, consumedAmount - 1,
+          this.parties.length) >= start) {
+        throw new OutOfChunksException("Cannot carve " + chunkAmount + " chunks, party "
+            + this.parties[partyIndex] + " already consumed chunks of the range.");
+      }
+    }
+
+    // Never hand out corrupted key material. Only blocks overlapping the range are checked.
+    byte[][] subPadChunks = new byte[chunkAmount][];
+    for (int chunkId = start; chunkId < end; chunkId++) {
+      getVerifiedChunkContent(chunkId);
+      subPadChunks[chunkId - start] = getChunkReference(chunkId);
+    }
+
+    carvedChunkAmount += chunkAmount;
+    modificationCount++;
+    String origin = timeStamp + "/" + hash + "/" + start + "-" + end;
+    OneTimePad subPad = new OneTimePad(origin, Arrays.copyOf(parties, parties.length),
+        arrange(subPadChunks, getLayout(), getChunkAllocation(), parties.length), null,
+        getChunkAllocation(), getLayout());
+    subPad.sharedChunks = true;
+    return subPad;
+  }
+
+  /**
+   * Wipes the key material of all chunks consumed according to the provided high-water marks. The
+   * chunk bytes are overwritten with zeros and released, so the memory and serialized footprint of
+   * the pad shrinks while it is used, and past messages can no longer be decrypted from it. Pass
+   * marks that all devices acknowledged, for instance the history vector of a conversation that
+   * is in sync with all other devices. Chunks carved into sub-pads are never wiped. Blocks that get
+   * wiped are verified first, then their remaining chunks get a digest of their own, so they can
+   * still be checked after the pad is stored and loaded again.
+   * Sub-pads share key bytes with their parent pad in memory, so they only release their
+   * references, since the parent still uses the bytes.
+   *
+   * @param consumed as the first chunk id per party not yet consumed.
+   * @return the amount of chunks wiped by this call.
+   * @throws OneTimePadMissmatchException if the vector belongs to another pad, or does not hold
+   *                                      one high-water mark per party.
+   * @throws PadIntegrityException        if a block to wipe partially is corrupted.
+   */
+  public synchronized int wipeConsumedChunks(HistoryVector consumed) throws CryptorException {
+    if (!consumed.getOtpHash().equals(hash)) {
+      throw new OneTimePadMissmatchException(
+          "Chunks cannot be wiped because the provided history vector belongs to different "
+              + "cryptographic material.");
+    }
+    consumed.validate(parties.length);
+    ChunkAllocation allocation = getChunkAllocation();
+    PadDigestTree tree = getDigestTree();
+    boolean[] verified = getVerifiedBlocks();
+    boolean[] touched = new boolean[verified.length];
+    int wiped = 0;
+    for (int partyIndex = 0; partyIndex < parties.length; partyIndex++) {
+      int bound = allocation.getSequenceIndex(consumed.getHighWaterMark(partyIndex),
+          parties.length);
+      for (int seq = 0; seq < bound; seq++) {
+        int chunkId = allocation.getChunkId(partyIndex, seq, parties.length);
+        if (chunkId >= chunks.length - carvedChunkAmount) {
+          break;
+        }
+        int physicalIndex = toPhysicalIndex(chunkId);
+        if (chunks[physicalIndex] == null) {
+          continue;
+        }
+        int block = tree.getBlockOf(chunkId);
+        if (!verified[block]) {
+          if (!tree.isIntact(chunks.length, this::getChunkReference, block)) {
+            throw new PadIntegrityException(createCorruptionMessage(block));
+          }
+          verified[block] = true;
+        }
+        if (!sharedChunks) {
+          Arrays.fill(chunks[physicalIndex], (byte) 0);
+        }
+        chunks[physicalIndex] = null;
+        touched[block] = true;
+        wiped++;
+      }
+    }
+
+    // Blocks with wiped chunks are checked against a digest of their remaining chunks from now on.
+    for (int block = 0; block < touched.length; block++) {
+      if (touched[block]) {
+        tree.updateRemainder(chunks.length, this::getChunkReference, block);
+      }
+    }
+    if (wiped > 0) {
+      modificationCount++;
+    }
+    return wiped;
+  }
+
+  /**
+   * Tells how many chunks of this pad have been wiped.
+   *
+   * @return the amount of wiped chunks.
+   */
+  public int getWipedChunkAmount() {
+    int wiped = 0;
+    for (byte[] chunk : chunks) {
+      if (chunk == null) {
+        wiped++;
+      }
+    }
+    return wiped;
+  }
+
+  /**
+   * Tells whether this pad was generated from a secure random source. Pads generated with
+   * OneTimePadGenerator.generateInsecurePad, and sub-pads carved from them, are not, and must
+   * never protect real messages.
+   *
+   * @return false if the pad is marked as insecure.
+   */
+  public boolean isSecure() {
+    return !timeStamp.contains(OneTimePadGenerator.INSECURE_MARKER);
+  }
+
+  /**
+   * Look up the order in which this pad stores its chunks.
+   *
+   * @return the storage layout of this pad.
+   */
+  public PadLayout getLayout() {
+    return layout == null ? PadLayout.INTERLEAVED : layout;
+  }
+
+  /**
+   * Creates a variant of this pad that stores its chunks in another layout. Key bytes are copied,
+   * so either pad can be discarded and the other one still wipes its chunks securely. Hash, chunk
+   * ids and digest root are the same for all layouts, so devices may store the same pad in
+   * different layouts.
+   *
+   * @param targetLayout as the requested storage layout.
+   * @return a pad holding the same key material in the requested layout.
+   */
+  public OneTimePad withLayout(PadLayout targetLayout) {
+    byte[][] logicalChunks = new byte[chunks.length][];
+    for (int chunkId = 0; chunkId < chunks.length; chunkId++) {
+      byte[] chunk = getChunkReference(chunkId);
+      logicalChunks[chunkId] = chunk == null ? null : chunk.clone();
+    }
+    OneTimePad rearranged = new OneTimePad(timeStamp, parties,
+        arrange(logicalChunks, targetLayout, getChunkAllocation(), parties.length),
+        getDigestTree(), getChunkAllocation(), targetLayout);
+    rearranged.setCarvedChunkAmount(carvedChunkAmount);
+    return rearranged;
+  }
+
+  /**
+   * Helper method to bring chunks in order of their ids into the order of a storage layout.
+   *
+   * @param logicalChunks as the chunks in order of their ids.
+   * @param targetLayout  as the requested storage layout.
+   * @param allocation    as the assignment of chunks to parties.
+   * @param partyAmount   as the amount of parties.
+   * @return the chunks in storage order.
+   */
+  private static byte[][] arrange(byte[][] logicalChunks, PadLayout targetLayout,
+                                  ChunkAllocation allocation, int partyAmount) {
+    if (targetLayout == PadLayout.INTERLEAVED) {
+      return logicalChunks;
+    }
+    int[] offsets = computeRegionOffsets(allocation, partyAmount, logicalChunks.length);
+    byte[][] physicalChunks = new byte[logicalChunks.length][];
+    for (int chunkId = 0; chunkId < logicalChunks.length; chunkId++) {
+      physicalChunks[offsets[allocation.getOwnerIndex(chunkId, partyAmount)]
+          + allocation.getSequenceIndex(chunkId, partyAmount)] = logicalChunks[chunkId];
+    }
+    return physicalChunks;
+  }
+
+  private static int[] computeRegionOffsets(ChunkAllocation allocation, int partyAmount,
+                                            int chunkAmount) {
+    int[] offsets = new int[partyAmount];
+    for (int partyIndex = 1; partyIndex < partyAmount; partyIndex++) {
+      offsets[partyIndex] = offsets[partyIndex - 1]
+          + allocation.getOwnedChunkAmount(partyIndex - 1, partyAmount, chunkAmount);
+    }
+    return offsets;
+  }
+
+  /**
+   * Maps a chunk id to the index of the chunk in storage order.
+   *
+   * @param chunkId as the id of the chunk.
+   * @return the storage index of the chunk.
+   */
+  private int toPhysicalIndex(int chunkId) {
+    if (getLayout() == PadLayout.INTERLEAVED) {
+      return chunkId;
+    }
+    int[] offsets = regionOffsets;
+    if (offsets == null) {
+      offsets = computeRegionOffsets(getChunkAllocation(), parties.length, chunks.length);
+      regionOffsets = offsets;
+    }
+    ChunkAllocation allocation = getChunkAllocation();
+    return offsets[allocation.getOwnerIndex(chunkId, parties.length)]
+        + allocation.getSequenceIndex(chunkId, parties.length);
+  }
+
+  /**
+   * Look up which party owns which chunks of this pad.
+   *
+   * @return the chunk allocation of this pad.
+   */
+  public ChunkAllocation getChunkAllocation() {
+    return chunkAllocation == null ? ChunkAllocation.ROUND_ROBIN : chunkAllocation;
+  }
+
+  /**
+   * Look up how many chunks at the end of this pad have been carved into sub-pads. These chunks can
+   * no longer be used with this pad.
+   *
+   * @return amount of carved chunks.
+   */
+  public int getCarvedChunkAmount() {
+    return carvedChunkAmount;
+  }
+
+  /**
+   * Internal counter of the wipes and carves that changed this pad since it was created or loaded.
+   *
+   * @return the amount of modifications.
+   */
+  int getModificationCount() {
+    return modificationCount;
+  }
+
+  /**
+   * Internal restore of the carved chunk amount, for deserialization.
+   *
+   * @param carvedChunkAmount as the stored amount of carved chunks.
+   */
+  void setCarvedChunkAmount(int carvedChunkAmount) {
+    this.carvedChunkAmount = carvedChunkAmount;
+  }
+
+  /**
+   * Internal access to the digest tree. Computed on first use for pads without stored digests.
+   * Trees stored without digests over the remaining chunks of partially wiped blocks get them now.
+   *
+   * @return the digest tree of this pad.
+   */
+  PadDigestTree getDigestTree() {
+    if (digestTree == null) {
+      digestTree = PadDigestTree.compute(chunks.length, getChunkSize(), this::getChunkReference);
+      markAllBlocksVerified();
+    } else if (!digestTree.coversWipedChunks()) {
+      digestTree.coverWipedChunks(chunks.length, this::getChunkReference);
+    }
+    return digestTree;
+  }
+
+  private boolean[] getVerifiedBlocks() {
+    boolean[] verified = verifiedBlocks;
+    if (verified == null) {
+      verified = new boolean[getDigestTree().getLeafAmount()];
+      verifiedBlocks = verified;
+    }
+    return verified;
+  }
+
+  private void markAllBlocksVerified() {
+    boolean[] verified = new boolean[digestTree.getLeafAmount()];
+    Arrays.fill(verified, true);
+    verifiedBlocks = verified;
+  }
+
+  private String createCorruptionMessage(int block) {
+    int firstChunk = block * digestTree.getChunksPerBlock();
+    return "Key material of pad " + hash + " is corrupted in the block starting at chunk "
+        + firstChunk + ".";
+  }
+
+  /**
+   * Internal access to the moment of creation, needed for serialization.
+   *
+   * @return the timestamp string of pad creation.
+   */
+  String getTimeStamp() {
+    return timeStamp;
+  }
+
+  /**
+   * Internal access to a chunk without defensive copy. Callers must not modify the result.
+   *
+   * @param chunkId as index of the target chunk in the One Time Pad.
+   * @return the stored chunk, or null if it was wiped.
+   */
+  byte[] getChunkReference(int chunkId) {
+    return chunks[toPhysicalIndex(chunkId)];
+  }
+
+  /**
+   * Internal access to a chunk by its storage index, for serialization. Callers must not modify the
+   * result.
+   *
+   * @param physicalIndex as the index of the chunk in storage order.
+   * @return the stored chunk, or null if it was wiped.
+   */
+  byte[] getPhysicalChunkReference(int physicalIndex) {
+    return chunks[physicalIndex];
+  }
+
   /**
    * Helper method to get the hash formed of creator name and time of creation string. Note that
    * this hash does not cover the chunks.
@@ -119,10 +638,18 @@ public class OneTimePad implements Serializable {
   /**
    * Getter to look up size per chunk in this one time pad. All chunks have identical size.
    *
-   * @return integer telling the amount of bytes per chunk.
+   * @return integer telling the amount of bytes per chunk, or 0 if all chunks were wiped.
    */
   public int getChunkSize() {
-    return chunks[0].length;
+    if (chunkSize == 0) {
+      for (byte[] chunk : chunks) {
+        if (chunk != null) {
+          chunkSize = chunk.length;
+          break;
+        }
+      }
+    }
+    return chunkSize;
   }
 
   /**
@@ -133,6 +660,18 @@ public class OneTimePad implements Serializable {
    * @throws OutOfChunksException if the requests index exceeds the stored chunk array.
    */
   protected byte[] getChunkContent(int chunkId) throws OutOfChunksException {
+    byte[] chunk = getAvailableChunkReference(chunkId);
+    return Arrays.copyOf(chunk, chunk.length);
+  }
+
+  /**
+   * Internal access to a chunk that may still be used by this pad, without defensive copy.
+   *
+   * @param chunkId as index of the target chunk in the One Time Pad.
+   * @return the stored chunk.
+   * @throws OutOfChunksException if the chunk does not exist, was carved or was wiped.
+   */
+  private byte[] getAvailableChunkReference(int chunkId) throws OutOfChunksException {
 
     // Verify the requested index exists. Throw custom exception otherwise.
     if (chunkId >= chunks.length) {
@@ -140,8 +679,52 @@ public class OneTimePad implements Serializable {
           + " cannot be retrieved because the one time pad was exceeded.");
     }
 
-    byte[] chunk = chunks[chunkId];
-    return Arrays.copyOf(chunk, chunk.length);
+    // Chunks handed out to sub-pads belong to the sub-pad only.
+    if (chunkId >= chunks.length - carvedChunkAmount) {
+      throw new OutOfChunksException("Chunk with id " + chunkId
+          + " cannot be retrieved because it was carved into a sub-pad.");
+    }
+
+    byte[] chunk = getChunkReference(chunkId);
+    if (chunk == null) {
+      throw new ChunkWipedException("Chunk with id " + chunkId
+          + " cannot be retrieved because it was consumed and wiped.");
+    }
+    return chunk;
+  }
+
+  /**
+   * Estimates the heap retained by this pad. Wiped chunks no longer count, chunks carved into
+   * sub-pads still do until the pad is stored and loaded again. Pads live on the heap only.
+   *
+   * @return the estimated footprint of chunks, digest tree and metadata.
+   */
+  @Override
+  public MemoryFootprint getMemoryFootprint() {
+    Map<String, Long> heap = new LinkedHashMap<>();
+    long liveChunkAmount = chunks.length - getWipedChunkAmount();
+    heap.put("chunks", MemoryFootprint.arrayBytes(chunks.length, MemoryFootprint.REFERENCE)
+        + liveChunkAmount * MemoryFootprint.arrayBytes(getChunkSize(), 1));
+    PadDigestTree tree = digestTree;
+    heap.put("digestTree", tree == null ? 0 : tree.estimateHeapBytes());
+
+    // The pad object itself with its strings and lookup tables.
+    long metadata = MemoryFootprint.objectBytes(9 * MemoryFootprint.REFERENCE + 2 * 4)
+        + MemoryFootprint.stringBytes(timeStamp) + MemoryFootprint.stringBytes(hash)
+        + MemoryFootprint.arrayBytes(parties.length, MemoryFootprint.REFERENCE);
+    for (String party : parties) {
+      metadata += MemoryFootprint.stringBytes(party);
+    }
+    boolean[] verified = verifiedBlocks;
+    if (verified != null) {
+      metadata += MemoryFootprint.arrayBytes(verified.length, 1);
+    }
+    int[] offsets = regionOffsets;
+    if (offsets != null) {
+      metadata += MemoryFootprint.arrayBytes(offsets.length, 4);
+    }
+    heap.put("metadata", metadata);
+    return new MemoryFootprint(heap, Collections.emptyMap());
   }
 
   @Override
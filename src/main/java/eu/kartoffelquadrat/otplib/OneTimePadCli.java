@@ -0,0 +1,361 @@
+/**
+ * Command line entry point for batch pad provisioning and file encryption.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Batch tool for operators who provision and rotate pads for many device groups, or protect files
+ * at rest. The first argument names the command, all further arguments are key=value options:
+ *
+ * <pre>
+ * generate out=DIR (parties=a@x,b@y | groups=FILE) [padSize=16384] [chunkSize=64] [format=binary]
+ * encrypt  pad=FILE party=a@x in=PATH out=PATH [state=FILE]
+ * decrypt  pad=FILE in=PATH out=PATH
+ * verify   pads=PATH
+ * convert  in=FILE out=FILE
+ * </pre>
+ *
+ * <p>A groups file lists the parties of one pad per line, comma separated. Pads are written as
+ * HASH.pad in binary form or HASH.json in JSON form. Encryption turns every file, or every file of
+ * a directory tree, into one compact encrypted message with suffix ".enc". Payloads are deflated
+ * prior to encryption, so decryption restores the exact file length. Incompressible files thereby
+ * use at most about an eighth more chunks than their plain size. Files larger than
+ * PayloadCodec.MAX_DECODED_BYTES are refused before any chunk is reserved for them, since their
+ * deflated form could not be decoded again. The next chunk to use is kept
+ * in a state file, per default next to the pad, so consecutive runs never reuse chunks. The state
+ * file is replaced atomically before each file is encrypted, so even a run that is killed midway
+ * leaves no chunk of a written file unreserved. Use a
+ * dedicated party for batch encryption, since the state file is not shared with conversations.
+ * Verification checks every chunk against the digest tree stored with the pad and prints the
+ * digest root, devices holding the same pad print the same root.
+ * All commands spread their work over all cores, files pass bounded queues so disk I/O overlaps
+ * with encryption. Every file is held in memory entirely while it is processed.
+ */
+public class OneTimePadCli {
+
+  // Suffix of encrypted files.
+  private static final String ENCRYPTED_SUFFIX = ".enc";
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Command line entry point. Terminates with a non zero exit code if the command failed.
+   *
+   * @param args as the command followed by key=value options.
+   */
+  public static void main(String[] args) {
+    int exitCode = execute(args);
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  /**
+   * Runs a command without terminating the JVM.
+   *
+   * @param args as the command followed by key=value options.
+   * @return 0 on success, 1 if the command failed, 2 on invalid usage.
+   */
+  static int execute(String... args) {
+    try {
+      if (args.length == 0) {
+        throw new IllegalArgumentException("No command provided.");
+      }
+      Map<String, String> options = parseOptions(args);
+      switch (args[0]) {
+        case "generate":
+          generate(options);
+          break;
+        case "encrypt":
+          encrypt(options);
+          break;
+        case "decrypt":
+          decrypt(options);
+          break;
+        case "verify":
+          return verify(options) ? 0 : 1;
+        case "convert":
+          convert(options);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown command: " + args[0]);
+      }
+      return 0;
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(
+          "Usage: generate|encrypt|decrypt|verify|convert key=value... See class documentation.");
+      return 2;
+    } catch (Throwable e) {
+      System.err.println(args[0] + " failed: " + e.getMessage());
+      return 1;
+    }
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 1; i < args.length; i++) {
+      String[] keyValue = args[i].split("=", 2);
+      if (keyValue.length != 2) {
+        throw new IllegalArgumentException("Options must be of format key=value: " + args[i]);
+      }
+      options.put(keyValue[0], keyValue[1]);
+    }
+    return options;
+  }
+
+  private static String require(Map<String, String> options, String key) {
+    String value = options.get(key);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing option: " + key);
+    }
+    return value;
+  }
+
+  /**
+   * Generates one pad per party group, in parallel.
+   */
+  private static void generate(Map<String, String> options) throws Throwable {
+    Path outDir = Paths.get(require(options, "out"));
+    int padSize = Integer.parseInt(options.getOrDefault("padSize", "16384"));
+    int chunkSize = Integer.parseInt(options.getOrDefault("chunkSize", "64"));
+    boolean binary = !"json".equals(options.getOrDefault("format", "binary"));
+
+    List<String[]> groups = new ArrayList<>();
+    if (options.containsKey("groups")) {
+      for (String line : Files.readAllLines(Paths.get(options.get("groups")))) {
+        if (!line.trim().isEmpty()) {
+          groups.add(line.trim().split("\\s*,\\s*"));
+        }
+      }
+    } else {
+      groups.add(require(options, "parties").split(","));
+    }
+    Files.createDirectories(outDir);
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Path>> results = new ArrayList<>();
+      for (String[] parties : groups) {
+        results.add(executor.submit(() -> {
+          OneTimePad pad;
+          try {
+            pad = OneTimePadGenerator.generatePad(padSize, chunkSize, parties);
+          } catch (PadGeneratorException e) {
+            throw new IllegalArgumentException(e.getMessage());
+          }
+          Path target = outDir.resolve(pad.getHash() + (binary ? ".pad" : ".json"));
+          SerializationTools.writePadFile(pad, target);
+          return target;
+        }));
+      }
+      for (Future<Path> result : results) {
+        System.out.println(unwrap(result));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Encrypts a file or directory tree. Chunks are reserved per file once its deflated size is
+   * known, so workers encrypt independently.
+   */
+  private static void encrypt(Map<String, String> options) throws Throwable {
+    Path padPath = Paths.get(require(options, "pad"));
+    String party = require(options, "party");
+    OneTimePad pad = SerializationTools.readPadFile(padPath);
+    int partyIndex = pad.getPartyIndex(party);
+    Path statePath = Paths.get(options.getOrDefault("state", padPath + "." + party + ".next"));
+
+    // Resume after the last chunk reserved by previous runs. Reservations count positions in the
+    // sequence of chunks the pad's allocation assigns to the party.
+    ChunkAllocation allocation = pad.getChunkAllocation();
+    int partyAmount = pad.getPartyAmount();
+    int firstChunk = allocation.getFirstChunk(partyIndex, partyAmount);
+    if (Files.exists(statePath)) {
+      firstChunk = Integer.parseInt(
+          new String(Files.readAllBytes(statePath), StandardCharsets.UTF_8).trim());
+    }
+    final int[] nextSequenceIndex = {allocation.getSequenceIndex(firstChunk, partyAmount)};
+    int chunkSize = pad.getChunkSize();
+
+    int files = runPipeline(options, true, content -> {
+      byte[] encoded = PayloadCodec.DEFLATE.encode(content);
+      int chops = (encoded.length + chunkSize - 1) / chunkSize;
+
+      // The reservation reaches the disk before the file is encrypted, so a run that is killed
+      // midway never leaves chunks of written files unreserved.
+      int sequenceIndex;
+      synchronized (nextSequenceIndex) {
+        sequenceIndex = nextSequenceIndex[0];
+        long lastChunk = allocation.getChunkId(partyIndex, sequenceIndex + chops - 1, partyAmount);
+        if (lastChunk >= pad.getChunkAmount() || lastChunk < 0) {
+          throw new OutOfChunksException("Pad has no chunks left for a file of "
+              + content.length + " bytes.");
+        }
+        nextSequenceIndex[0] += chops;
+        writeState(statePath,
+            allocation.getChunkId(partyIndex, nextSequenceIndex[0], partyAmount));
+      }
+      int startChunk = allocation.getChunkId(partyIndex, sequenceIndex, partyAmount);
+      return Cryptor.encryptEncodedPayload(encoded, pad, startChunk, PayloadCodec.DEFLATE)
+          .serializeToBytes();
+    });
+    System.out.println("Encrypted " + files + " files.");
+  }
+
+  /**
+   * Replaces the state file atomically. The new content is written to a temporary file and forced
+   * to disk first, so the state file always holds either the old or the new chunk id.
+   *
+   * @param statePath as the state file.
+   * @param nextChunk as the next chunk to use.
+   * @throws IOException if the state cannot be written.
+   */
+  private static void writeState(Path statePath, int nextChunk) throws IOException {
+    Path temporary = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer content =
+          ByteBuffer.wrap(Integer.toString(nextChunk).getBytes(StandardCharsets.UTF_8));
+      while (content.hasRemaining()) {
+        channel.write(content);
+      }
+      channel.force(true);
+    }
+    Files.move(temporary, statePath, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Decrypts a file or directory tree of encrypted files.
+   */
+  private static void decrypt(Map<String, String> options) throws Throwable {
+    OneTimePad pad = SerializationTools.readPadFile(Paths.get(require(options, "pad")));
+    int files = runPipeline(options, false, content -> Cryptor
+        .decryptMessage(EncryptedMessage.deserializeFromBytes(content), pad, false).getPayload());
+    System.out.println("Decrypted " + files + " files.");
+  }
+
+  private static int runPipeline(Map<String, String> options, boolean encrypt,
+                                 FilePipeline.Transformation transformation) throws Throwable {
+    Path in = Paths.get(require(options, "in"));
+    Path out = Paths.get(require(options, "out"));
+    FilePipeline pipeline = new FilePipeline(THREADS, 2 * THREADS);
+
+    if (!Files.isDirectory(in)) {
+      Iterator<FilePipeline.Job> single =
+          Stream.of(new FilePipeline.Job(in, out)).iterator();
+      return pipeline.run(single, transformation);
+    }
+    try (Stream<Path> tree = Files.walk(in)) {
+      Iterator<FilePipeline.Job> jobs = tree.filter(Files::isRegularFile)
+          .filter(file -> !encrypt || !file.toString().endsWith(ENCRYPTED_SUFFIX))
+          .map(file -> new FilePipeline.Job(file,
+              out.resolve(toTargetName(in.relativize(file).toString(), encrypt))))
+          .iterator();
+      return pipeline.run(jobs, transformation);
+    }
+  }
+
+  private static String toTargetName(String sourceName, boolean encrypt) {
+    if (encrypt) {
+      return sourceName + ENCRYPTED_SUFFIX;
+    }
+    return sourceName.endsWith(ENCRYPTED_SUFFIX)
+        ? sourceName.substring(0, sourceName.length() - ENCRYPTED_SUFFIX.length()) : sourceName;
+  }
+
+  /**
+   * Verifies a single pad or all pads of a directory, in parallel.
+   *
+   * @return true if all pads are consistent.
+   */
+  private static boolean verify(Map<String, String> options) throws Throwable {
+    Path pads = Paths.get(require(options, "pads"));
+    List<Path> padFiles;
+    if (Files.isDirectory(pads)) {
+      try (Stream<Path> listing = Files.list(pads)) {
+        padFiles = listing.filter(file -> file.toString().endsWith(".pad")
+            || file.toString().endsWith(".json")).sorted().collect(Collectors.toList());
+      }
+    } else {
+      padFiles = new ArrayList<>();
+      padFiles.add(pads);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (Path padFile : padFiles) {
+        results.add(executor.submit(() -> verifyPad(padFile)));
+      }
+      boolean allConsistent = true;
+      for (Future<String> result : results) {
+        String outcome = unwrap(result);
+        allConsistent &= outcome.startsWith("OK");
+        System.out.println(outcome);
+      }
+      return allConsistent;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static String verifyPad(Path padFile) {
+    try {
+      OneTimePad pad = SerializationTools.readPadFile(padFile);
+      pad.verifyConsistency();
+      pad.verifyIntegrity();
+      OneTimePadGenerator.validateParties(pad.getParties());
+      if (!pad.isSecure()) {
+        return "FAILED " + padFile + ": generated from an insecure random source";
+      }
+      return "OK     " + padFile + " " + pad.getDigestRoot();
+    } catch (Throwable e) {
+      String reason = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+      return "FAILED " + padFile + ": " + reason;
+    }
+  }
+
+  /**
+   * Converts a pad between JSON and binary form. The target form is told by the file extension.
+   */
+  private static void convert(Map<String, String> options) throws Throwable {
+    OneTimePad pad = SerializationTools.readPadFile(Paths.get(require(options, "in")));
+    SerializationTools.writePadFile(pad, Paths.get(require(options, "out")));
+  }
+
+  private static <T> T unwrap(Future<T> result) throws Throwable {
+    try {
+      return result.get();
+    } catch (ExecutionException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -8,9 +8,9 @@
 
 package eu.kartoffelquadrat.otplib;
 
-import java.security.SecureRandom;
 import java.sql.Date;
 import java.text.SimpleDateFormat;
+import org.apache.commons.codec.binary.Hex;
 
 
 /**
@@ -27,6 +27,9 @@ public class OneTimePadGenerator {
   // for longer communication.
   private static final int ONE_TIME_PAD_SIZE = 16 * 1024;
 
+  // ends the timestamp of pads generated from insecure random sources, see OneTimePad.isSecure.
+  static final String INSECURE_MARKER = "--INSECURE";
+
   /**
    * Creates a one time pad (2D byte array) consisting of chunks. The chunks are meant for single
    * use encryption of the individual messages while the pad serves as unit for pretection of a
@@ -52,22 +55,115 @@ public class OneTimePadGenerator {
    */
   public static OneTimePad generatePad(int padSize, int chunkSize, String[] parties)
       throws PadGeneratorException {
+    return generatePad(padSize, chunkSize, parties, ChunkAllocation.ROUND_ROBIN);
+  }
+
+  /**
+   * Overloaded variant of generatePad that additionally allows for a custom assignment of chunks
+   * to parties. Note that pads with other than round robin allocation cannot be used with earlier
+   * library versions.
+   *
+   * @param padSize    as the amount of chunks to generate.
+   * @param chunkSize  as the amount of bytes per generated chunk.
+   * @param parties    as sting array descripbing the names of all parties using this pad.
+   * @param allocation as the assignment of chunks to parties.
+   * @return OneTimePad object holding the requested amount of chunks and size.
+   * @throws PadGeneratorException if one of the provided parties does not comply convention.
+   */
+  public static OneTimePad generatePad(int padSize, int chunkSize, String[] parties,
+                                       ChunkAllocation allocation) throws PadGeneratorException {
+    return generatePad(padSize, chunkSize, parties, allocation, new SecureRandomSource());
+  }
+
+  /**
+   * Overloaded variant of generatePad that additionally allows for a custom source of random
+   * bytes. Use a SecureRandomSource to pick algorithm, provider or buffer size of the random
+   * generator. Sources that are not cryptographically secure are refused, see generateInsecurePad.
+   *
+   * @param padSize      as the amount of chunks to generate.
+   * @param chunkSize    as the amount of bytes per generated chunk.
+   * @param parties      as sting array descripbing the names of all parties using this pad.
+   * @param allocation   as the assignment of chunks to parties.
+   * @param randomSource as the source of the key material.
+   * @return OneTimePad object holding the requested amount of chunks and size.
+   * @throws PadGeneratorException if one of the provided parties does not comply convention, or
+   *                               the random source is not secure.
+   */
+  public static OneTimePad generatePad(int padSize, int chunkSize, String[] parties,
+                                       ChunkAllocation allocation, RandomSource randomSource)
+      throws PadGeneratorException {
+    if (!randomSource.isSecure()) {
+      throw new PadGeneratorException("Random source is not secure. Pads for benchmarks and "
+          + "simulations must be generated with generateInsecurePad.");
+    }
+    return generate(padSize, chunkSize, parties, allocation, randomSource);
+  }
+
+  /**
+   * Variant of generatePad that also accepts random sources that are not cryptographically secure,
+   * for benchmarks, simulations and tests only. The resulting pads are marked in their timestamp,
+   * so they stay recognizable on disk and in JSON form, see OneTimePad.isSecure.
+   *
+   * @param padSize      as the amount of chunks to generate.
+   * @param chunkSize    as the amount of bytes per generated chunk.
+   * @param parties      as sting array descripbing the names of all parties using this pad.
+   * @param allocation   as the assignment of chunks to parties.
+   * @param randomSource as the source of the key material, secure or not.
+   * @return OneTimePad object holding the requested amount of chunks and size.
+   * @throws PadGeneratorException if one of the provided parties does not comply convention.
+   */
+  public static OneTimePad generateInsecurePad(int padSize, int chunkSize, String[] parties,
+                                               ChunkAllocation allocation,
+                                               RandomSource randomSource)
+      throws PadGeneratorException {
+    return generate(padSize, chunkSize, parties, allocation, randomSource);
+  }
 
+  private static OneTimePad generate(int padSize, int chunkSize, String[] parties,
+                                     ChunkAllocation allocation, RandomSource randomSource)
+      throws PadGeneratorException {
 
     // Verfies all parties follow the "name@machine" syntax, and verifies the creator appears.
     validateParties(parties);
 
-    // Create pad meta information
-    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd--HH:mm:ss");
-    String timeStamp = format.format(new Date(System.currentTimeMillis()));
+    // Generate the actual random chunks and stamp the pad with the moment of creation.
+    byte[][] padContent = generateKeyMaterial(padSize, chunkSize, randomSource);
+    return new OneTimePad(createTimeStamp(randomSource), parties, padContent, null, allocation,
+        PadLayout.INTERLEAVED);
+  }
 
-    // Generate the actual random chunks, form to a 2D byte array.
-    byte[][] padContent = new byte[padSize][];
-    for (int chunkId = 0; chunkId < padSize; chunkId++) {
-      padContent[chunkId] = generateChunk(chunkSize);
+  /**
+   * Helper function to create the random chunks of a pad.
+   *
+   * @param padSize      as the amount of chunks to generate.
+   * @param chunkSize    as the amount of bytes per generated chunk.
+   * @param randomSource as the source of the key material.
+   * @return 2D byte array holding the requested amount of random chunks.
+   */
+  static byte[][] generateKeyMaterial(int padSize, int chunkSize, RandomSource randomSource) {
+    byte[][] padContent = new byte[padSize][chunkSize];
+    for (byte[] chunk : padContent) {
+      randomSource.nextBytes(chunk);
     }
+    return padContent;
+  }
 
-    return new OneTimePad(timeStamp, parties, padContent);
+  /**
+   * Helper function to create the timestamp of a new pad. The pad hash is derived from timestamp
+   * and parties, so the timestamp ends on a random nonce. Pads created for the same parties within
+   * the same millisecond thereby still get distinct hashes. Pads from insecure sources get the
+   * INSECURE_MARKER appended.
+   *
+   * @param randomSource as the source of the nonce.
+   * @return string encoding the current moment, followed by a nonce.
+   */
+  static String createTimeStamp(RandomSource randomSource) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd--HH:mm:ss.SSS");
+    byte[] nonce = new byte[8];
+    randomSource.nextBytes(nonce);
+    return format.format(new Date(System.currentTimeMillis())) + "--"
+        + Hex.encodeHexString(nonce).toUpperCase()
+        + (randomSource.isSecure() ? "" : INSECURE_MARKER);
   }
 
   /**
@@ -77,7 +173,7 @@ public class OneTimePadGenerator {
    * @param parties as the array of individual OTP using parties.
    * @throws PadGeneratorException if one of the porivded parties does not follow convention.
    */
-  private static void validateParties(String[] parties) throws PadGeneratorException {
+  protected static void validateParties(String[] parties) throws PadGeneratorException {
 
     // Verify there are parties
     if (parties.length == 0) {
@@ -93,18 +189,4 @@ public class OneTimePadGenerator {
       }
     }
   }
-
-
-  /**
-   * Helper function to create a new chunk of requested size, filled with random content.
-   *
-   * @param chunkSize as the requested array length in bytes.
-   * @return a byte array of the requested sie, filled with random content.
-   */
-  protected static byte[] generateChunk(int chunkSize) {
-    SecureRandom random = new SecureRandom();
-    byte[] bytes = new byte[chunkSize];
-    random.nextBytes(bytes);
-    return bytes;
-  }
 }
@@ -0,0 +1,293 @@
+/**
+ * Integrity index over the key material of a one time pad.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Merkle tree of SHA-256 digests over blocks of chunks with consecutive ids. Chunks are accessed by
+ * id, so the tree does not depend on the storage layout of the pad. Every leaf covers one block, so
+ * a corrupted block can be told apart from intact ones and verified independently, on any core.
+ * The root covers the entire key material, two devices hold identical pads if their roots match.
+ * Leaves and inner nodes are hashed with distinct prefixes, so a leaf can never pose as a node.
+ * Leaves keep covering the chunks of their block as generated, so wiping never changes the root.
+ * Blocks holding wiped chunks are checked against a second digest over their remaining chunks
+ * instead, which is updated whenever chunks of the block are wiped.
+ */
+final class PadDigestTree implements Serializable {
+
+  // Targeted amount of key bytes covered by one leaf.
+  private static final int BLOCK_BYTES = 64 * 1024;
+
+  // Domain separation prefixes for leaf and inner node digests.
+  private static final byte LEAF_PREFIX = 0;
+  private static final byte NODE_PREFIX = 1;
+
+  // Amount of consecutive chunks covered by one leaf.
+  private final int chunksPerBlock;
+
+  // One digest per block, in block order.
+  private final byte[][] leaves;
+
+  // Per block, the digest over the chunks not wiped, set for blocks holding wiped chunks only. Null
+  // for trees stored by earlier library versions, see coverWipedChunks.
+  private byte[][] remainders;
+
+  // Root folded from the leaves, computed on first use.
+  private transient volatile byte[] root;
+
+  /**
+   * Restores a tree from stored leaves.
+   *
+   * @param chunksPerBlock as the amount of consecutive chunks covered by one leaf.
+   * @param leaves         as the stored leaf digests.
+   * @param remainders     as the stored digests over the remaining chunks of blocks holding wiped
+   *                       chunks, or null for trees stored by earlier library versions.
+   */
+  PadDigestTree(int chunksPerBlock, byte[][] leaves, byte[][] remainders) {
+    this.chunksPerBlock = chunksPerBlock;
+    this.leaves = leaves;
+    this.remainders = remainders;
+  }
+
+  /**
+   * Computes the tree for the provided chunks, using all cores.
+   *
+   * @param chunkAmount as the amount of chunks to cover.
+   * @param chunkSize   as the amount of bytes per chunk.
+   * @param chunks      as access to the chunks by id. Wiped chunks are null and skipped.
+   * @return the digest tree.
+   */
+  static PadDigestTree compute(int chunkAmount, int chunkSize, IntFunction<byte[]> chunks) {
+    int chunksPerBlock = Math.max(1, BLOCK_BYTES / Math.max(1, chunkSize));
+    int blockAmount = (chunkAmount + chunksPerBlock - 1) / chunksPerBlock;
+    byte[][] leaves = IntStream.range(0, blockAmount).parallel()
+        .mapToObj(block -> digestBlock(chunkAmount, chunks, chunksPerBlock, block))
+        .toArray(byte[][]::new);
+    PadDigestTree tree = new PadDigestTree(chunksPerBlock, leaves, null);
+    tree.coverWipedChunks(chunkAmount, chunks);
+    return tree;
+  }
+
+  private static byte[] digestBlock(int chunkAmount, IntFunction<byte[]> chunks,
+                                    int chunksPerBlock, int block) {
+    MessageDigest digest = DigestUtils.getSha256Digest();
+    digest.update(LEAF_PREFIX);
+    int end = Math.min(chunkAmount, (block + 1) * chunksPerBlock);
+    for (int chunkId = block * chunksPerBlock; chunkId < end; chunkId++) {
+      byte[] chunk = chunks.apply(chunkId);
+      if (chunk != null) {
+        digest.update(chunk);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Tells whether a block of the provided chunks still matches its stored leaf, or for blocks
+   * holding wiped chunks, the stored digest over the remaining chunks.
+   *
+   * @param chunkAmount as the amount of chunks covered.
+   * @param chunks      as access to the chunks by id.
+   * @param block       as the index of the block to check.
+   * @return true if the block is intact.
+   */
+  boolean isIntact(int chunkAmount, IntFunction<byte[]> chunks, int block) {
+    byte[] expected = holdsWipedChunks(chunkAmount, chunks, block)
+        ? getRemainderReference(block) : leaves[block];
+    return expected != null && MessageDigest.isEqual(expected,
+        digestBlock(chunkAmount, chunks, chunksPerBlock, block));
+  }
+
+  /**
+   * Updates the digest over the remaining chunks of a block, after chunks of the block were wiped.
+   * The block must have been verified before the wipe.
+   *
+   * @param chunkAmount as the amount of chunks covered.
+   * @param chunks      as access to the chunks by id.
+   * @param block       as the index of the block whose chunks were wiped.
+   */
+  void updateRemainder(int chunkAmount, IntFunction<byte[]> chunks, int block) {
+    remainders[block] = digestBlock(chunkAmount, chunks, chunksPerBlock, block);
+  }
+
+  /**
+   * Tells whether blocks holding wiped chunks can be checked. Trees stored by earlier library
+   * versions hold no digests over the remaining chunks of such blocks.
+   *
+   * @return true if digests over the remaining chunks are present.
+   */
+  boolean coversWipedChunks() {
+    return remainders != null;
+  }
+
+  /**
+   * Computes the missing digests over the remaining chunks of blocks holding wiped chunks, for
+   * trees stored by earlier library versions. Earlier versions never checked such blocks, so their
+   * current content is trusted once.
+   *
+   * @param chunkAmount as the amount of chunks covered.
+   * @param chunks      as access to the chunks by id.
+   */
+  synchronized void coverWipedChunks(int chunkAmount, IntFunction<byte[]> chunks) {
+    if (remainders != null) {
+      return;
+    }
+    byte[][] computed = new byte[leaves.length][];
+    for (int block = 0; block < leaves.length; block++) {
+      if (holdsWipedChunks(chunkAmount, chunks, block)) {
+        computed[block] = digestBlock(chunkAmount, chunks, chunksPerBlock, block);
+      }
+    }
+    remainders = computed;
+  }
+
+  private boolean holdsWipedChunks(int chunkAmount, IntFunction<byte[]> chunks, int block) {
+    int end = Math.min(chunkAmount, (block + 1) * chunksPerBlock);
+    for (int chunkId = block * chunksPerBlock; chunkId < end; chunkId++) {
+      if (chunks.apply(chunkId) == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks all blocks in parallel.
+   *
+   * @param chunkAmount as the amount of chunks covered.
+   * @param chunks      as access to the chunks by id.
+   * @return the lowest index of a corrupted block, or -1 if all blocks are intact.
+   */
+  int findCorruptedBlock(int chunkAmount, IntFunction<byte[]> chunks) {
+    if (getBlockAmount(chunkAmount) != leaves.length) {
+      return 0;
+    }
+    return IntStream.range(0, leaves.length).parallel()
+        .filter(block -> !isIntact(chunkAmount, chunks, block)).min().orElse(-1);
+  }
+
+  /**
+   * Looks up which block covers a chunk.
+   *
+   * @param chunkId as the chunk to look up.
+   * @return index of the covering block.
+   */
+  int getBlockOf(int chunkId) {
+    return chunkId / chunksPerBlock;
+  }
+
+  /**
+   * Looks up the amount of chunks covered by one leaf.
+   *
+   * @return amount of consecutive chunks per block.
+   */
+  int getChunksPerBlock() {
+    return chunksPerBlock;
+  }
+
+  /**
+   * Looks up the amount of leaves.
+   *
+   * @return amount of blocks covered by the tree.
+   */
+  int getLeafAmount() {
+    return leaves.length;
+  }
+
+  /**
+   * Internal access to a leaf without defensive copy. Callers must not modify the result.
+   *
+   * @param block as the index of the block.
+   * @return the stored leaf digest.
+   */
+  byte[] getLeafReference(int block) {
+    return leaves[block];
+  }
+
+  /**
+   * Internal access to the digest over the remaining chunks of a block without defensive copy.
+   * Callers must not modify the result.
+   *
+   * @param block as the index of the block.
+   * @return the stored digest, or null if the block holds no wiped chunks.
+   */
+  byte[] getRemainderReference(int block) {
+    byte[][] stored = remainders;
+    return stored == null ? null : stored[block];
+  }
+
+  /**
+   * Estimates the heap bytes retained by this tree.
+   *
+   * @return estimated size of the tree and its leaves.
+   */
+  long estimateHeapBytes() {
+    long bytes = MemoryFootprint.objectBytes(4 + MemoryFootprint.REFERENCE)
+        + MemoryFootprint.arrayBytes(leaves.length, MemoryFootprint.REFERENCE);
+    for (byte[] leaf : leaves) {
+      bytes += MemoryFootprint.arrayBytes(leaf.length, 1);
+    }
+    byte[][] stored = remainders;
+    if (stored != null) {
+      bytes += MemoryFootprint.arrayBytes(stored.length, MemoryFootprint.REFERENCE);
+      for (byte[] remainder : stored) {
+        bytes += remainder == null ? 0 : MemoryFootprint.arrayBytes(remainder.length, 1);
+      }
+    }
+    return bytes;
+  }
+
+  private int getBlockAmount(int chunkAmount) {
+    return (chunkAmount + chunksPerBlock - 1) / chunksPerBlock;
+  }
+
+  /**
+   * Looks up the root, folded from the leaves on first use. The root attests the stored leaves
+   * only, it does not check the chunks against them.
+   *
+   * @return a copy of the root digest.
+   */
+  byte[] getRoot() {
+    byte[] cached = root;
+    if (cached == null) {
+      cached = computeRoot();
+      root = cached;
+    }
+    return Arrays.copyOf(cached, cached.length);
+  }
+
+  /**
+   * Folds the leaves pairwise to the root. An odd node at the end of a level is carried up as is.
+   *
+   * @return the root digest.
+   */
+  private byte[] computeRoot() {
+    byte[][] level = leaves;
+    while (level.length > 1) {
+      byte[][] parents = new byte[(level.length + 1) / 2][];
+      for (int i = 0; i < parents.length; i++) {
+        if (2 * i + 1 == level.length) {
+          parents[i] = level[2 * i];
+        } else {
+          MessageDigest digest = DigestUtils.getSha256Digest();
+          digest.update(NODE_PREFIX);
+          digest.update(level[2 * i]);
+          digest.update(level[2 * i + 1]);
+          parents[i] = digest.digest();
+        }
+      }
+      level = parents;
+    }
+    return level[0];
+  }
+}
@@ -0,0 +1,23 @@
+/**
+ * Custom exception to indicate corrupted key material.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * This exception is thrown if the chunks of a one time pad no longer match the digests stored with
+ * the pad, for instance after a bit flip on disk. Encrypting or decrypting with such a pad would
+ * silently produce garbled messages.
+ */
+public class PadIntegrityException extends CryptorException {
+  /**
+   * Constructor for custom exception.
+   *
+   * @param cause as descritive text inticating the reason for exception.
+   */
+  public PadIntegrityException(String cause) {
+    super(cause);
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * Storage layouts for the chunks of a one time pad.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Tells in which order a pad stores its chunks in memory and on disk. The layout never changes
+ * which chunks a party owns or which chunk ids messages name, it only changes where the key bytes
+ * of a chunk are kept.
+ */
+public enum PadLayout {
+
+  /**
+   * Chunks are stored in order of their ids, so the chunks of different parties interleave as
+   * dictated by the chunk allocation.
+   */
+  INTERLEAVED,
+
+  /**
+   * The chunks of each party are stored in one contiguous region, in the order the party uses
+   * them. Key material of consecutive chops of a message is read sequentially, and a device only
+   * needs to touch the regions of the parties it exchanges messages with.
+   */
+  PARTY_MAJOR
+}
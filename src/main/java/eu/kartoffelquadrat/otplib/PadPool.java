@@ -0,0 +1,164 @@
+/**
+ * Pool of key material generated in the background.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps random key material for pads of one size ready, so new pads are handed out without waiting
+ * for random generation. A background thread refills the pool up to its target amount. Taking a
+ * pad only binds prepared chunks and their digest tree to the parties and stamps timestamp and
+ * hash, which takes constant time regardless of the pad size. If the pool runs dry, the pad is
+ * generated on the spot instead.
+ */
+public class PadPool implements AutoCloseable {
+
+  /**
+   * Random chunks not yet bound to parties, with their digest tree.
+   */
+  private static final class KeyMaterial {
+    final byte[][] chunks;
+    final PadDigestTree digestTree;
+
+    KeyMaterial(int padSize, int chunkSize, RandomSource randomSource) {
+      chunks = OneTimePadGenerator.generateKeyMaterial(padSize, chunkSize, randomSource);
+      digestTree = PadDigestTree.compute(chunks.length, chunkSize, chunkId -> chunks[chunkId]);
+    }
+  }
+
+  private final int padSize;
+  private final int chunkSize;
+  private final int targetAmount;
+  private final RandomSource randomSource;
+  private final BlockingQueue<KeyMaterial> available = new LinkedBlockingQueue<>();
+  private final ExecutorService generator;
+
+  // Amount of key material scheduled for generation, but not yet available.
+  private final AtomicInteger scheduled = new AtomicInteger();
+
+  // Amount of pads that had to be generated on the spot.
+  private final AtomicInteger missCount = new AtomicInteger();
+
+  /**
+   * Creates a pool and starts filling it in the background.
+   *
+   * @param padSize      as the amount of chunks per pad.
+   * @param chunkSize    as the amount of bytes per chunk.
+   * @param targetAmount as the amount of pads to keep ready.
+   */
+  public PadPool(int padSize, int chunkSize, int targetAmount) {
+    this(padSize, chunkSize, targetAmount, new SecureRandomSource());
+  }
+
+  /**
+   * Creates a pool on a custom source of random bytes and starts filling it in the background.
+   *
+   * @param padSize      as the amount of chunks per pad.
+   * @param chunkSize    as the amount of bytes per chunk.
+   * @param targetAmount as the amount of pads to keep ready.
+   * @param randomSource as the source of the key material, must be secure.
+   */
+  public PadPool(int padSize, int chunkSize, int targetAmount, RandomSource randomSource) {
+    if (!randomSource.isSecure()) {
+      throw new IllegalArgumentException("Pad pools only accept secure random sources.");
+    }
+    if (padSize <= 0 || chunkSize <= 0) {
+      throw new IllegalArgumentException("Pad size and chunk size must be positive.");
+    }
+    if (targetAmount < 0) {
+      throw new IllegalArgumentException("Target amount of pads must not be negative.");
+    }
+    this.padSize = padSize;
+    this.chunkSize = chunkSize;
+    this.targetAmount = targetAmount;
+    this.randomSource = randomSource;
+    generator = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "pad-pool");
+      thread.setDaemon(true);
+      return thread;
+    });
+    refill();
+  }
+
+  /**
+   * Hands out a pad for the provided parties, with round robin chunk allocation.
+   *
+   * @param parties as sting array descripbing the names of all parties using this pad.
+   * @return a new pad.
+   * @throws PadGeneratorException if one of the provided parties does not comply convention.
+   */
+  public OneTimePad take(String[] parties) throws PadGeneratorException {
+    return take(parties, ChunkAllocation.ROUND_ROBIN);
+  }
+
+  /**
+   * Hands out a pad for the provided parties and chunk allocation.
+   *
+   * @param parties    as sting array descripbing the names of all parties using this pad.
+   * @param allocation as the assignment of chunks to parties.
+   * @return a new pad.
+   * @throws PadGeneratorException if one of the provided parties does not comply convention.
+   */
+  public OneTimePad take(String[] parties, ChunkAllocation allocation)
+      throws PadGeneratorException {
+    OneTimePadGenerator.validateParties(parties);
+    KeyMaterial material = available.poll();
+    if (material == null) {
+      missCount.incrementAndGet();
+      material = new KeyMaterial(padSize, chunkSize, randomSource);
+    }
+    refill();
+    return new OneTimePad(OneTimePadGenerator.createTimeStamp(randomSource), parties.clone(),
+        material.chunks, material.digestTree, allocation, PadLayout.INTERLEAVED);
+  }
+
+  /**
+   * Tells how many pads are ready to be handed out.
+   *
+   * @return the amount of available pads.
+   */
+  public int getAvailableAmount() {
+    return available.size();
+  }
+
+  /**
+   * Tells how many pads had to be generated on the spot, because the pool was empty.
+   *
+   * @return the amount of misses.
+   */
+  public int getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Stops the background generation. Pads ready so far can still be taken.
+   */
+  @Override
+  public void close() {
+    generator.shutdownNow();
+  }
+
+  /**
+   * Helper method to schedule generation of the key material missing to reach the target amount.
+   */
+  private synchronized void refill() {
+    while (!generator.isShutdown() && available.size() + scheduled.get() < targetAmount) {
+      scheduled.incrementAndGet();
+      generator.execute(() -> {
+        try {
+          available.add(new KeyMaterial(padSize, chunkSize, randomSource));
+        } finally {
+          scheduled.decrementAndGet();
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,394 @@
+/**
+ * Bounded cache of pads for servers hosting many pads.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Hands out pads by hash and keeps the recently used ones on the heap. Pads are loaded lazily from
+ * a pad store, concurrent requests for the same pad share a single load. Every pad is weighted by
+ * the bytes of its chunks that were not wiped, weights of pads whose chunks were wiped are updated
+ * on the next eviction. Once the total weight exceeds the configured bound, the least recently used
+ * pads are evicted, unless they are pinned. Heap use is therefore bounded by the configured weight
+ * plus the weight of pinned pads.
+ *
+ * <p>Pads whose chunks were wiped or carved off since they were loaded are written back to the
+ * store before they are evicted, so a later load does not bring back wiped key material. Writes
+ * happen outside the registry lock, the pad stays cached until its write completed. If a write
+ * fails, the pad stays on the heap and the write is retried on a later eviction, see
+ * getWriteBackFailureCount.
+ */
+public class PadRegistry {
+
+  private final PadStore store;
+  private final long maximumWeight;
+
+  // Pads in access order, the least recently used first. Guarded by this registry.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  // Loads in progress, so concurrent requests for one pad do not load it twice.
+  private final Map<String, FutureTask<OneTimePad>> loads = new ConcurrentHashMap<>();
+
+  private long weight;
+  private long hitCount;
+  private long missCount;
+  private long loadCount;
+  private long evictionCount;
+  private long writeBackCount;
+  private long writeBackFailureCount;
+
+  /**
+   * Cache entry of a pad.
+   */
+  static final class Entry {
+    final OneTimePad pad;
+    long weight;
+    int pins;
+
+    // Modification count of the pad the weight was computed at.
+    int weighedModifications;
+
+    // Modification count of the pad when it was last loaded or stored.
+    int storedModifications;
+
+    // Whether the pad is being written back.
+    boolean writing;
+
+    Entry(OneTimePad pad) {
+      this.pad = pad;
+      this.storedModifications = pad.getModificationCount();
+      weigh();
+    }
+
+    /**
+     * Updates the weight to the chunks of the pad that were not wiped.
+     */
+    void weigh() {
+      weighedModifications = pad.getModificationCount();
+      weight = (long) (pad.getChunkAmount() - pad.getWipedChunkAmount()) * pad.getChunkSize();
+    }
+
+    /**
+     * Tells whether chunks of the pad were wiped or carved off since it was loaded or stored.
+     *
+     * @return true if the stored form of the pad is outdated.
+     */
+    boolean isModified() {
+      return pad.getModificationCount() != storedModifications;
+    }
+  }
+
+  /**
+   * Creates a registry on a pad store.
+   *
+   * @param store         as the store to load pads from.
+   * @param maximumWeight as the amount of chunk bytes of unpinned pads to keep on the heap.
+   */
+  public PadRegistry(PadStore store, long maximumWeight) {
+    this.store = store;
+    this.maximumWeight = maximumWeight;
+  }
+
+  /**
+   * Looks up a pad, loading it from the store if it is not on the heap.
+   *
+   * @param padHash as the hash of the requested pad.
+   * @return the pad.
+   * @throws IOException if the pad is not on the heap and cannot be loaded.
+   */
+  public OneTimePad get(String padHash) throws IOException {
+    return acquire(padHash, false).pad;
+  }
+
+  /**
+   * Looks up a pad like get, but keeps it on the heap until the returned handle is closed.
+   *
+   * @param padHash as the hash of the requested pad.
+   * @return handle of the pinned pad.
+   * @throws IOException if the pad is not on the heap and cannot be loaded.
+   */
+  public PinnedPad pin(String padHash) throws IOException {
+    return new PinnedPad(this, acquire(padHash, true));
+  }
+
+  /**
+   * Adds a new pad to the store and to the registry.
+   *
+   * @param pad as the pad to register.
+   * @throws IOException if the pad cannot be stored.
+   */
+  public void register(OneTimePad pad) throws IOException {
+    store.store(pad);
+    synchronized (this) {
+      if (!entries.containsKey(pad.getHash())) {
+        insert(new Entry(pad));
+      }
+    }
+    evictAndWriteBack();
+  }
+
+  /**
+   * Removes a pad from the heap, for instance after its file was replaced. Pinned handles keep
+   * their pad, later requests load it again. Unlike eviction, this never writes the pad back.
+   *
+   * @param padHash as the hash of the pad to remove.
+   */
+  public synchronized void invalidate(String padHash) {
+    Entry entry = entries.remove(padHash);
+    if (entry != null) {
+      weight -= entry.weight;
+    }
+  }
+
+  /**
+   * Tells how many pads are on the heap.
+   *
+   * @return the amount of cached pads.
+   */
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * Tells how many chunk bytes the cached pads hold, pinned ones included.
+   *
+   * @return the total weight of cached pads.
+   */
+  public synchronized long getWeight() {
+    reweigh();
+    return weight;
+  }
+
+  /**
+   * Tells how many requests were served from the heap.
+   *
+   * @return the amount of hits.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Tells how many requests did not find their pad on the heap.
+   *
+   * @return the amount of misses.
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Tells how many pads were loaded from the store.
+   *
+   * @return the amount of loads.
+   */
+  public synchronized long getLoadCount() {
+    return loadCount;
+  }
+
+  /**
+   * Tells how many pads were evicted to respect the weight bound.
+   *
+   * @return the amount of evictions.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Tells how many modified pads were written back to the store before their eviction.
+   *
+   * @return the amount of write backs.
+   */
+  public synchronized long getWriteBackCount() {
+    return writeBackCount;
+  }
+
+  /**
+   * Tells how many write backs failed. Pads whose write back failed stay on the heap.
+   *
+   * @return the amount of failed write backs.
+   */
+  public synchronized long getWriteBackFailureCount() {
+    return writeBackFailureCount;
+  }
+
+  /**
+   * Releases a pin, for use by pin handles only.
+   *
+   * @param entry as the entry to unpin.
+   */
+  void unpin(Entry entry) {
+    synchronized (this) {
+      entry.pins--;
+    }
+    evictAndWriteBack();
+  }
+
+  private Entry acquire(String padHash, boolean pin) throws IOException {
+    synchronized (this) {
+      Entry entry = entries.get(padHash);
+      if (entry != null) {
+        hitCount++;
+        if (pin) {
+          entry.pins++;
+        }
+        return entry;
+      }
+      missCount++;
+    }
+
+    // Load outside the lock, so other pads are served meanwhile
+    FutureTask<OneTimePad> load = new FutureTask<>(() -> store.load(padHash));
+    FutureTask<OneTimePad> runningLoad = loads.putIfAbsent(padHash, load);
+    if (runningLoad == null) {
+      runningLoad = load;
+      try {
+        load.run();
+        OneTimePad pad = unwrap(load);
+        synchronized (this) {
+          loadCount++;
+          insert(new Entry(pad));
+        }
+      } finally {
+        loads.remove(padHash, load);
+      }
+    }
+    OneTimePad pad = unwrap(runningLoad);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(padHash);
+      if (entry == null || entry.pad != pad) {
+        // Evicted or invalidated right after loading, hand out the loaded pad regardless
+        entry = new Entry(pad);
+        insert(entry);
+      }
+      if (pin) {
+        entry.pins++;
+      }
+    }
+    evictAndWriteBack();
+    return entry;
+  }
+
+  private void reweigh() {
+    for (Entry entry : entries.values()) {
+      if (entry.weighedModifications != entry.pad.getModificationCount()) {
+        weight -= entry.weight;
+        entry.weigh();
+        weight += entry.weight;
+      }
+    }
+  }
+
+  private void insert(Entry entry) {
+    Entry replaced = entries.put(entry.pad.getHash(), entry);
+    if (replaced != null) {
+      weight -= replaced.weight;
+    }
+    weight += entry.weight;
+  }
+
+  /**
+   * Evicts pads until the weight bound is respected, writing modified pads back to the store first.
+   * Must be called without holding the registry lock.
+   */
+  private void evictAndWriteBack() {
+    Set<Entry> failed = new HashSet<>();
+    List<Entry> modified;
+    synchronized (this) {
+      modified = evict(failed);
+    }
+    while (!modified.isEmpty()) {
+      for (Entry entry : modified) {
+        int modifications = entry.pad.getModificationCount();
+        boolean stored;
+        try {
+          store.store(entry.pad);
+          stored = true;
+        } catch (IOException e) {
+          stored = false;
+        }
+        synchronized (this) {
+          entry.writing = false;
+          if (stored) {
+            entry.storedModifications = modifications;
+            writeBackCount++;
+          } else {
+            failed.add(entry);
+            writeBackFailureCount++;
+          }
+        }
+      }
+      synchronized (this) {
+        modified = evict(failed);
+      }
+    }
+  }
+
+  /**
+   * Helper method to evict unmodified pads until the weight bound is respected. Weights of pads
+   * whose chunks were wiped are updated first.
+   *
+   * @param failed as entries whose write back failed during the current eviction, not retried.
+   * @return modified pads to write back before they can be evicted, marked as being written.
+   */
+  private List<Entry> evict(Set<Entry> failed) {
+    reweigh();
+
+    // Pads being written are evicted once their write completed, their weight is as good as gone
+    long writtenWeight = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.writing) {
+        writtenWeight += entry.weight;
+      }
+    }
+
+    List<Entry> modified = new ArrayList<>();
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (weight - writtenWeight > maximumWeight && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.pins > 0 || entry.writing || failed.contains(entry)) {
+        continue;
+      }
+      if (entry.isModified()) {
+        entry.writing = true;
+        modified.add(entry);
+        writtenWeight += entry.weight;
+      } else {
+        iterator.remove();
+        weight -= entry.weight;
+        evictionCount++;
+      }
+    }
+    return modified;
+  }
+
+  private static OneTimePad unwrap(FutureTask<OneTimePad> load) throws IOException {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for pad to load.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Pad could not be loaded.", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/**
+ * Interface for persistent storage of pads, used by the pad registry.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+
+/**
+ * A pad store holds pads outside the heap and hands them out by hash. Implementations must be safe
+ * for concurrent use, the registry loads different pads in parallel.
+ */
+public interface PadStore {
+
+  /**
+   * Loads a pad from the store.
+   *
+   * @param padHash as the hash of the requested pad.
+   * @return the loaded pad.
+   * @throws IOException if the pad is unknown to the store or cannot be read.
+   */
+  OneTimePad load(String padHash) throws IOException;
+
+  /**
+   * Adds a pad to the store, or replaces the stored form of a pad, for instance after chunks were
+   * wiped.
+   *
+   * @param pad as the pad to store.
+   * @throws IOException if the pad cannot be written.
+   */
+  void store(OneTimePad pad) throws IOException;
+}
@@ -0,0 +1,158 @@
+/**
+ * Codecs applied to message payloads prior to encryption.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional encoding stage between plain payload and encryption. Key material is the scarce resource
+ * of a one time pad, so shrinking payloads before encryption directly prolongs the lifetime of a
+ * pad, at the cost of some CPU time. The codec used is stored in the encrypted message, so the
+ * receiver knows how to decode it.
+ *
+ * <p>Compression makes the ciphertext length depend on the content, not only on the length of the
+ * payload. Encoded payloads are therefore padded to length buckets, so the ciphertext only reveals
+ * the compressed size to within an eighth. Whitespace padding to whole chunks is applied
+ * afterwards, as for plain payloads. Messages whose encoded payload would not use fewer chunks than
+ * the plain payload, for instance incompressible media, are encrypted without codec instead, see
+ * savesChunks. Decoding stops with an error once more than
+ * MAX_DECODED_BYTES would be produced, so a small forged message cannot exhaust the memory of the
+ * receiver. Encoding refuses larger payloads for the same reason, so every encoded payload can be
+ * decoded again.
+ */
+public enum PayloadCodec {
+
+  /**
+   * Payloads are encrypted as they are.
+   */
+  NONE {
+    @Override
+    byte[] encode(byte[] payload) {
+      return payload;
+    }
+
+    @Override
+    byte[] decode(byte[] encodedPayload) {
+      return encodedPayload;
+    }
+  },
+
+  /**
+   * Payloads are compressed with the deflate algorithm before encryption. The deflate stream marks
+   * its own end, so the zero bytes filling the length bucket and trailing padding are ignored on
+   * decoding.
+   */
+  DEFLATE {
+    @Override
+    byte[] encode(byte[] payload) throws CryptorException {
+      if (payload.length > MAX_DECODED_BYTES) {
+        throw new CryptorException("Payload of " + payload.length + " bytes exceeds the "
+            + MAX_DECODED_BYTES + " bytes a compressed payload may decode to.");
+      }
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      try {
+        deflater.setInput(payload);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2 + 64);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+          int length = deflater.deflate(buffer);
+          compressed.write(buffer, 0, length);
+        }
+        return Arrays.copyOf(compressed.toByteArray(), getBucketLength(compressed.size()));
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    byte[] decode(byte[] encodedPayload) throws CryptorException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(encodedPayload);
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream(
+            (int) Math.min(4L * encodedPayload.length, MAX_DECODED_BYTES));
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+          int length = inflater.inflate(buffer);
+          if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new CryptorException("Decrypted payload is not a complete deflate stream.");
+          }
+          if (decompressed.size() + length > MAX_DECODED_BYTES) {
+            throw new CryptorException(
+                "Decrypted payload decompresses to more than " + MAX_DECODED_BYTES + " bytes.");
+          }
+          decompressed.write(buffer, 0, length);
+        }
+        return decompressed.toByteArray();
+      } catch (DataFormatException e) {
+        throw new CryptorException("Decrypted payload cannot be decompressed: " + e.getMessage());
+      } finally {
+        inflater.end();
+      }
+    }
+  };
+
+  /**
+   * Upper bound of bytes a single payload may decode to.
+   */
+  public static final int MAX_DECODED_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * Helper method to determine the length bucket of an encoded payload.
+   *
+   * @param length as the length of the encoded payload.
+   * @return the smallest power of two not below lengths up to eight, for larger lengths the
+   *     smallest multiple of an eighth of the power of two below the length.
+   */
+  static int getBucketLength(int length) {
+    if (length > 1 << 30) {
+      throw new IllegalArgumentException("No length bucket holds " + length + " bytes.");
+    }
+    if (length <= 8) {
+      return length <= 1 ? 1 : Integer.highestOneBit(length - 1) << 1;
+    }
+    int step = Integer.highestOneBit(length - 1) >> 3;
+    return (length + step - 1) / step * step;
+  }
+
+  /**
+   * Tells whether encrypting an encoded payload uses fewer chunks than encrypting the plain
+   * payload. Otherwise the plain payload is encrypted without codec.
+   *
+   * @param plainLength   as the length of the plain payload.
+   * @param encodedLength as the length of the encoded payload.
+   * @param chunkSize     as the amount of bytes per chunk.
+   * @return true if the encoded payload saves chunks.
+   */
+  static boolean savesChunks(int plainLength, int encodedLength, int chunkSize) {
+    return (encodedLength + (long) chunkSize - 1) / chunkSize
+        < (plainLength + (long) chunkSize - 1) / chunkSize;
+  }
+
+  /**
+   * Encodes a plain payload prior to encryption.
+   *
+   * @param payload as the plain payload.
+   * @return the encoded payload.
+   * @throws CryptorException if the payload is too large to be decoded again.
+   */
+  abstract byte[] encode(byte[] payload) throws CryptorException;
+
+  /**
+   * Restores the plain payload from a decrypted, possibly padded, encoded payload.
+   *
+   * @param encodedPayload as the decrypted payload, including trailing padding.
+   * @return the plain payload.
+   * @throws CryptorException if the payload cannot be decoded.
+   */
+  abstract byte[] decode(byte[] encodedPayload) throws CryptorException;
+}
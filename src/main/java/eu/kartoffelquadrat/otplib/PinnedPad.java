@@ -0,0 +1,46 @@
+/**
+ * Handle of a pad that must stay in the registry while in use.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Pinned pads are never evicted from the pad registry, which keeps the pad of an active
+ * conversation on the heap. Closing the handle releases the pin, closing it again has no effect.
+ */
+public class PinnedPad implements AutoCloseable {
+
+  private final PadRegistry registry;
+  private final PadRegistry.Entry entry;
+  private boolean released;
+
+  /**
+   * Constructor for a pin handle, for use by the registry only.
+   *
+   * @param registry as the registry holding the pad.
+   * @param entry    as the registry entry of the pad.
+   */
+  PinnedPad(PadRegistry registry, PadRegistry.Entry entry) {
+    this.registry = registry;
+    this.entry = entry;
+  }
+
+  /**
+   * Getter for the pinned pad.
+   *
+   * @return the pad.
+   */
+  public OneTimePad getPad() {
+    return entry.pad;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!released) {
+      released = true;
+      registry.unpin(entry);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/**
+ * Service provider interface for the entropy used to generate pads.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+/**
+ * Source of the random bytes that make up the key material of generated pads. The secrecy of all
+ * messages depends on the quality of this source, so production pads must only be generated from
+ * sources that are cryptographically secure. Implementations must be safe for concurrent use.
+ */
+public interface RandomSource {
+
+  /**
+   * Fills the provided array with random bytes.
+   *
+   * @param target as the array to fill.
+   */
+  void nextBytes(byte[] target);
+
+  /**
+   * Tells whether the source is fit for key material that protects real messages.
+   *
+   * @return true for cryptographically secure sources.
+   */
+  default boolean isSecure() {
+    return true;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Buffered random source backed by a SecureRandom.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Cryptographically secure random source. Random bytes are drawn from the underlying SecureRandom
+ * in large blocks and handed out from a buffer, which saves the per-call overhead of the provider
+ * when filling many small chunks. Every byte is handed out only once, and buffered bytes are wiped
+ * as they are handed out. The algorithm and provider can be chosen, for instance a faster provider
+ * or a non-blocking algorithm on servers generating many pads.
+ */
+public class SecureRandomSource implements RandomSource {
+
+  // Amount of random bytes drawn from the SecureRandom at once, unless configured otherwise.
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final SecureRandom random;
+  private final byte[] buffer;
+
+  // Position of the first buffered byte not yet handed out.
+  private int position;
+
+  /**
+   * Creates a source on the platform's default SecureRandom.
+   */
+  public SecureRandomSource() {
+    this(new SecureRandom(), DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a source on a SecureRandom of the requested algorithm and provider.
+   *
+   * @param algorithm  as the name of the random number generation algorithm, e.g. "NativePRNG".
+   * @param provider   as the name of the security provider, or null for any provider.
+   * @param bufferSize as the amount of bytes drawn at once.
+   * @throws PadGeneratorException if the algorithm or provider is not available.
+   */
+  public SecureRandomSource(String algorithm, String provider, int bufferSize)
+      throws PadGeneratorException {
+    this(createSecureRandom(algorithm, provider), bufferSize);
+  }
+
+  /**
+   * Creates a source on the provided SecureRandom.
+   *
+   * @param random     as the underlying generator.
+   * @param bufferSize as the amount of bytes drawn at once.
+   */
+  public SecureRandomSource(SecureRandom random, int bufferSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be positive.");
+    }
+    this.random = random;
+    this.buffer = new byte[bufferSize];
+    this.position = bufferSize;
+  }
+
+  @Override
+  public synchronized void nextBytes(byte[] target) {
+
+    // Requests beyond the buffer size are served directly, the buffer would not save calls
+    if (target.length >= buffer.length) {
+      random.nextBytes(target);
+      return;
+    }
+    int filled = 0;
+    while (filled < target.length) {
+      if (position == buffer.length) {
+        random.nextBytes(buffer);
+        position = 0;
+      }
+      int amount = Math.min(target.length - filled, buffer.length - position);
+      System.arraycopy(buffer, position, target, filled, amount);
+      Arrays.fill(buffer, position, position + amount, (byte) 0);
+      position += amount;
+      filled += amount;
+    }
+  }
+
+  private static SecureRandom createSecureRandom(String algorithm, String provider)
+      throws PadGeneratorException {
+    try {
+      return provider == null ? SecureRandom.getInstance(algorithm)
+          : SecureRandom.getInstance(algorithm, provider);
+    } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+      throw new PadGeneratorException("Random algorithm " + algorithm + " is not available: "
+          + e.getMessage());
+    }
+  }
+}
@@ -15,6 +15,26 @@ import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
@@ -24,6 +44,18 @@ import org.apache.commons.codec.binary.Hex;
  */
 public class SerializationTools {
 
+  // Marks the start of a binary serialized pad.
+  private static final int BINARY_PAD_MAGIC = 0x4F545044;
+
+  // Binary pad format version, increased on incompatible changes. Version 2 added the digests over
+  // the remaining chunks of partially wiped blocks, version 1 pads are still read.
+  private static final int BINARY_PAD_VERSION = 2;
+
+  // Amount of bytes of a SHA-256 digest.
+  private static final int DIGEST_SIZE = 32;
+
+  // Gson instances are immutable and thread safe, so a single converter is shared by all callers.
+  private static final Gson PAD_CONVERTER = createGsonPadConverter();
 
   /**
    * Returns a custom Gson deserializer/serializer that encodes byte codes in hexadecimal for
@@ -32,6 +64,15 @@ public class SerializationTools {
    * @return Custom Gson object.
    */
   public static Gson getGsonPadConverter() {
+    return PAD_CONVERTER;
+  }
+
+  /**
+   * Helper method to build the custom Gson object, once.
+   *
+   * @return Custom Gson object.
+   */
+  private static Gson createGsonPadConverter() {
     // Gson de/serialization is overloaded, to store disk space (better compression of byte arrays
     // contained in one time pad object)
     // See: https://gist.github.com/orip/3635246?permalink_comment_id=2187632#gistcomment-2187632
@@ -44,6 +85,294 @@ public class SerializationTools {
     return builder.setPrettyPrinting().create();
   }
 
+  /**
+   * Writes a pad in binary form. Chunks are stored as raw bytes, which makes the binary form half
+   * the size of the hex encoded JSON form and fast to read and write. Layout: magic, version,
+   * timestamp, parties, chunk amount, chunk size, a table of the ranges of chunks not wiped, the
+   * chunks of these ranges in storage order, the digest tree as chunks per block, leaf amount and
+   * leaves, the amount of blocks holding wiped chunks followed by block index and digest over the
+   * remaining chunks for each, the amount of chunks carved into sub-pads, the block size of the
+   * chunk allocation, followed by the storage layout. With party major layout, the chunks of every
+   * party form one contiguous region of the file. Wiped chunks take no space in the file. The pad
+   * is locked while it is written, so concurrent wipes and carves wait until the write is
+   * complete.
+   *
+   * @param pad    as the pad to serialize.
+   * @param output as the stream to write to. The stream is flushed but not closed.
+   * @throws IOException if writing to the stream failed.
+   */
+  public static void writeBinaryPad(OneTimePad pad, OutputStream output) throws IOException {
+
+    // Wiping and carving lock the pad, so ranges and chunks written here cannot diverge
+    synchronized (pad) {
+      DataOutputStream dataOutput = new DataOutputStream(output);
+      dataOutput.writeInt(BINARY_PAD_MAGIC);
+      dataOutput.writeInt(BINARY_PAD_VERSION);
+      dataOutput.writeUTF(pad.getTimeStamp());
+      String[] parties = pad.getParties();
+      dataOutput.writeInt(parties.length);
+      for (String party : parties) {
+        dataOutput.writeUTF(party);
+      }
+      dataOutput.writeInt(pad.getChunkAmount());
+      dataOutput.writeInt(pad.getChunkSize());
+      List<int[]> liveRanges = findLiveRanges(pad);
+      dataOutput.writeInt(liveRanges.size());
+      for (int[] range : liveRanges) {
+        dataOutput.writeInt(range[0]);
+        dataOutput.writeInt(range[1]);
+      }
+      for (int[] range : liveRanges) {
+        for (int i = range[0]; i < range[1]; i++) {
+          dataOutput.write(pad.getPhysicalChunkReference(i));
+        }
+      }
+      PadDigestTree digestTree = pad.getDigestTree();
+      dataOutput.writeInt(digestTree.getChunksPerBlock());
+      dataOutput.writeInt(digestTree.getLeafAmount());
+      for (int i = 0; i < digestTree.getLeafAmount(); i++) {
+        dataOutput.write(digestTree.getLeafReference(i));
+      }
+      List<Integer> wipedBlocks = new ArrayList<>();
+      for (int i = 0; i < digestTree.getLeafAmount(); i++) {
+        if (digestTree.getRemainderReference(i) != null) {
+          wipedBlocks.add(i);
+        }
+      }
+      dataOutput.writeInt(wipedBlocks.size());
+      for (int block : wipedBlocks) {
+        dataOutput.writeInt(block);
+        dataOutput.write(digestTree.getRemainderReference(block));
+      }
+      dataOutput.writeInt(pad.getCarvedChunkAmount());
+      dataOutput.writeInt(pad.getChunkAllocation().getBlockSize());
+      dataOutput.writeInt(pad.getLayout().ordinal());
+      dataOutput.flush();
+    }
+  }
+
+  /**
+   * Reads a pad written by writeBinaryPad. Chunks are verified against the stored digest tree on
+   * first use, call verifyIntegrity on the result to verify all chunks at once.
+   *
+   * @param input as the stream to read from. The stream is not closed.
+   * @return the restored pad.
+   * @throws IOException if reading failed or the stream does not hold a binary pad.
+   */
+  public static OneTimePad readBinaryPad(InputStream input) throws IOException {
+    DataInputStream dataInput = new DataInputStream(input);
+    if (dataInput.readInt() != BINARY_PAD_MAGIC) {
+      throw new IOException("Stream does not hold a binary one time pad.");
+    }
+    int version = dataInput.readInt();
+    if (version != 1 && version != BINARY_PAD_VERSION) {
+      throw new IOException("Stream does not hold a binary one time pad of a supported version.");
+    }
+    final String timeStamp = dataInput.readUTF();
+    String[] parties = new String[dataInput.readInt()];
+    for (int i = 0; i < parties.length; i++) {
+      parties[i] = dataInput.readUTF();
+    }
+    int chunkAmount = dataInput.readInt();
+    int chunkSize = dataInput.readInt();
+    if (chunkAmount <= 0 || chunkSize < 0) {
+      throw new IOException("Binary one time pad has an inconsistent header.");
+    }
+    int[][] liveRanges = readLiveRanges(dataInput, chunkAmount);
+    if (chunkSize == 0 && liveRanges.length > 0) {
+      throw new IOException("Binary one time pad has an inconsistent header.");
+    }
+    byte[][] chunks = new byte[chunkAmount][];
+    for (int[] range : liveRanges) {
+      for (int i = range[0]; i < range[1]; i++) {
+        chunks[i] = new byte[chunkSize];
+        dataInput.readFully(chunks[i]);
+      }
+    }
+
+    int chunksPerBlock = dataInput.readInt();
+    int leafAmount = dataInput.readInt();
+    if (chunksPerBlock <= 0
+        || leafAmount != (chunkAmount + chunksPerBlock - 1) / chunksPerBlock) {
+      throw new IOException("Binary one time pad has an inconsistent digest tree.");
+    }
+    byte[][] leaves = new byte[leafAmount][DIGEST_SIZE];
+    for (byte[] leaf : leaves) {
+      dataInput.readFully(leaf);
+    }
+    byte[][] remainders = version == 1 ? null : readRemainders(dataInput, leafAmount);
+    final int carvedChunkAmount = dataInput.readInt();
+    final int blockSize = dataInput.readInt();
+    int layout = dataInput.readInt();
+    if (carvedChunkAmount < 0 || carvedChunkAmount > chunkAmount || blockSize < 1 || layout < 0
+        || layout >= PadLayout.values().length) {
+      throw new IOException("Binary one time pad has an inconsistent trailer.");
+    }
+    OneTimePad pad = new OneTimePad(timeStamp, parties, chunks,
+        new PadDigestTree(chunksPerBlock, leaves, remainders),
+        ChunkAllocation.withBlockSize(blockSize), PadLayout.values()[layout]);
+    pad.setCarvedChunkAmount(carvedChunkAmount);
+    return pad;
+  }
+
+  /**
+   * Replaces a pad file by the binary form of the provided pad, typically after chunks were wiped.
+   * The new form is written to a sibling file first and moved over the old one, so a crash leaves
+   * either version intact. The content of the old file is then overwritten with zeros, which
+   * removes wiped key material from the file system as far as the storage device permits.
+   *
+   * @param pad     as the pad to store.
+   * @param padFile as the existing pad file to replace.
+   * @throws IOException if writing, moving or overwriting failed.
+   */
+  public static void rewriteBinaryPadFile(OneTimePad pad, Path padFile) throws IOException {
+    Path replacement = padFile.resolveSibling(padFile.getFileName() + ".tmp");
+    try (FileChannel oldContent = FileChannel.open(padFile, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      try (OutputStream output = Files.newOutputStream(replacement)) {
+        writeBinaryPad(pad, output);
+      }
+      try (FileChannel newContent = FileChannel.open(replacement, StandardOpenOption.WRITE)) {
+        newContent.force(true);
+      }
+      Files.move(replacement, padFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+
+      // The old file is unlinked, but still open, so its blocks are overwritten in bulk
+      ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+      long size = oldContent.size();
+      for (long position = 0; position < size; position += zeros.capacity()) {
+        zeros.clear();
+        zeros.limit((int) Math.min(zeros.capacity(), size - position));
+        while (zeros.hasRemaining()) {
+          oldContent.write(zeros, position + zeros.position());
+        }
+      }
+      oldContent.force(false);
+    }
+  }
+
+  /**
+   * Helper method to find the storage index ranges of chunks that were not wiped.
+   *
+   * @param pad as the pad to analyze.
+   * @return list of start (inclusive) and end (exclusive) storage indexes.
+   */
+  private static List<int[]> findLiveRanges(OneTimePad pad) {
+    List<int[]> liveRanges = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= pad.getChunkAmount(); i++) {
+      boolean live = i < pad.getChunkAmount() && pad.getPhysicalChunkReference(i) != null;
+      if (live && start < 0) {
+        start = i;
+      } else if (!live && start >= 0) {
+        liveRanges.add(new int[] {start, i});
+        start = -1;
+      }
+    }
+    return liveRanges;
+  }
+
+  private static int[][] readLiveRanges(DataInputStream dataInput, int chunkAmount)
+      throws IOException {
+    int rangeAmount = dataInput.readInt();
+    if (rangeAmount < 0 || rangeAmount > chunkAmount) {
+      throw new IOException("Binary one time pad has an inconsistent range table.");
+    }
+    int[][] liveRanges = new int[rangeAmount][2];
+    int previousEnd = 0;
+    for (int[] range : liveRanges) {
+      range[0] = dataInput.readInt();
+      range[1] = dataInput.readInt();
+      if (range[0] < previousEnd || range[1] <= range[0] || range[1] > chunkAmount) {
+        throw new IOException("Binary one time pad has an inconsistent range table.");
+      }
+      previousEnd = range[1];
+    }
+    return liveRanges;
+  }
+
+  private static byte[][] readRemainders(DataInputStream dataInput, int leafAmount)
+      throws IOException {
+    int remainderAmount = dataInput.readInt();
+    if (remainderAmount < 0 || remainderAmount > leafAmount) {
+      throw new IOException("Binary one time pad has an inconsistent digest tree.");
+    }
+    byte[][] remainders = new byte[leafAmount][];
+    int previousBlock = -1;
+    for (int i = 0; i < remainderAmount; i++) {
+      int block = dataInput.readInt();
+      if (block <= previousBlock || block >= leafAmount) {
+        throw new IOException("Binary one time pad has an inconsistent digest tree.");
+      }
+      remainders[block] = new byte[DIGEST_SIZE];
+      dataInput.readFully(remainders[block]);
+      previousBlock = block;
+    }
+    return remainders;
+  }
+
+  /**
+   * Tells whether the provided leading bytes of a stored pad belong to the binary form.
+   *
+   * @param leadingBytes as at least the first four bytes of a stored pad.
+   * @return true for the binary form, false otherwise.
+   */
+  public static boolean isBinaryPad(byte[] leadingBytes) {
+    return leadingBytes.length >= 4 && ((leadingBytes[0] & 0xFF) << 24
+        | (leadingBytes[1] & 0xFF) << 16 | (leadingBytes[2] & 0xFF) << 8
+        | (leadingBytes[3] & 0xFF)) == BINARY_PAD_MAGIC;
+  }
+
+  /**
+   * Loads a pad in binary or JSON form, the form is detected from the leading bytes.
+   *
+   * @param padFile as the file to load.
+   * @return the loaded pad.
+   * @throws IOException if the file cannot be read.
+   */
+  public static OneTimePad readPadFile(Path padFile) throws IOException {
+    try (InputStream input = new BufferedInputStream(Files.newInputStream(padFile), 1 << 16)) {
+      input.mark(4);
+      byte[] leadingBytes = new byte[4];
+      int read = input.read(leadingBytes);
+      input.reset();
+      if (read == 4 && isBinaryPad(leadingBytes)) {
+        return readBinaryPad(input);
+      }
+      try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+        OneTimePad pad = getGsonPadConverter().fromJson(reader, OneTimePad.class);
+        if (pad == null) {
+          throw new IOException("File does not hold a one time pad: " + padFile);
+        }
+        return pad;
+      }
+    }
+  }
+
+  /**
+   * Stores a pad, files ending on ".json" in JSON form, all others in binary form. Existing files
+   * are never overwritten.
+   *
+   * @param pad    as the pad to store.
+   * @param target as the file to create.
+   * @throws IOException if the file exists or cannot be written.
+   */
+  public static void writePadFile(OneTimePad pad, Path target) throws IOException {
+    try (OutputStream output = new BufferedOutputStream(
+        Files.newOutputStream(target, StandardOpenOption.CREATE_NEW), 1 << 16)) {
+      if (target.toString().endsWith(".json")) {
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        synchronized (pad) {
+          getGsonPadConverter().toJson(pad, writer);
+        }
+        writer.flush();
+      } else {
+        writeBinaryPad(pad, output);
+      }
+    }
+  }
+
   /**
    * Helper method to properly handle conversion exception outside of lambda. See:
    * https://gist.github.com/orip/3635246?permalink_comment_id=2187632#gistcomment-2187632
@@ -0,0 +1,256 @@
+/**
+ * Chunk reservation shared by several processes acting as the same party.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Lets several processes on one host encrypt as the same party without reusing chunks. All
+ * processes share a lease file holding the next free position in the party's chunk sequence. Each
+ * process takes batches of chunks from it under an exclusive file lock, and encrypts from its
+ * current batch without further coordination. A message that does not fit into the rest of the
+ * current batch is moved to a new batch, the rest of the old one is skipped.
+ *
+ * <p>The counter is stored twice with serial number and checksum and forced before the lock is
+ * released, so a process crashing during an update never causes another process to get chunks
+ * handed out before.
+ */
+public class SharedChunkLease implements ChunkReservation, Closeable {
+
+  // Magic number at the start of every lease file, "OTPL" in ASCII.
+  private static final int LEASE_MAGIC = 0x4F54504C;
+
+  private static final int LEASE_VERSION = 1;
+
+  // Bytes reserved for magic, version, pad hash and party name.
+  private static final int HEADER_SIZE = 256;
+
+  // Every counter record holds a serial number, the next free sequence index and a checksum.
+  private static final int RECORD_SIZE = 16;
+
+  // File locks are held per process, so threads of one process coordinate through this monitor.
+  private static final Object PROCESS_MONITOR = new Object();
+
+  private final FileChannel channel;
+  private final String padHash;
+  private final String party;
+  private final int partyIndex;
+  private final int partyAmount;
+  private final ChunkAllocation allocation;
+  private final int batchSize;
+
+  // Current batch of this process, as positions in the party's chunk sequence.
+  private int leaseStart;
+  private int leaseEnd;
+
+  // Amount of batches this process took from the lease file.
+  private int leasedBatches;
+
+  /**
+   * Opens a lease file or creates it if the file does not exist yet.
+   *
+   * @param leaseFile as the location of the lease file shared by all processes.
+   * @param pad       as the pad whose chunks are leased.
+   * @param party     as the name@machine string of the party all processes act as.
+   * @param batchSize as the amount of chunks taken from the lease file at once.
+   * @return the opened lease, not holding any chunks yet.
+   * @throws IOException           if the lease file cannot be accessed or belongs to another pad
+   *                               or party.
+   * @throws InvalidPartyException if the party is not associated with the pad.
+   */
+  public static SharedChunkLease open(Path leaseFile, OneTimePad pad, String party,
+                                      int batchSize) throws IOException, InvalidPartyException {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive.");
+    }
+    int partyIndex = pad.getPartyIndex(party);
+    FileChannel channel = FileChannel.open(leaseFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    SharedChunkLease lease = new SharedChunkLease(channel, pad, party, partyIndex, batchSize);
+    try {
+      synchronized (PROCESS_MONITOR) {
+        FileLock lock = channel.lock();
+        try {
+          lease.initializeHeader();
+        } finally {
+          lock.release();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return lease;
+  }
+
+  private SharedChunkLease(FileChannel channel, OneTimePad pad, String party, int partyIndex,
+                           int batchSize) {
+    this.channel = channel;
+    this.padHash = pad.getHash();
+    this.party = party;
+    this.partyIndex = partyIndex;
+    this.partyAmount = pad.getPartyAmount();
+    this.allocation = pad.getChunkAllocation();
+    this.batchSize = batchSize;
+  }
+
+  @Override
+  public String getPadHash() {
+    return padHash;
+  }
+
+  @Override
+  public String getParty() {
+    return party;
+  }
+
+  /**
+   * Tells how many batches this process took from the lease file.
+   *
+   * @return the amount of leased batches.
+   */
+  public synchronized int getLeasedBatches() {
+    return leasedBatches;
+  }
+
+  /**
+   * Grants the chunks of a message if they lie within the current batch of this process. Otherwise
+   * takes a new batch, large enough for the message, from the lease file and names its first chunk.
+   *
+   * @param startChunk    as the first chunk of the encrypted message.
+   * @param followUpChunk as the first chunk of the party behind the message.
+   * @return the provided start chunk if granted, otherwise the first chunk of the new batch.
+   * @throws IOException if the lease file could not be updated.
+   */
+  @Override
+  public synchronized int reserve(int startChunk, int followUpChunk) throws IOException {
+    int startSequence = allocation.getSequenceIndex(startChunk, partyAmount);
+    int endSequence = allocation.getSequenceIndex(followUpChunk, partyAmount);
+    if (startSequence >= leaseStart && endSequence <= leaseEnd) {
+      return startChunk;
+    }
+
+    // Never lease below the position the caller reached on its own, e.g. through its history
+    int size = Math.max(batchSize, endSequence - startSequence);
+    synchronized (PROCESS_MONITOR) {
+      FileLock lock = channel.lock();
+      try {
+        long[] counter = readCounter();
+        int start = Math.max((int) counter[1], startSequence);
+        writeCounter(counter[0] + 1, start + size);
+        channel.force(false);
+        leaseStart = start;
+        leaseEnd = start + size;
+      } finally {
+        lock.release();
+      }
+    }
+    leasedBatches++;
+    return allocation.getChunkId(partyIndex, leaseStart, partyAmount);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Helper method to write the header of a new lease file or verify the header of an existing one.
+   * Must be called while holding the file lock.
+   */
+  private void initializeHeader() throws IOException {
+    byte[] hashBytes = padHash.getBytes(StandardCharsets.UTF_8);
+    byte[] partyBytes = party.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    if (channel.size() < HEADER_SIZE + 2 * RECORD_SIZE) {
+      if (16 + hashBytes.length + partyBytes.length > HEADER_SIZE) {
+        throw new IOException("Pad hash and party do not fit into the lease header.");
+      }
+      header.putInt(LEASE_MAGIC).putInt(LEASE_VERSION);
+      header.putInt(hashBytes.length).put(hashBytes).putInt(partyBytes.length).put(partyBytes);
+      header.rewind();
+      writeFully(header, 0);
+      writeFully(ByteBuffer.allocate(2 * RECORD_SIZE), HEADER_SIZE);
+      channel.force(false);
+      return;
+    }
+    readFully(header, 0);
+    if (header.getInt() != LEASE_MAGIC || header.getInt() != LEASE_VERSION) {
+      throw new IOException("File is not a chunk lease file of a supported version.");
+    }
+    if (!padHash.equals(readString(header)) || !party.equals(readString(header))) {
+      throw new IOException("Chunk lease file belongs to another pad or party.");
+    }
+  }
+
+  /**
+   * Helper method to read the valid counter record with the highest serial number.
+   *
+   * @return serial number and next free sequence index.
+   */
+  private long[] readCounter() throws IOException {
+    ByteBuffer records = ByteBuffer.allocate(2 * RECORD_SIZE);
+    readFully(records, HEADER_SIZE);
+    long[] counter = {0, 0};
+    for (int slot = 0; slot < 2; slot++) {
+      long serial = records.getLong(slot * RECORD_SIZE);
+      int next = records.getInt(slot * RECORD_SIZE + 8);
+      if (serial > counter[0] && records.getInt(slot * RECORD_SIZE + 12) == checksum(serial,
+          next)) {
+        counter[0] = serial;
+        counter[1] = next;
+      }
+    }
+    return counter;
+  }
+
+  private void writeCounter(long serial, int next) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    record.putLong(serial).putInt(next).putInt(checksum(serial, next));
+    record.flip();
+    writeFully(record, HEADER_SIZE + (serial % 2) * RECORD_SIZE);
+  }
+
+  private static int checksum(long serial, int next) {
+    CRC32 crc = new CRC32();
+    crc.update(ByteBuffer.allocate(12).putLong(serial).putInt(next).array());
+    return (int) crc.getValue();
+  }
+
+  private static String readString(ByteBuffer header) throws IOException {
+    int length = header.getInt();
+    if (length < 0 || length > header.remaining()) {
+      throw new IOException("Chunk lease file has an inconsistent header.");
+    }
+    byte[] bytes = new byte[length];
+    header.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Chunk lease file is truncated.");
+      }
+    }
+    buffer.rewind();
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Client counterpart of the message hub.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.hub;
+
+import eu.kartoffelquadrat.otplib.EncryptedMessage;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Blocking client for the message hub. A client joins one or more pads, then sends and receives
+ * encrypted messages in their hex serialization. Sending and receiving may happen on different
+ * threads, but each direction must only be used by one thread at a time.
+ */
+public class HubClient implements Closeable {
+
+  private final SocketChannel channel;
+
+  // Buffer for the length header of inbound frames.
+  private final ByteBuffer lengthHeader = ByteBuffer.allocate(HubFrame.LENGTH_HEADER_SIZE);
+
+  /**
+   * Connects to a hub running on the loopback interface.
+   *
+   * @param port as the port the hub listens on.
+   * @throws IOException if the connection cannot be established.
+   */
+  public HubClient(int port) throws IOException {
+    channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  /**
+   * Registers this client for all messages sent for the provided pad.
+   *
+   * @param padHash as the hash of the pad to join. Only the first six characters are relevant.
+   * @throws IOException if the join request cannot be sent.
+   */
+  public void join(String padHash) throws IOException {
+    write(new ByteBuffer[] {HubFrame.build(HubFrame.JOIN, padHash, new byte[0])});
+  }
+
+  /**
+   * Sends an encrypted message to all other clients that joined the message's pad.
+   *
+   * @param message as the encrypted message to send.
+   * @throws IOException if the message cannot be sent.
+   */
+  public void send(EncryptedMessage message) throws IOException {
+    write(new ByteBuffer[] {toFrame(message)});
+  }
+
+  /**
+   * Sends a batch of encrypted messages in a single gathering write.
+   *
+   * @param messages as the encrypted messages to send.
+   * @throws IOException if the messages cannot be sent.
+   */
+  public void send(List<EncryptedMessage> messages) throws IOException {
+    ByteBuffer[] frames = new ByteBuffer[messages.size()];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = toFrame(messages.get(i));
+    }
+    write(frames);
+  }
+
+  /**
+   * Blocks until the next message is received from the hub.
+   *
+   * @return the hex serialization of the received encrypted message.
+   * @throws IOException if the connection failed or was closed by the hub.
+   */
+  public String receive() throws IOException {
+    lengthHeader.clear();
+    readFully(lengthHeader);
+    int frameLength = lengthHeader.getInt(0);
+    if (frameLength < HubFrame.META_SIZE || frameLength > HubFrame.MAX_FRAME_SIZE) {
+      throw new IOException("Received frame with invalid length header.");
+    }
+    ByteBuffer frame = ByteBuffer.allocate(frameLength);
+    readFully(frame);
+    return new String(frame.array(), HubFrame.META_SIZE, frameLength - HubFrame.META_SIZE,
+        StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Helper method to wrap an encrypted message into a message frame. Serialized messages start
+   * with the pad hash prefix, which is reused for routing.
+   *
+   * @param message as the message to wrap.
+   * @return frame ready for transmission.
+   */
+  private static ByteBuffer toFrame(EncryptedMessage message) {
+    String serializedMessage = message.serializeToHex();
+    return HubFrame.build(HubFrame.MESSAGE, serializedMessage,
+        serializedMessage.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private void write(ByteBuffer[] frames) throws IOException {
+    synchronized (channel) {
+      while (frames[frames.length - 1].hasRemaining()) {
+        channel.write(frames);
+      }
+    }
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Hub closed the connection.");
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Framing rules shared by the message hub and its clients.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.hub;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Every frame exchanged with the hub consists of a four byte length header, followed by a one byte
+ * frame type, the six character pad hash prefix and the actual payload. The length header counts
+ * everything but itself. Frames are built straight into a single byte buffer, so they can be handed
+ * to the channel without further copying.
+ */
+final class HubFrame {
+
+  // Frame type used by clients to register for all messages of a given pad.
+  static final byte JOIN = 1;
+
+  // Frame type used for the actual encrypted messages.
+  static final byte MESSAGE = 2;
+
+  // Amount of bytes used for the frame length header.
+  static final int LENGTH_HEADER_SIZE = 4;
+
+  // Amount of pad hash characters used for routing. Matches the prefix of serialized messages.
+  static final int PREFIX_LENGTH = 6;
+
+  // Size of type and prefix, which precede the payload in every frame.
+  static final int META_SIZE = 1 + PREFIX_LENGTH;
+
+  // Upper bound for the size of a single frame, to reject corrupted length headers.
+  static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  private HubFrame() {
+  }
+
+  /**
+   * Builds a frame ready for transmission.
+   *
+   * @param type    as the frame type.
+   * @param padHash as the pad hash or pad hash prefix to route the frame by.
+   * @param payload as the frame content.
+   * @return byte buffer holding the entire frame, flipped for reading.
+   */
+  static ByteBuffer build(byte type, String padHash, byte[] payload) {
+    ByteBuffer frame = ByteBuffer.allocate(LENGTH_HEADER_SIZE + META_SIZE + payload.length);
+    frame.putInt(META_SIZE + payload.length);
+    frame.put(type);
+    frame.put(toPrefixBytes(padHash));
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Converts the first characters of a pad hash to the fixed size routing prefix.
+   *
+   * @param padHash as the full hash or the hash prefix.
+   * @return the prefix in ascii bytes.
+   */
+  static byte[] toPrefixBytes(String padHash) {
+    if (padHash.length() < PREFIX_LENGTH) {
+      throw new IllegalArgumentException(
+          "Pad hash must have at least " + PREFIX_LENGTH + " characters.");
+    }
+    return padHash.substring(0, PREFIX_LENGTH).toUpperCase().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Encodes the prefix of a frame as integer, for cheap routing table lookups. Six hexadecimal
+   * characters fit into 24 bits.
+   *
+   * @param frame        as buffer containing the frame.
+   * @param prefixOffset as absolute position of the prefix in the buffer.
+   * @return integer key for the prefix.
+   */
+  static int readRoutingKey(ByteBuffer frame, int prefixOffset) {
+    int key = 0;
+    for (int i = 0; i < PREFIX_LENGTH; i++) {
+      int digit = Character.digit(frame.get(prefixOffset + i), 16);
+      if (digit < 0) {
+        throw new IllegalArgumentException("Frame prefix is not a hexadecimal pad hash prefix.");
+      }
+      key = (key << 4) | digit;
+    }
+    return key;
+  }
+}
@@ -0,0 +1,364 @@
+/**
+ * Reference transport for encrypted messages, based on non-blocking socket channels.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.hub;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single threaded, selector based hub that routes encrypted messages between the parties of a pad.
+ * Clients join a pad by its hash prefix, every message frame sent afterwards is forwarded to all
+ * other clients that joined the same prefix. The hub never looks at message contents. It only binds
+ * to the loopback interface, which makes it a self-contained transport for tests and benchmarks.
+ * Received frames are copied once and then shared among all recipients as read-only buffer
+ * duplicates. Pending frames of a connection are flushed with a single gathering write. Clients
+ * that do not keep up with their inbound traffic are disconnected once the frames queued for them
+ * exceed a bound, so a single stalled reader cannot exhaust the memory of the hub.
+ */
+public class MessageHub implements Closeable {
+
+  // Size of the per connection read buffer. Grows on demand for larger frames, and shrinks back
+  // once they are processed.
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  // Default bound for the bytes queued per connection. Leaves room for two frames of maximum size.
+  private static final long MAX_QUEUED_BYTES = 2L * HubFrame.MAX_FRAME_SIZE;
+
+  // Maximum amount of buffers handed to a single gathering write.
+  private static final int WRITE_BATCH_SIZE = 64;
+
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final long maxQueuedBytes;
+
+  // Routing table, maps the numeric pad hash prefix to all connections that joined it.
+  private final Map<Integer, Set<Connection>> routes = new HashMap<>();
+
+  private final Thread selectorThread;
+  private volatile boolean running;
+
+  /**
+   * Per client state. Buffers partial inbound frames and queues outbound frames.
+   */
+  private static class Connection {
+    private final SocketChannel channel;
+    private final Set<Integer> joinedRoutes = new HashSet<>();
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long queuedBytes;
+    private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * Creates a hub listening on an arbitrary free port of the loopback interface. The hub does not
+   * route anything until started.
+   *
+   * @throws IOException if the server socket cannot be opened.
+   */
+  public MessageHub() throws IOException {
+    this(0);
+  }
+
+  /**
+   * Creates a hub listening on the provided port of the loopback interface. The hub does not route
+   * anything until started.
+   *
+   * @param port as the port to listen on, or 0 for an arbitrary free port.
+   * @throws IOException if the server socket cannot be opened.
+   */
+  public MessageHub(int port) throws IOException {
+    this(port, MAX_QUEUED_BYTES);
+  }
+
+  /**
+   * Creates a hub with a custom bound for the bytes queued per connection. Only tests need to
+   * lower the bound.
+   *
+   * @param port           as the port to listen on, or 0 for an arbitrary free port.
+   * @param maxQueuedBytes as the amount of queued bytes that gets a connection dropped.
+   * @throws IOException if the server socket cannot be opened.
+   */
+  MessageHub(int port, long maxQueuedBytes) throws IOException {
+    this.maxQueuedBytes = maxQueuedBytes;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    selectorThread = new Thread(this::runSelectorLoop, "otplib-message-hub");
+    selectorThread.setDaemon(true);
+  }
+
+  /**
+   * Starts routing messages on a background thread.
+   */
+  public void start() {
+    running = true;
+    selectorThread.start();
+  }
+
+  /**
+   * Look up the port the hub is listening on.
+   *
+   * @return the local port of the server socket.
+   */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Stops routing and closes all client connections.
+   *
+   * @throws IOException if closing the server socket failed.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    selector.wakeup();
+    try {
+      selectorThread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
+    }
+    selector.close();
+  }
+
+  /**
+   * Main loop of the selector thread. Dispatches readiness events until the hub is closed.
+   */
+  private void runSelectorLoop() {
+    try {
+      while (running) {
+        selector.select();
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          SelectionKey key = selectedKeys.next();
+          selectedKeys.remove();
+          try {
+            handle(key);
+          } catch (IOException | IllegalArgumentException e) {
+            // Faulty or vanished client. Only this connection is dropped.
+            disconnect(key);
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      running = false;
+    }
+  }
+
+  /**
+   * Helper method to process a single readiness event.
+   *
+   * @param key as the selection key that is ready.
+   * @throws IOException if the underlying channel failed.
+   */
+  private void handle(SelectionKey key) throws IOException {
+    if (!key.isValid()) {
+      return;
+    }
+    if (key.isAcceptable()) {
+      SocketChannel channel = serverChannel.accept();
+      if (channel != null) {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+      }
+      return;
+    }
+    if (key.isReadable()) {
+      read(key);
+    }
+    if (key.isValid() && key.isWritable()) {
+      flush(key);
+    }
+  }
+
+  /**
+   * Reads whatever is available on a connection and processes all frames that are complete.
+   *
+   * @param key as the selection key of the readable connection.
+   * @throws IOException if reading failed or the client disconnected.
+   */
+  private void read(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    if (connection.channel.read(connection.inbound) < 0) {
+      disconnect(key);
+      return;
+    }
+
+    ByteBuffer inbound = connection.inbound;
+    inbound.flip();
+    while (inbound.remaining() >= HubFrame.LENGTH_HEADER_SIZE) {
+      int frameStart = inbound.position();
+      int frameLength = inbound.getInt(frameStart);
+      if (frameLength < HubFrame.META_SIZE || frameLength > HubFrame.MAX_FRAME_SIZE) {
+        throw new IOException("Received frame with invalid length header.");
+      }
+      int totalLength = HubFrame.LENGTH_HEADER_SIZE + frameLength;
+      if (inbound.remaining() < totalLength) {
+        break;
+      }
+      processFrame(connection, inbound, frameStart, totalLength);
+      inbound.position(frameStart + totalLength);
+    }
+    inbound.compact();
+
+    // Grow the buffer if a single pending frame does not fit, shrink it back after large frames.
+    // A pending partial frame always fits the new buffer, as all complete frames were processed.
+    int required = READ_BUFFER_SIZE;
+    if (inbound.position() >= HubFrame.LENGTH_HEADER_SIZE) {
+      required = Math.max(required, HubFrame.LENGTH_HEADER_SIZE + inbound.getInt(0));
+    }
+    if (required != inbound.capacity()) {
+      ByteBuffer resized = ByteBuffer.allocate(required);
+      inbound.flip();
+      resized.put(inbound);
+      connection.inbound = resized;
+    }
+  }
+
+  /**
+   * Handles a single complete frame, located in the read buffer of a connection.
+   *
+   * @param sender      as the connection the frame was received from.
+   * @param inbound     as the read buffer holding the frame.
+   * @param frameStart  as the absolute position of the frame in the buffer.
+   * @param totalLength as the frame length, including the length header.
+   */
+  private void processFrame(Connection sender, ByteBuffer inbound, int frameStart,
+                            int totalLength) {
+    byte type = inbound.get(frameStart + HubFrame.LENGTH_HEADER_SIZE);
+    int routingKey =
+        HubFrame.readRoutingKey(inbound, frameStart + HubFrame.LENGTH_HEADER_SIZE + 1);
+
+    if (type == HubFrame.JOIN) {
+      routes.computeIfAbsent(routingKey, k -> new LinkedHashSet<>()).add(sender);
+      sender.joinedRoutes.add(routingKey);
+      return;
+    }
+    if (type != HubFrame.MESSAGE) {
+      throw new IllegalArgumentException("Received frame of unknown type.");
+    }
+
+    Set<Connection> recipients = routes.get(routingKey);
+    if (recipients == null) {
+      return;
+    }
+
+    // Copy the frame once out of the reusable read buffer, then share it among all recipients.
+    ByteBuffer frame = ByteBuffer.allocate(totalLength);
+    ByteBuffer source = inbound.duplicate();
+    source.limit(frameStart + totalLength).position(frameStart);
+    frame.put(source).flip();
+    ByteBuffer sharedFrame = frame.asReadOnlyBuffer();
+
+    // Recipients over their bound are dropped after the loop, as dropping alters the route.
+    List<Connection> stalled = new LinkedList<>();
+    for (Connection recipient : recipients) {
+      if (recipient != sender && !enqueue(recipient, sharedFrame.duplicate())) {
+        stalled.add(recipient);
+      }
+    }
+    for (Connection recipient : stalled) {
+      disconnect(recipient.channel.keyFor(selector));
+    }
+  }
+
+  /**
+   * Queues a frame for a recipient and registers interest in writability of the connection.
+   *
+   * @param recipient as the connection to send the frame to.
+   * @param frame     as the frame to send.
+   * @return false if the frame was not queued, because the recipient is over its bound.
+   */
+  private boolean enqueue(Connection recipient, ByteBuffer frame) {
+    if (recipient.queuedBytes + frame.remaining() > maxQueuedBytes) {
+      return false;
+    }
+    recipient.outbound.add(frame);
+    recipient.queuedBytes += frame.remaining();
+    SelectionKey key = recipient.channel.keyFor(selector);
+    if (key != null && key.isValid()) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+    return true;
+  }
+
+  /**
+   * Writes as many queued frames as the connection accepts, in gathering writes.
+   *
+   * @param key as the selection key of the writable connection.
+   * @throws IOException if writing failed.
+   */
+  private void flush(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    Deque<ByteBuffer> outbound = connection.outbound;
+    while (!outbound.isEmpty()) {
+      ByteBuffer[] batch = outbound.stream().limit(WRITE_BATCH_SIZE).toArray(ByteBuffer[]::new);
+      connection.queuedBytes -= connection.channel.write(batch);
+      while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+        outbound.poll();
+      }
+      if (batch[batch.length - 1].hasRemaining()) {
+        // Socket send buffer is full, continue once writable again.
+        return;
+      }
+    }
+    key.interestOps(SelectionKey.OP_READ);
+  }
+
+  /**
+   * Closes a connection and removes it from all routes it joined.
+   *
+   * @param key as the selection key of the connection to close.
+   */
+  private void disconnect(SelectionKey key) {
+    Object attachment = key.attachment();
+    if (attachment instanceof Connection) {
+      Connection connection = (Connection) attachment;
+      for (Integer routingKey : connection.joinedRoutes) {
+        Set<Connection> members = routes.get(routingKey);
+        if (members != null) {
+          members.remove(connection);
+          if (members.isEmpty()) {
+            routes.remove(routingKey);
+          }
+        }
+      }
+    }
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // Channel is gone either way.
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * Outcome of a traffic simulation run.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.simulation;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Immutable summary of a simulation run: throughput, delivery latency, and how fast and how
+ * efficiently the simulated conversation consumed its pad.
+ */
+public class SimulationReport {
+
+  private final double elapsedSeconds;
+  private final long messagesSent;
+  private final long messagesDelivered;
+  private final long payloadBytesSent;
+  private final long keyBytesUsed;
+  private final long[] sortedLatencyNanos;
+  private final String[] parties;
+  private final double[] exhaustionSeconds;
+  private final double strandedChunkShare;
+
+  /**
+   * Constructor for a simulation report. Only created by the simulator.
+   *
+   * @param elapsedSeconds     as the wall clock duration of the run.
+   * @param messagesSent       as the amount of messages encrypted by all parties.
+   * @param messagesDelivered  as the amount of messages decrypted by receiving parties.
+   * @param payloadBytesSent   as the sum of plain payload sizes of all sent messages.
+   * @param keyBytesUsed       as the amount of pad bytes consumed by all sent messages.
+   * @param latencyNanos       as the delivery latencies of all delivered messages.
+   * @param parties            as the simulated parties.
+   * @param exhaustionSeconds  as per party, the observed or projected time until the party's chunks
+   *                           run out. Infinite for parties that never send.
+   * @param strandedChunkShare as the share of pad chunks still unused when the first party runs out
+   *                           of chunks.
+   */
+  SimulationReport(double elapsedSeconds, long messagesSent, long messagesDelivered,
+                   long payloadBytesSent, long keyBytesUsed, long[] latencyNanos,
+                   String[] parties, double[] exhaustionSeconds, double strandedChunkShare) {
+    this.elapsedSeconds = elapsedSeconds;
+    this.messagesSent = messagesSent;
+    this.messagesDelivered = messagesDelivered;
+    this.payloadBytesSent = payloadBytesSent;
+    this.keyBytesUsed = keyBytesUsed;
+    this.sortedLatencyNanos = Arrays.copyOf(latencyNanos, latencyNanos.length);
+    Arrays.sort(sortedLatencyNanos);
+    this.parties = Arrays.copyOf(parties, parties.length);
+    this.exhaustionSeconds = Arrays.copyOf(exhaustionSeconds, exhaustionSeconds.length);
+    this.strandedChunkShare = strandedChunkShare;
+  }
+
+  /**
+   * Look up the amount of messages encrypted by all parties.
+   *
+   * @return amount of sent messages.
+   */
+  public long getMessagesSent() {
+    return messagesSent;
+  }
+
+  /**
+   * Look up the amount of messages decrypted by receiving parties. Every message is delivered to
+   * all parties but its author.
+   *
+   * @return amount of delivered messages.
+   */
+  public long getMessagesDelivered() {
+    return messagesDelivered;
+  }
+
+  /**
+   * Sustained send throughput over the entire run.
+   *
+   * @return messages sent per second.
+   */
+  public double getMessagesPerSecond() {
+    return messagesSent / elapsedSeconds;
+  }
+
+  /**
+   * Sustained payload throughput over the entire run.
+   *
+   * @return plain payload bytes sent per second.
+   */
+  public double getPayloadBytesPerSecond() {
+    return payloadBytesSent / elapsedSeconds;
+  }
+
+  /**
+   * Ratio between consumed key material and plain payload. Values above one are caused by padding
+   * to full chunks, values below one by payload compression.
+   *
+   * @return pad bytes consumed per plain payload byte.
+   */
+  public double getKeyBytesPerPayloadByte() {
+    return payloadBytesSent == 0 ? 0 : (double) keyBytesUsed / payloadBytesSent;
+  }
+
+  /**
+   * Look up a delivery latency percentile.
+   *
+   * @param percentile as value between 0 and 100.
+   * @return latency in milliseconds, or 0 if no message was delivered.
+   */
+  public double getLatencyMillis(double percentile) {
+    if (sortedLatencyNanos.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length) - 1;
+    index = Math.max(0, Math.min(sortedLatencyNanos.length - 1, index));
+    return sortedLatencyNanos[index] / 1e6;
+  }
+
+  /**
+   * Time until the first party runs out of chunks. Observed if it happened during the run,
+   * projected from the party's consumption rate otherwise.
+   *
+   * @return seconds until pad exhaustion.
+   */
+  public double getPadExhaustionSeconds() {
+    return Arrays.stream(exhaustionSeconds).min().orElse(Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Share of pad chunks that are still unused when the first party runs out of chunks. These
+   * chunks belong to less active parties and are stranded, since no other party may use them.
+   *
+   * @return stranded share of the pad, between 0 and 1.
+   */
+  public double getStrandedChunkShare() {
+    return strandedChunkShare;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(Locale.ROOT, "Duration:               %.2f s%n", elapsedSeconds));
+    report.append(String.format(Locale.ROOT, "Messages sent:          %d (%.1f msg/s)%n",
+        messagesSent, getMessagesPerSecond()));
+    report.append(String.format(Locale.ROOT, "Messages delivered:     %d%n", messagesDelivered));
+    report.append(String.format(Locale.ROOT, "Payload throughput:     %.1f KiB/s%n",
+        getPayloadBytesPerSecond() / 1024));
+    report.append(String.format(Locale.ROOT,
+        "Latency p50/p90/p99/max: %.3f / %.3f / %.3f / %.3f ms%n", getLatencyMillis(50),
+        getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(100)));
+    report.append(String.format(Locale.ROOT, "Key bytes per payload:  %.3f%n",
+        getKeyBytesPerPayloadByte()));
+    report.append(String.format(Locale.ROOT, "Stranded pad share:     %.1f %%%n",
+        strandedChunkShare * 100));
+    for (int i = 0; i < parties.length; i++) {
+      report.append(String.format(Locale.ROOT, "Pad exhaustion %-12s %.1f s%n", parties[i] + ":",
+          exhaustionSeconds[i]));
+    }
+    return report.toString();
+  }
+}
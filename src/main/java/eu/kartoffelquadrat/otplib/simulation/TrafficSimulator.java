@@ -0,0 +1,410 @@
+/**
+ * Load test harness for sizing pads and hardware.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.simulation;
+
+import eu.kartoffelquadrat.otplib.ChunkAllocation;
+import eu.kartoffelquadrat.otplib.Conversation;
+import eu.kartoffelquadrat.otplib.CryptorException;
+import eu.kartoffelquadrat.otplib.DeterministicRandomSource;
+import eu.kartoffelquadrat.otplib.EncryptedMessage;
+import eu.kartoffelquadrat.otplib.OneTimePad;
+import eu.kartoffelquadrat.otplib.OneTimePadGenerator;
+import eu.kartoffelquadrat.otplib.OutOfChunksException;
+import eu.kartoffelquadrat.otplib.PadGeneratorException;
+import eu.kartoffelquadrat.otplib.PayloadCodec;
+import eu.kartoffelquadrat.otplib.PlainMessage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a group of parties sharing one pad. Every party runs on its own thread with its own
+ * conversation, sends messages of random size at a fixed rate and receives the messages of all
+ * other parties through an in-memory transport. The resulting report tells sustained throughput,
+ * delivery latency, when the pad runs out and how much key material is wasted on padding or
+ * stranded with idle parties. Launch with "mvn exec:java -Dexec.args='parties=4 rates=50,50,5,0'",
+ * see main for all options.
+ */
+public class TrafficSimulator {
+
+  // Vocabulary for generated payloads. Real text, so the effect of payload compression is
+  // realistic.
+  private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit "
+      + "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua ut enim ad minim veniam "
+      + "quis nostrud exercitation ullamco laboris nisi aliquip ex ea commodo consequat")
+      .split(" ");
+
+  private final int padSize;
+  private final int chunkSize;
+  private final double[] sendRates;
+  private final int minMessageSize;
+  private final int maxMessageSize;
+  private final double durationSeconds;
+  private final PayloadCodec codec;
+  private final ChunkAllocation allocation;
+
+  /**
+   * A message in transit, stamped with the moment it was sent.
+   */
+  private static class Envelope {
+    private final EncryptedMessage message;
+    private final long sentNanos;
+
+    Envelope(EncryptedMessage message, long sentNanos) {
+      this.message = message;
+      this.sentNanos = sentNanos;
+    }
+  }
+
+  /**
+   * Sets up a simulation. Nothing happens until run is called.
+   *
+   * @param padSize         as the amount of chunks of the simulated pad.
+   * @param chunkSize       as the amount of bytes per chunk.
+   * @param sendRates       as the messages per second sent by each party. The amount of entries
+   *                        defines the amount of parties. Use 0 for idle parties.
+   * @param minMessageSize  as the lower bound of the uniform payload size distribution, in bytes.
+   * @param maxMessageSize  as the upper bound of the uniform payload size distribution, in bytes.
+   * @param durationSeconds as the duration of the simulation.
+   * @param codec           as the payload codec used by all parties.
+   * @param allocation      as the assignment of chunks to parties.
+   */
+  public TrafficSimulator(int padSize, int chunkSize, double[] sendRates, int minMessageSize,
+                          int maxMessageSize, double durationSeconds, PayloadCodec codec,
+                          ChunkAllocation allocation) {
+    if (sendRates.length == 0 || minMessageSize < 1 || maxMessageSize < minMessageSize) {
+      throw new IllegalArgumentException("Simulation requires parties and a valid size range.");
+    }
+    this.padSize = padSize;
+    this.chunkSize = chunkSize;
+    this.sendRates = Arrays.copyOf(sendRates, sendRates.length);
+    this.minMessageSize = minMessageSize;
+    this.maxMessageSize = maxMessageSize;
+    this.durationSeconds = durationSeconds;
+    this.codec = codec;
+    this.allocation = allocation;
+  }
+
+  /**
+   * Runs the simulation and blocks until all parties are done.
+   *
+   * @return report of the simulation outcome.
+   * @throws PadGeneratorException if the simulated pad cannot be created.
+   * @throws CryptorException      if a party fails to encrypt or decrypt for other reasons than
+   *                               running out of chunks. The other parties still run until the
+   *                               end of the send phase.
+   * @throws InterruptedException  if interrupted while waiting for the parties.
+   */
+  public SimulationReport run()
+      throws PadGeneratorException, CryptorException, InterruptedException {
+
+    String[] parties = new String[sendRates.length];
+    for (int i = 0; i < parties.length; i++) {
+      parties[i] = "sim@" + toMachineName(i);
+    }
+    // Simulated key material protects nothing, a seeded source makes runs reproducible and fast
+    OneTimePad pad = OneTimePadGenerator.generateInsecurePad(padSize, chunkSize, parties,
+        allocation, new DeterministicRandomSource(padSize));
+
+    // One inbox per party, every sent message is put into the inboxes of all other parties.
+    Map<Integer, BlockingQueue<Envelope>> inboxes = new HashMap<>();
+    for (int i = 0; i < parties.length; i++) {
+      inboxes.put(i, new LinkedBlockingQueue<>());
+    }
+
+    CyclicBarrier sendPhaseDone = new CyclicBarrier(parties.length);
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + (long) (durationSeconds * 1e9);
+    PartyWorker[] workers = new PartyWorker[parties.length];
+    Thread[] threads = new Thread[parties.length];
+    for (int i = 0; i < parties.length; i++) {
+      workers[i] = new PartyWorker(i, new Conversation(pad, parties[i]), inboxes, startNanos,
+          deadlineNanos, sendPhaseDone);
+      threads[i] = new Thread(workers[i], "otplib-simulated-" + parties[i]);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+    for (PartyWorker worker : workers) {
+      if (worker.failure instanceof CryptorException) {
+        throw (CryptorException) worker.failure;
+      }
+      if (worker.failure != null) {
+        throw (RuntimeException) worker.failure;
+      }
+    }
+    return createReport(parties, workers, elapsedSeconds);
+  }
+
+  /**
+   * Aggregates the per party statistics and projects pad exhaustion from consumption rates.
+   *
+   * @param parties        as the simulated parties.
+   * @param workers        as the finished party workers.
+   * @param elapsedSeconds as the duration of the run.
+   * @return the simulation report.
+   */
+  private SimulationReport createReport(String[] parties, PartyWorker[] workers,
+                                        double elapsedSeconds) {
+    long messagesSent = 0;
+    long messagesDelivered = 0;
+    long payloadBytes = 0;
+    long keyBytes = 0;
+    int latencyAmount = 0;
+    double[] exhaustionSeconds = new double[parties.length];
+    for (int i = 0; i < workers.length; i++) {
+      PartyWorker worker = workers[i];
+      messagesSent += worker.sent;
+      messagesDelivered += worker.latencyAmount;
+      payloadBytes += worker.payloadBytes;
+      keyBytes += (long) worker.getUsedChunks() * chunkSize;
+      latencyAmount += worker.latencyAmount;
+      if (!Double.isNaN(worker.exhaustedAtSeconds)) {
+        exhaustionSeconds[i] = worker.exhaustedAtSeconds;
+      } else if (worker.getUsedChunks() == 0) {
+        exhaustionSeconds[i] = Double.POSITIVE_INFINITY;
+      } else {
+        exhaustionSeconds[i] = elapsedSeconds * getOwnedChunks(i) / worker.getUsedChunks();
+      }
+    }
+
+    // Chunks of all other parties that remain unused when the first party runs out.
+    double firstExhaustion = Arrays.stream(exhaustionSeconds).min().orElse(0);
+    double strandedChunks = 0;
+    for (int i = 0; i < workers.length; i++) {
+      double usedAtExhaustion = Double.isInfinite(firstExhaustion) ? 0
+          : Math.min(getOwnedChunks(i),
+              workers[i].getUsedChunks() * firstExhaustion / elapsedSeconds);
+      strandedChunks += getOwnedChunks(i) - usedAtExhaustion;
+    }
+
+    long[] latencies = new long[latencyAmount];
+    int offset = 0;
+    for (PartyWorker worker : workers) {
+      System.arraycopy(worker.latencies, 0, latencies, offset, worker.latencyAmount);
+      offset += worker.latencyAmount;
+    }
+    return new SimulationReport(elapsedSeconds, messagesSent, messagesDelivered, payloadBytes,
+        keyBytes, latencies, parties, exhaustionSeconds, strandedChunks / padSize);
+  }
+
+  /**
+   * Looks up how many chunks of the pad the allocation assigns to a party.
+   *
+   * @param partyIndex as the index of the party.
+   * @return amount of chunks owned by the party.
+   */
+  private int getOwnedChunks(int partyIndex) {
+    return allocation.getOwnedChunkAmount(partyIndex, sendRates.length, padSize);
+  }
+
+  /**
+   * Party names may only contain letters, so party indexes are converted to letter sequences.
+   *
+   * @param index as the party index.
+   * @return machine name for the party.
+   */
+  private static String toMachineName(int index) {
+    StringBuilder name = new StringBuilder();
+    int remainder = index;
+    do {
+      name.insert(0, (char) ('a' + remainder % 26));
+      remainder = remainder / 26 - 1;
+    } while (remainder >= 0);
+    return name.toString();
+  }
+
+  /**
+   * Simulated party. Sends at a fixed rate until the deadline or until its chunks run out, receives
+   * the messages of all other parties in between.
+   */
+  private class PartyWorker implements Runnable {
+
+    private final int index;
+    private final Conversation conversation;
+    private final Map<Integer, BlockingQueue<Envelope>> inboxes;
+    private final long startNanos;
+    private final long deadlineNanos;
+    private final CyclicBarrier sendPhaseDone;
+    private final Random random;
+
+    private long sent;
+    private long payloadBytes;
+    private long[] latencies = new long[1024];
+    private int latencyAmount;
+    private double exhaustedAtSeconds = Double.NaN;
+    private boolean sendPhaseLeft;
+
+    // Either a CryptorException or a RuntimeException that ended the worker.
+    private Throwable failure;
+
+    PartyWorker(int index, Conversation conversation, Map<Integer, BlockingQueue<Envelope>> inboxes,
+                long startNanos, long deadlineNanos, CyclicBarrier sendPhaseDone) {
+      this.index = index;
+      this.conversation = conversation;
+      this.inboxes = inboxes;
+      this.startNanos = startNanos;
+      this.deadlineNanos = deadlineNanos;
+      this.sendPhaseDone = sendPhaseDone;
+      this.random = new Random(index);
+      conversation.setPayloadCodec(codec);
+    }
+
+    @Override
+    public void run() {
+      try {
+        BlockingQueue<Envelope> inbox = inboxes.get(index);
+        long intervalNanos =
+            sendRates[index] > 0 ? (long) (1e9 / sendRates[index]) : Long.MAX_VALUE;
+        long nextSendNanos = sendRates[index] > 0 ? startNanos : Long.MAX_VALUE;
+
+        // Send phase: interleave sending on schedule with receiving.
+        long now = System.nanoTime();
+        while (now < deadlineNanos) {
+          if (now >= nextSendNanos) {
+            if (!send()) {
+              nextSendNanos = Long.MAX_VALUE;
+            } else {
+              nextSendNanos += intervalNanos;
+            }
+          } else {
+            Envelope envelope =
+                inbox.poll(Math.min(nextSendNanos, deadlineNanos) - now, TimeUnit.NANOSECONDS);
+            if (envelope != null) {
+              receive(envelope);
+            }
+          }
+          now = System.nanoTime();
+        }
+
+        // Once everybody stopped sending, deliver whatever is still in transit.
+        leaveSendPhase();
+        Envelope envelope = inbox.poll();
+        while (envelope != null) {
+          receive(envelope);
+          envelope = inbox.poll();
+        }
+      } catch (CryptorException | RuntimeException e) {
+        failure = e;
+      } catch (InterruptedException | BrokenBarrierException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+
+        // A failed worker must still arrive at the barrier, or all other workers wait forever.
+        if (!sendPhaseLeft) {
+          try {
+            leaveSendPhase();
+          } catch (InterruptedException | BrokenBarrierException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+
+    private void leaveSendPhase() throws InterruptedException, BrokenBarrierException {
+      sendPhaseLeft = true;
+      sendPhaseDone.await();
+    }
+
+    /**
+     * Encrypts a new message of random size and puts it into the inboxes of all other parties.
+     *
+     * @return false if the party ran out of chunks, true otherwise.
+     * @throws CryptorException if the encryption failed for other reasons.
+     */
+    private boolean send() throws CryptorException {
+      byte[] payload = createPayload();
+      EncryptedMessage encMessage;
+      try {
+        encMessage = conversation.encryptAndAddMessage(
+            new PlainMessage("sim", toMachineName(index), payload));
+      } catch (OutOfChunksException e) {
+        exhaustedAtSeconds = (System.nanoTime() - startNanos) / 1e9;
+        return false;
+      }
+      Envelope envelope = new Envelope(encMessage, System.nanoTime());
+      for (Map.Entry<Integer, BlockingQueue<Envelope>> inbox : inboxes.entrySet()) {
+        if (inbox.getKey() != index) {
+          inbox.getValue().add(envelope);
+        }
+      }
+      sent++;
+      payloadBytes += payload.length;
+      return true;
+    }
+
+    private void receive(Envelope envelope) throws CryptorException {
+      conversation.addEncryptedMessage(envelope.message);
+      if (latencyAmount == latencies.length) {
+        latencies = Arrays.copyOf(latencies, latencies.length * 2);
+      }
+      latencies[latencyAmount++] = System.nanoTime() - envelope.sentNanos;
+    }
+
+    private int getUsedChunks() {
+      int highWaterMark = conversation.getHistoryVector().getHighWaterMark(index);
+      return allocation.getSequenceIndex(highWaterMark, sendRates.length);
+    }
+
+    private byte[] createPayload() {
+      int size = minMessageSize + random.nextInt(maxMessageSize - minMessageSize + 1);
+      StringBuilder text = new StringBuilder(size + 16);
+      while (text.length() < size) {
+        text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      text.setLength(size);
+      return text.toString().getBytes();
+    }
+  }
+
+  /**
+   * Command line entry point. Accepts key=value arguments, all optional: padSize (chunks, default
+   * 16384), chunkSize (bytes, default 64), parties (default 4), rates (messages per second, a
+   * single value for all parties or a comma separated value per party, default 20), minSize and
+   * maxSize (payload bytes, default 16 and 512), duration (seconds, default 10), codec (NONE or
+   * DEFLATE, default NONE) and blockSize (chunks per allocation block, default 1 for round robin).
+   *
+   * @param args as the key=value simulation parameters.
+   * @throws Throwable if the simulation failed.
+   */
+  public static void main(String[] args) throws Throwable {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] keyValue = arg.split("=", 2);
+      if (keyValue.length != 2) {
+        throw new IllegalArgumentException("Arguments must be of format key=value: " + arg);
+      }
+      options.put(keyValue[0], keyValue[1]);
+    }
+
+    int partyAmount = Integer.parseInt(options.getOrDefault("parties", "4"));
+    String[] rateValues = options.getOrDefault("rates", "20").split(",");
+    double[] rates = new double[rateValues.length == 1 ? partyAmount : rateValues.length];
+    for (int i = 0; i < rates.length; i++) {
+      rates[i] = Double.parseDouble(rateValues[rateValues.length == 1 ? 0 : i]);
+    }
+
+    TrafficSimulator simulator = new TrafficSimulator(
+        Integer.parseInt(options.getOrDefault("padSize", "16384")),
+        Integer.parseInt(options.getOrDefault("chunkSize", "64")), rates,
+        Integer.parseInt(options.getOrDefault("minSize", "16")),
+        Integer.parseInt(options.getOrDefault("maxSize", "512")),
+        Double.parseDouble(options.getOrDefault("duration", "10")),
+        PayloadCodec.valueOf(options.getOrDefault("codec", "NONE")),
+        ChunkAllocation.withBlockSize(Integer.parseInt(options.getOrDefault("blockSize", "1"))));
+    System.out.print(simulator.run());
+  }
+}
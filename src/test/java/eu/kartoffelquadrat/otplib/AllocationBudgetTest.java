@@ -0,0 +1,145 @@
+/**
+ * Allocation regression tests for the core library operations.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import junit.framework.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Every test in this class measures the bytes allocated by the current thread for a single
+ * execution of a core operation, and fails if the operation exceeds its budget. Budgets are set
+ * 10 to 20 percent above the measured value, so they catch regressions, e.g. an additional
+ * defensive copy of the payload, rather than noise. If an optimization lowers the allocation rate, lower the
+ * budget along with it.
+ */
+public class AllocationBudgetTest extends CommonTestUtils {
+
+  // Amount of executions before measuring, to exclude class loading and JIT effects.
+  private static final int WARM_UP_ITERATIONS = 200;
+
+  // Amount of measured executions, the budget applies to the average.
+  private static final int MEASURED_ITERATIONS = 200;
+
+  private com.sun.management.ThreadMXBean threadBean;
+  private OneTimePad pad;
+
+  /**
+   * An operation whose allocation is measured.
+   */
+  private interface Operation {
+    void run() throws Throwable;
+  }
+
+  /**
+   * Skips all tests if the JVM does not report per thread allocation.
+   */
+  @Before
+  public void setUp() throws PadGeneratorException {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threadBean = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    pad = OneTimePadGenerator.generatePad(4096, 64, getDefaultParties());
+  }
+
+  @Test
+  public void testEncryptSmallMessage() throws Throwable {
+    PlainMessage message = createPlainMessage(48);
+    assertBudget("encrypt 48 bytes", 768, () -> Cryptor.encryptMessage(message, pad, 0));
+  }
+
+  @Test
+  public void testEncryptMediumMessage() throws Throwable {
+    PlainMessage message = createPlainMessage(1024);
+    assertBudget("encrypt 1 KiB", 6 * 1024, () -> Cryptor.encryptMessage(message, pad, 0));
+  }
+
+  @Test
+  public void testEncryptLargeMessage() throws Throwable {
+    PlainMessage message = createPlainMessage(64 * 1024);
+    assertBudget("encrypt 64 KiB", 380 * 1024, () -> Cryptor.encryptMessage(message, pad, 0));
+  }
+
+  @Test
+  public void testDecryptSmallMessage() throws Throwable {
+    EncryptedMessage message = Cryptor.encryptMessage(createPlainMessage(48), pad, 0);
+    assertBudget("decrypt 48 bytes", 6800, () -> Cryptor.decryptMessage(message, pad, true));
+  }
+
+  @Test
+  public void testDecryptMediumMessage() throws Throwable {
+    EncryptedMessage message = Cryptor.encryptMessage(createPlainMessage(1024), pad, 0);
+    assertBudget("decrypt 1 KiB", 14 * 1024, () -> Cryptor.decryptMessage(message, pad, true));
+  }
+
+  @Test
+  public void testDecryptLargeMessage() throws Throwable {
+    EncryptedMessage message = Cryptor.encryptMessage(createPlainMessage(64 * 1024), pad, 0);
+    assertBudget("decrypt 64 KiB", 540 * 1024, () -> Cryptor.decryptMessage(message, pad, true));
+  }
+
+  @Test
+  public void testSerializeToHex() throws Throwable {
+    EncryptedMessage message = Cryptor.encryptMessage(createPlainMessage(1024), pad, 0);
+    assertBudget("serialize 1 KiB to hex", 36 * 1024, message::serializeToHex);
+  }
+
+  @Test
+  public void testRestoreConversation() throws Throwable {
+    Conversation conversation = new Conversation(pad, getDefaultParties()[0]);
+    for (int i = 0; i < 50; i++) {
+      conversation.encryptAndAddMessage(createPlainMessage(100));
+    }
+    String serializedHistory = conversation.serializeEncryptedMessagesToJson();
+    assertBudget("restore 50 messages", 196 * 1024,
+        () -> Conversation.restore(serializedHistory, getDefaultParties()[0], pad));
+  }
+
+  @Test
+  public void testLoadPad() throws Throwable {
+    String serializedPad = SerializationTools.getGsonPadConverter().toJson(pad);
+    assertBudget("load pad of 4096 chunks", 2650 * 1024,
+        () -> SerializationTools.getGsonPadConverter().fromJson(serializedPad, OneTimePad.class));
+  }
+
+  /**
+   * Measures the average amount of bytes allocated by the current thread per execution of the
+   * provided operation, and fails if it exceeds the budget.
+   *
+   * @param name   as a human readable name of the operation.
+   * @param budget as the maximum amount of bytes one execution may allocate.
+   * @param op     as the operation to measure.
+   */
+  private void assertBudget(String name, long budget, Operation op) throws Throwable {
+    for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+      op.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      op.run();
+    }
+    long perOperation =
+        (threadBean.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+    System.out.println("Allocation budget: " + name + " allocated " + perOperation
+        + " bytes per operation, budget is " + budget + ".");
+    Assert.assertTrue(name + " allocated " + perOperation + " bytes per operation, which exceeds "
+        + "its budget of " + budget + " bytes.", perOperation <= budget);
+  }
+
+  private PlainMessage createPlainMessage(int size) throws InvalidPartyException {
+    byte[] payload = new byte[size];
+    Arrays.fill(payload, (byte) 'x');
+    return new PlainMessage("alice", "luna", payload);
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Unit tests for the chunk allocation.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class ChunkAllocationTest extends CommonTestUtils {
+
+  /**
+   * Walks the chunk sequence of every party for several block sizes. Verifies every chunk is owned
+   * by exactly one party, and that sequence index and chunk id convert back and forth.
+   */
+  @Test
+  public void testScheduleCoversPadOnce() {
+    int partyAmount = 3;
+    int chunkAmount = 1000;
+    for (int blockSize : new int[] {1, 4, 64}) {
+      ChunkAllocation allocation = ChunkAllocation.withBlockSize(blockSize);
+      Set<Integer> seen = new HashSet<>();
+      for (int party = 0; party < partyAmount; party++) {
+        int chunkId = allocation.getFirstChunk(party, partyAmount);
+        int sequenceIndex = 0;
+        while (chunkId < chunkAmount) {
+          Assert.assertEquals("Wrong owner.", party, allocation.getOwnerIndex(chunkId, partyAmount));
+          Assert.assertEquals("Sequence index mismatch.", sequenceIndex,
+              allocation.getSequenceIndex(chunkId, partyAmount));
+          Assert.assertEquals("Chunk id mismatch.", chunkId,
+              allocation.getChunkId(party, sequenceIndex, partyAmount));
+          Assert.assertTrue("Chunk scheduled twice: " + chunkId, seen.add(chunkId));
+          chunkId = allocation.getNextChunk(chunkId, partyAmount);
+          sequenceIndex++;
+        }
+        Assert.assertEquals("Owned chunk amount mismatch.", sequenceIndex,
+            allocation.getOwnedChunkAmount(party, partyAmount, chunkAmount));
+      }
+      Assert.assertEquals("Not all chunks are scheduled.", chunkAmount, seen.size());
+    }
+  }
+
+  /**
+   * Runs a conversation on a pad with block allocation, with messages crossing block boundaries.
+   * Verifies the chunks of a message are consecutive within a block, messages survive the compact
+   * wire format, and authors are told correctly.
+   */
+  @Test
+  public void testBlockAllocatedConversation() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(1024, 16, getDefaultParties(),
+        ChunkAllocation.withBlockSize(5));
+    Conversation bob = new Conversation(pad, "bob@mars");
+    Conversation alice = new Conversation(pad, "alice@luna");
+
+    // 126 bytes need eight chunks of 16 bytes, so every message crosses a block boundary
+    for (int i = 0; i < 3; i++) {
+      PlainMessage plain = new PlainMessage("bob", "mars", getSampleMessageBytes());
+      EncryptedMessage sent = bob.encryptAndAddMessage(plain);
+      EncryptedMessage received = EncryptedMessage.deserializeFromBytes(sent.serializeToBytes());
+      Assert.assertEquals("Chunk ids changed on the wire.",
+          Arrays.toString(sent.getChunksUsed()),
+          Arrays.toString(received.getChunksUsed()));
+      PlainMessage decrypted = alice.addEncryptedMessage(received);
+      Assert.assertEquals("Author not told correctly.", "bob@mars", decrypted.getPartyString());
+      Assert.assertEquals("Payload differs.", plain, decrypted);
+    }
+
+    int[] firstMessage = bob.getChunkOrderedPartyHistory("bob@mars")
+        .toArray(new EncryptedMessage[0])[0].getChunksUsed();
+    Assert.assertEquals("Bob does not start in his first block.", 5, firstMessage[0]);
+    Assert.assertEquals("Chunks of a block are not consecutive.", 9, firstMessage[4]);
+    Assert.assertEquals("Message does not continue in bob's next block.", 25, firstMessage[5]);
+    int[] secondMessage = bob.getChunkOrderedPartyHistory("bob@mars")
+        .toArray(new EncryptedMessage[0])[1].getChunksUsed();
+    Assert.assertEquals("Message does not continue in bob's third block.", 45, secondMessage[2]);
+    Assert.assertEquals("High-water mark not advanced across blocks.", 89,
+        alice.getHistoryVector().getHighWaterMark(1));
+  }
+}
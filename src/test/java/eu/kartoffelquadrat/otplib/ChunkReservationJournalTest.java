@@ -0,0 +1,112 @@
+/**
+ * Unit tests for the chunk reservation journal.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkReservationJournalTest extends CommonTestUtils {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Encrypts messages, then simulates a crash that loses the history. Verifies the restarted
+   * conversation continues behind all chunks used before the crash, and that reservations are
+   * persisted per batch rather than per message.
+   */
+  @Test
+  public void testRecoveryAfterLostHistory() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Path journalFile = folder.getRoot().toPath().resolve("alice.journal");
+    ChunkReservationJournal journal = ChunkReservationJournal.open(journalFile, pad, "alice@luna",
+        64);
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    conversation.setChunkReservation(journal);
+    EncryptedMessage last = null;
+    for (int i = 0; i < 5; i++) {
+      last = conversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    }
+    Assert.assertEquals("Expected a single persisted batch.", 1,
+        journal.getPersistedReservations());
+    final int usedBound = last.getFollowUpChunkIndex();
+    journal.close();
+
+    // Restart without history. The journal skips everything reserved before the crash.
+    ChunkReservationJournal reopened = ChunkReservationJournal.open(journalFile, pad,
+        "alice@luna", 64);
+    Assert.assertTrue("Recovered bound is below the used chunks.",
+        reopened.getReservedChunkBound() >= usedBound);
+    Conversation restarted = new Conversation(pad, "alice@luna");
+    restarted.setChunkReservation(reopened);
+    EncryptedMessage next = restarted.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    Assert.assertTrue("Chunks used before the crash were reused.",
+        next.getStartChunkIndex() >= usedBound);
+
+    // The receiving side accepts both messages without collision
+    Conversation receiver = new Conversation(pad, "bob@mars");
+    receiver.addEncryptedMessage(last);
+    receiver.addEncryptedMessage(next);
+    reopened.close();
+  }
+
+  /**
+   * Tears the latest record of a journal. Verifies recovery falls back to the previous record and
+   * that journals refuse other pads and parties.
+   */
+  @Test
+  public void testTornRecordAndMismatch() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Path journalFile = folder.getRoot().toPath().resolve("bob.journal");
+    ChunkReservationJournal journal = ChunkReservationJournal.open(journalFile, pad, "bob@mars",
+        0);
+    journal.reserve(1, 101);
+    final int firstBound = journal.getReservedChunkBound();
+    journal.reserve(1, 201);
+    Assert.assertEquals("Reservation without batch should be exact.", 201,
+        journal.getReservedChunkBound());
+    journal.close();
+
+    // Second record lives in the third slot after the 256 byte header, flip its checksum
+    try (RandomAccessFile file = new RandomAccessFile(journalFile.toFile(), "rw")) {
+      file.seek(256 + 2 * 16 + 12);
+      int checksum = file.readInt();
+      file.seek(256 + 2 * 16 + 12);
+      file.writeInt(checksum ^ 1);
+    }
+    ChunkReservationJournal recovered = ChunkReservationJournal.open(journalFile, pad, "bob@mars",
+        0);
+    Assert.assertEquals("Recovery did not fall back to the intact record.", firstBound,
+        recovered.getReservedChunkBound());
+    recovered.close();
+
+    try {
+      ChunkReservationJournal.open(journalFile, pad, "alice@luna", 0);
+      Assert.fail("Journal of another party was opened.");
+    } catch (IOException e) {
+      // expected
+    }
+    ChunkReservationJournal other = ChunkReservationJournal.open(
+        folder.getRoot().toPath().resolve("other.journal"), pad, "alice@luna", 0);
+    try {
+      new Conversation(pad, "bob@mars").setChunkReservation(other);
+      Assert.fail("Journal of another party was attached.");
+    } catch (InvalidPartyException e) {
+      // expected
+    }
+    other.close();
+  }
+}
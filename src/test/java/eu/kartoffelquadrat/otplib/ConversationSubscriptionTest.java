@@ -0,0 +1,154 @@
+/**
+ * Unit tests for the conversation update subscription mechanism.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.LinkedList;
+import java.util.List;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class ConversationSubscriptionTest extends CommonTestUtils {
+
+  /**
+   * Subscriber that stores all received updates and requests a configurable initial amount.
+   */
+  private static class CollectingSubscriber implements ConversationSubscriber {
+
+    private final long initialDemand;
+    private final List<ConversationUpdate> received = new LinkedList<>();
+    private ConversationSubscription subscription;
+
+    CollectingSubscriber(long initialDemand) {
+      this.initialDemand = initialDemand;
+    }
+
+    @Override
+    public void onSubscribe(ConversationSubscription subscription) {
+      this.subscription = subscription;
+      if (initialDemand > 0) {
+        subscription.request(initialDemand);
+      }
+    }
+
+    @Override
+    public void onNext(ConversationUpdate update) {
+      received.add(update);
+    }
+  }
+
+  /**
+   * Verifies both locally encrypted and received messages are published, and the plain message can
+   * be obtained from the update.
+   */
+  @Test
+  public void testUpdatesArePublished() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    Conversation bobConversation = new Conversation(pad, "bob@mars");
+
+    CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE);
+    aliceConversation.subscribe(subscriber);
+
+    PlainMessage aliceMessage = new PlainMessage("alice", "luna", "Hi Bob".getBytes());
+    aliceConversation.encryptAndAddMessage(aliceMessage);
+    PlainMessage bobMessage = new PlainMessage("bob", "mars", "Hi Alice".getBytes());
+    aliceConversation.addEncryptedMessage(bobConversation.encryptAndAddMessage(bobMessage));
+
+    Assert.assertEquals("Subscriber did not receive all updates.", 2, subscriber.received.size());
+    Assert.assertEquals("Published plain message differs from original.", aliceMessage,
+        subscriber.received.get(0).getPlainMessage());
+    Assert.assertEquals("Published plain message differs from original.", bobMessage,
+        subscriber.received.get(1).getPlainMessage());
+  }
+
+  /**
+   * Verifies no updates are delivered beyond the requested demand, and buffered updates are
+   * delivered once further demand is signalled.
+   */
+  @Test
+  public void testDeliveryRespectsDemand() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    CollectingSubscriber subscriber = new CollectingSubscriber(1);
+    conversation.subscribe(subscriber);
+
+    for (String message : getSampleSeriesOfMessages()) {
+      conversation.encryptAndAddMessage(new PlainMessage("alice", "luna", message.getBytes()));
+    }
+    int messageAmount = getSampleSeriesOfMessages().length;
+
+    Assert.assertEquals("Subscriber received more updates than requested.", 1,
+        subscriber.received.size());
+    Assert.assertEquals("Undelivered updates were not buffered.", messageAmount - 1,
+        subscriber.subscription.getPendingUpdateAmount());
+
+    subscriber.subscription.request(messageAmount);
+    Assert.assertEquals("Buffered updates were not delivered on demand.", messageAmount,
+        subscriber.received.size());
+    Assert.assertEquals("Updates were delivered out of order.",
+        conversation.getEncryptedConversationHistory().get(messageAmount - 1),
+        subscriber.received.get(messageAmount - 1).getEncryptedMessage());
+  }
+
+  /**
+   * Verifies a cancelled subscription no longer receives updates.
+   */
+  @Test
+  public void testCancel() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE);
+    conversation.subscribe(subscriber);
+
+    conversation.encryptAndAddMessage(new PlainMessage("alice", "luna", "one".getBytes()));
+    subscriber.subscription.cancel();
+    conversation.encryptAndAddMessage(new PlainMessage("alice", "luna", "two".getBytes()));
+
+    Assert.assertEquals("Cancelled subscription still received updates.", 1,
+        subscriber.received.size());
+  }
+
+  /**
+   * Verifies a subscriber whose onNext throws is cancelled and told about the failure, while the
+   * conversation and other subscribers carry on.
+   */
+  @Test
+  public void testFailingSubscriberIsIsolated() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    final List<RuntimeException> errors = new LinkedList<>();
+    CollectingSubscriber failing = new CollectingSubscriber(Long.MAX_VALUE) {
+      @Override
+      public void onNext(ConversationUpdate update) {
+        throw new IllegalStateException("Subscriber failure");
+      }
+
+      @Override
+      public void onError(RuntimeException error) {
+        errors.add(error);
+      }
+    };
+    CollectingSubscriber healthy = new CollectingSubscriber(Long.MAX_VALUE);
+    conversation.subscribe(failing);
+    conversation.subscribe(healthy);
+
+    for (int i = 0; i < 2; i++) {
+      conversation.encryptAndAddMessage(new PlainMessage("alice", "luna", "Hi".getBytes()));
+    }
+
+    Assert.assertEquals("Conversation did not keep all messages.", 2,
+        conversation.getEncryptedConversationHistory().size());
+    Assert.assertEquals("Other subscriber missed updates.", 2, healthy.received.size());
+    Assert.assertTrue("Failing subscription was not cancelled.",
+        failing.subscription.isCancelled());
+    Assert.assertEquals("Failure was not reported exactly once.", 1, errors.size());
+  }
+}
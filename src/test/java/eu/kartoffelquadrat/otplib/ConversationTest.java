@@ -7,7 +7,9 @@
 
 package eu.kartoffelquadrat.otplib;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import junit.framework.Assert;
 import org.junit.Test;
@@ -193,6 +195,267 @@ public class ConversationTest extends CommonTestUtils {
         followupEncryptedMessage.getChunksUsed()[0] == 4);
   }
 
+  @Test
+  public void testDeltaSyncBetweenDevices() throws PadGeneratorException, CryptorException {
 
-}
+    OneTimePad pad = createRealisticPad();
+    String[] messageSeries = getSampleSeriesOfMessages();
+
+    // Bob keeps the conversation on two devices, mars is up to date, titan lags behind.
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    Conversation bobMarsConversation = new Conversation(pad, "bob@mars");
+    Conversation bobTitanConversation = new Conversation(pad, "bob@titan");
+
+    bobTitanConversation.addEncryptedMessage(aliceConversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", messageSeries[0].getBytes())));
+    bobMarsConversation.addEncryptedMessage(
+        aliceConversation.getEncryptedConversationHistory().get(0));
+    for (int i = 1; i < 4; i++) {
+      bobMarsConversation.addEncryptedMessage(aliceConversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", messageSeries[i].getBytes())));
+      bobMarsConversation.encryptAndAddMessage(
+          new PlainMessage("bob", "mars", messageSeries[i + 4].getBytes()));
+    }
+
+    // Titan summarizes what it holds, mars only ships the missing messages.
+    String vector = bobTitanConversation.getHistoryVector().serializeToJson();
+    List<EncryptedMessage> delta =
+        bobMarsConversation.getEncryptedMessagesSince(HistoryVector.deserializeFromJson(vector));
+    Assert.assertEquals("Delta does not contain exactly the missing messages.", 6, delta.size());
+
+    String serializedDelta =
+        bobMarsConversation.serializeEncryptedMessagesSince(HistoryVector.deserializeFromJson(vector));
+    List<PlainMessage> merged = bobTitanConversation.mergeEncryptedMessages(serializedDelta);
+    Assert.assertEquals("Not all missing messages were merged.", 6, merged.size());
+    Assert.assertEquals("Synchronized devices hold histories of different size.",
+        bobMarsConversation.getEncryptedConversationHistory().size(),
+        bobTitanConversation.getEncryptedConversationHistory().size());
+
+    // Merging the same delta again must not add anything, a new sync must yield an empty delta.
+    Assert.assertTrue("Already held messages were merged again.",
+        bobTitanConversation.mergeEncryptedMessages(serializedDelta).isEmpty());
+    Assert.assertTrue("Synchronized device still reported missing messages.",
+        bobMarsConversation.getEncryptedMessagesSince(bobTitanConversation.getHistoryVector())
+            .isEmpty());
+  }
+
+  /**
+   * Messages of the own party merged from another device must move encryption behind their
+   * chunks, so the next message sent does not collide with them.
+   */
+  @Test
+  public void testSendAfterMergingOwnMessages() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation aliceLaptop = new Conversation(pad, "alice@luna");
+    Conversation alicePhone = new Conversation(pad, "alice@luna");
+    for (int i = 0; i < 3; i++) {
+      aliceLaptop.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    }
+    Assert.assertEquals("Own messages were not merged.", 3,
+        alicePhone.mergeEncryptedMessages(aliceLaptop.serializeEncryptedMessagesToJson()).size());
+
+    EncryptedMessage fromPhone = alicePhone.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    List<EncryptedMessage> laptopHistory = aliceLaptop.getEncryptedConversationHistory();
+    Assert.assertEquals("Phone did not continue behind the merged messages.",
+        laptopHistory.get(laptopHistory.size() - 1).getFollowUpChunkIndex(),
+        fromPhone.getStartChunkIndex());
+    aliceLaptop.addEncryptedMessage(fromPhone);
+  }
+
+  @Test
+  public void testMalformedHistoryVectorRejected() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    aliceConversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+
+    // A vector received from another device with fewer marks than the pad has parties.
+    HistoryVector truncated = HistoryVector.deserializeFromJson(
+        "{\"otpHash\":\"" + pad.getHash() + "\",\"highWaterMarks\":[0,1]}");
+    try {
+      aliceConversation.getEncryptedMessagesSince(truncated);
+      Assert.fail("History vector with missing high-water marks was accepted.");
+    } catch (OneTimePadMissmatchException e) {
+      // expected
+    }
+    try {
+      pad.wipeConsumedChunks(truncated);
+      Assert.fail("History vector with missing high-water marks wiped chunks.");
+    } catch (OneTimePadMissmatchException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDuplicateMessageIgnored() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    Conversation bobConversation = new Conversation(pad, "bob@mars");
+
+    EncryptedMessage encMessage = aliceConversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    bobConversation.addEncryptedMessage(encMessage);
+    bobConversation.addEncryptedMessage(encMessage);
+
+    Assert.assertEquals("Message delivered twice was stored twice.", 1,
+        bobConversation.getEncryptedConversationHistory().size());
+  }
+
+  @Test(expected = DuplicateMessageException.class)
+  public void testDuplicateMessageRejected() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    Conversation bobConversation = new Conversation(pad, "bob@mars");
+    bobConversation.setDuplicatePolicy(DuplicatePolicy.REJECT);
+
+    EncryptedMessage encMessage = aliceConversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    bobConversation.addEncryptedMessage(encMessage);
+    bobConversation.addEncryptedMessage(encMessage);
+  }
+
+  @Test(expected = ChunkCollisionException.class)
+  public void testChunkCollisionRejected() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation bobConversation = new Conversation(pad, "bob@mars");
+
+    // Two messages of the same party that overlap in all but their first chunk.
+    PlainMessage longMessage = new PlainMessage("alice", "luna", getSampleMessageBytes());
+    bobConversation.addEncryptedMessage(Cryptor.encryptMessage(longMessage, pad, 0));
+    bobConversation.addEncryptedMessage(Cryptor.encryptMessage(longMessage, pad, 4));
+  }
+
+  @Test
+  public void testInexactDuplicatesCollide() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    Conversation bobConversation = new Conversation(pad, "bob@mars");
+    PlainMessage shortMessage = new PlainMessage("alice", "luna", "Hi".getBytes());
+    PlainMessage longMessage = new PlainMessage("alice", "luna", getSampleMessageBytes());
+
+    // Two held single chop messages, followed by candidates that reuse their chunks inexactly.
+    EncryptedMessage first = aliceConversation.encryptAndAddMessage(shortMessage);
+    bobConversation.addEncryptedMessage(first);
+    bobConversation.addEncryptedMessage(aliceConversation.encryptAndAddMessage(shortMessage));
+    EncryptedMessage spanning = Cryptor.encryptMessage(longMessage, pad, 0);
+    Assert.assertEquals("Test message does not span both held messages.", 2,
+        spanning.getChopAmount());
+    EncryptedMessage forged = Cryptor.encryptMessage(
+        new PlainMessage("alice", "luna", "Yo".getBytes()), pad, 0);
+
+    // Reusing the long message's start for a shorter message, the spanning and forged variant.
+    Conversation longConversation = new Conversation(pad, "bob@mars");
+    longConversation.addEncryptedMessage(spanning);
+    assertCollision(longConversation, first);
+    assertCollision(bobConversation, spanning);
+    assertCollision(bobConversation, forged);
+
+    // Exact copies are still ignored.
+    bobConversation.addEncryptedMessage(EncryptedMessage.deserializeFromBytes(
+        first.serializeToBytes()));
+    Assert.assertEquals("Exact copy was stored twice.", 2,
+        bobConversation.getEncryptedConversationHistory().size());
+  }
+
+  private static void assertCollision(Conversation conversation, EncryptedMessage encMessage)
+      throws CryptorException {
+    try {
+      conversation.addEncryptedMessage(encMessage);
+      Assert.fail("Message reusing held chunks inexactly was accepted as duplicate.");
+    } catch (ChunkCollisionException e) {
+      // expected
+    }
+  }
 
+  @Test
+  public void testOutOfOrderArrival() throws PadGeneratorException, CryptorException {
+
+    OneTimePad pad = createRealisticPad();
+    String[] messageSeries = getSampleSeriesOfMessages();
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    Conversation bobConversation = new Conversation(pad, "bob@mars");
+
+    // Alice sends three messages, bob receives them in reverse order.
+    List<EncryptedMessage> sent = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      sent.add(aliceConversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", messageSeries[i].getBytes())));
+    }
+    bobConversation.encryptAndAddMessage(
+        new PlainMessage("bob", "mars", messageSeries[3].getBytes()));
+    for (int i = sent.size() - 1; i >= 0; i--) {
+      bobConversation.addEncryptedMessage(sent.get(i));
+    }
+
+    // Arrival order is preserved, the logical order follows the chunks used per party.
+    Assert.assertEquals("Arrival order was not preserved.", sent.get(2),
+        bobConversation.getEncryptedConversationHistory().get(1));
+    List<EncryptedMessage> logicalOrder =
+        new ArrayList<>(bobConversation.getChunkOrderedConversationHistory());
+    Assert.assertEquals("Logical history does not contain all messages.", 4, logicalOrder.size());
+    Assert.assertEquals("Logical history is not ordered by party and chunk.", sent,
+        logicalOrder.subList(0, 3));
+    Assert.assertEquals("Logical party history is not ordered by chunk.", sent,
+        new ArrayList<>(bobConversation.getChunkOrderedPartyHistory("alice@luna")));
+  }
+
+  @Test
+  public void testPadRollover() throws Throwable {
+
+    // Two small pre-shared pads. Alice owns every second chunk, that is eight chunks per pad.
+    String[] parties = new String[] {"alice@luna", "bob@mars"};
+    OneTimePad firstPad = OneTimePadGenerator.generatePad(16, 32, parties);
+    OneTimePad secondPad =
+        OneTimePadGenerator.generatePad(16, 32, new String[] {"bob@mars", "alice@luna"});
+    Conversation aliceConversation = new Conversation(firstPad, "alice@luna");
+    aliceConversation.addSuccessorPad(secondPad);
+    Conversation bobConversation = new Conversation(firstPad, "bob@mars");
+    bobConversation.addSuccessorPad(secondPad);
+
+    // Alice sends more messages than the first pad can hold, bob decrypts every one of them.
+    for (int i = 0; i < 12; i++) {
+      PlainMessage message = new PlainMessage("alice", "luna", ("Message " + i).getBytes());
+      EncryptedMessage encMessage = aliceConversation.encryptAndAddMessage(message);
+      Assert.assertEquals("Message was not encrypted with the expected pad.",
+          i < 8 ? firstPad.getHash() : secondPad.getHash(), encMessage.getOtpHash());
+      Assert.assertEquals("Message was not decrypted with the pad it names.", message,
+          bobConversation.addEncryptedMessage(encMessage));
+    }
+    Assert.assertEquals("Conversation did not switch to the successor pad.", secondPad,
+        aliceConversation.getCurrentPad());
+    Assert.assertEquals("Party history does not span both pads.", 12,
+        bobConversation.getChunkOrderedPartyHistory("alice@luna").size());
+
+    // A restored conversation continues on the successor pad.
+    List<OneTimePad> padChain = aliceConversation.getPadChain();
+    Conversation restored = Conversation.restore(
+        aliceConversation.serializeEncryptedMessagesToJson(), "alice@luna", padChain);
+    Assert.assertEquals("Restored conversation does not continue on the successor pad.",
+        aliceConversation.getEncryptedMessagePreview(new PlainMessage("alice", "luna",
+            "Next".getBytes())).getStartChunkIndex(),
+        restored.getEncryptedMessagePreview(new PlainMessage("alice", "luna",
+            "Next".getBytes())).getStartChunkIndex());
+    Assert.assertEquals("Restored history vectors differ.",
+        aliceConversation.getHistoryVectors().get(1).serializeToJson(),
+        restored.getHistoryVectors().get(1).serializeToJson());
+
+    // Once the last pad of the chain is exhausted, encryption fails.
+    try {
+      for (int i = 0; i < 5; i++) {
+        aliceConversation.encryptAndAddMessage(
+            new PlainMessage("alice", "luna", "More".getBytes()));
+      }
+      Assert.fail("Encryption beyond the last pad of the chain was not rejected.");
+    } catch (OutOfChunksException e) {
+      // expected
+    }
+  }
+}
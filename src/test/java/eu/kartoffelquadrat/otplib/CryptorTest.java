@@ -6,7 +6,10 @@
 
 package eu.kartoffelquadrat.otplib;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
 import junit.framework.Assert;
 import org.junit.Test;
 
@@ -201,4 +204,115 @@ public class CryptorTest extends CommonTestUtils {
     Assert.assertEquals("Decrypted message is not equal to original!",
         new String(sampleMessage).trim(), new String(decryptedMessage));
   }
+
+  /**
+   * Encrypts a compressible message with and without deflate codec. Verifies the compressed
+   * variant uses fewer chunks and still decrypts to the original message.
+   */
+  @Test
+  public void testDeflateCodecSavesChunks() throws CryptorException, PadGeneratorException {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(new String[] {"alice@luna", "bob@mars"});
+    StringBuilder repetitiveText = new StringBuilder();
+    for (String message : getSampleSeriesOfMessages()) {
+      repetitiveText.append(message).append(message).append(message);
+    }
+    PlainMessage plainMessage =
+        new PlainMessage("alice", "luna", repetitiveText.toString().getBytes());
+
+    EncryptedMessage rawMessage = Cryptor.encryptMessage(plainMessage, pad, 0);
+    EncryptedMessage compressedMessage =
+        Cryptor.encryptMessage(plainMessage, pad, 0, PayloadCodec.DEFLATE);
+
+    Assert.assertTrue("Compression did not reduce the amount of chunks used.",
+        compressedMessage.getChopAmount() < rawMessage.getChopAmount());
+    Assert.assertEquals("Codec was not recorded in the encrypted message.", PayloadCodec.DEFLATE,
+        compressedMessage.getPayloadCodec());
+    Assert.assertEquals("Compressed message did not decrypt to original.",
+        repetitiveText.toString().trim(),
+        Cryptor.decryptMessage(compressedMessage, pad, true).getPayloadAsString());
+  }
+
+  /**
+   * Verifies compressed payloads are padded to length buckets, so messages of equal plain length
+   * but different compressibility can use the same chunks, that incompressible payloads never use
+   * more chunks than without codec, and that decompression is bounded.
+   */
+  @Test
+  public void testDeflateBucketsAndBound() throws Throwable {
+
+    // Buckets are powers of two up to eight bytes, then multiples of an eighth of the magnitude
+    Assert.assertEquals("Unexpected small bucket.", 8, PayloadCodec.getBucketLength(5));
+    Assert.assertEquals("Unexpected bucket.", 5120, PayloadCodec.getBucketLength(5000));
+    Assert.assertEquals("Unexpected bucket.", 4096, PayloadCodec.getBucketLength(4096));
+
+    OneTimePad pad = createRealisticPad();
+    for (int length : new int[] {1, 2, 3, 100, 128, 129, 5000, 20000}) {
+      byte[] payload = new byte[length];
+      new Random(length).nextBytes(payload);
+      int encodedLength = PayloadCodec.DEFLATE.encode(payload).length;
+      Assert.assertEquals("Encoded payload is not padded to its bucket.",
+          PayloadCodec.getBucketLength(encodedLength), encodedLength);
+
+      // Random bytes do not compress, the codec must not cost chunks
+      PlainMessage plainMessage = new PlainMessage("alice", "luna", payload);
+      EncryptedMessage compressed =
+          Cryptor.encryptMessage(plainMessage, pad, 0, PayloadCodec.DEFLATE);
+      Assert.assertTrue("Codec uses more chunks than none.", compressed.getChopAmount()
+          <= Cryptor.encryptMessage(plainMessage, pad, 0).getChopAmount());
+      Assert.assertTrue("Message did not decrypt to original.", Arrays.equals(payload,
+          Arrays.copyOf(Cryptor.decryptMessage(compressed, pad, false).getPayload(), length)));
+      Assert.assertTrue("Encoded payload did not decode to original.",
+          Arrays.equals(payload, PayloadCodec.DEFLATE.decode(PayloadCodec.DEFLATE.encode(payload))));
+    }
+
+    // A stream of zeros beyond the bound compresses to a few kilobytes, but must not be inflated.
+    ByteArrayOutputStream bomb = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflater = new DeflaterOutputStream(bomb)) {
+      byte[] zeros = new byte[1024 * 1024];
+      for (int i = 0; i <= PayloadCodec.MAX_DECODED_BYTES / zeros.length; i++) {
+        deflater.write(zeros);
+      }
+    }
+    try {
+      PayloadCodec.DEFLATE.decode(bomb.toByteArray());
+      Assert.fail("Payload beyond the decoding bound was inflated.");
+    } catch (CryptorException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Decrypts ranges of a message spanning several chunks, with a block allocation so consecutive
+   * chops are not evenly spaced. Verifies every range matches the fully decrypted payload, and
+   * that encoded messages are refused.
+   */
+  @Test
+  public void testDecryptRange() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(256, 16,
+        new String[] {"alice@luna", "bob@mars"}, ChunkAllocation.withBlockSize(3));
+    byte[] payload = new byte[150];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) ('a' + i % 26);
+    }
+    PlainMessage plainMessage = new PlainMessage("alice", "luna", payload);
+    EncryptedMessage encMessage = Cryptor.encryptMessage(plainMessage, pad, 1);
+    byte[] full = Cryptor.decryptMessage(encMessage, pad, false).getPayload();
+
+    int[][] ranges = {{0, 1}, {0, 16}, {15, 2}, {17, 40}, {100, 60}, {0, full.length}};
+    for (int[] range : ranges) {
+      Assert.assertTrue("Range " + range[0] + "+" + range[1] + " does not match.",
+          Arrays.equals(Arrays.copyOfRange(full, range[0], range[0] + range[1]),
+              Cryptor.decryptRange(encMessage, pad, range[0], range[1])));
+    }
+
+    try {
+      Cryptor.decryptRange(Cryptor.encryptMessage(plainMessage, pad, 1, PayloadCodec.DEFLATE),
+          pad, 0, 1);
+      Assert.fail("Range of a compressed message was decrypted.");
+    } catch (CryptorException e) {
+      // expected
+    }
+  }
 }
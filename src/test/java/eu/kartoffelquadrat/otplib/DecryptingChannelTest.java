@@ -0,0 +1,75 @@
+/**
+ * Unit tests for the decrypting channel.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class DecryptingChannelTest extends CommonTestUtils {
+
+  /**
+   * Reads a received message through a channel, resuming in the middle of it. Verifies the bytes
+   * read match the fully decrypted payload.
+   */
+  @Test
+  public void testSeekAndRead() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation alice = new Conversation(pad, "alice@luna");
+    Conversation bob = new Conversation(pad, "bob@mars");
+    byte[] attachment = new byte[10000];
+    for (int i = 0; i < attachment.length; i++) {
+      attachment[i] = (byte) i;
+    }
+    EncryptedMessage encMessage =
+        alice.encryptAndAddMessage(new PlainMessage("alice", "luna", attachment));
+    byte[] full = Cryptor.decryptMessage(encMessage, pad, false).getPayload();
+
+    SeekableByteChannel channel = bob.openDecryptingChannel(encMessage);
+    Assert.assertEquals("Channel does not span the padded payload.", full.length, channel.size());
+
+    // Resume a download at an offset that is not chunk aligned.
+    channel.position(4321);
+    ByteBuffer buffer = ByteBuffer.allocate(full.length);
+    while (channel.read(buffer) > 0) {
+      // keep reading
+    }
+    Assert.assertTrue("Bytes read do not match the payload.",
+        Arrays.equals(Arrays.copyOfRange(full, 4321, full.length),
+            Arrays.copyOf(buffer.array(), buffer.position())));
+    Assert.assertEquals("Read beyond the end did not signal end of stream.", -1,
+        channel.read(ByteBuffer.allocate(1)));
+    Assert.assertTrue("Range decryption does not match.", Arrays.equals(
+        Arrays.copyOfRange(attachment, 0, 100), bob.decryptRange(encMessage, 0, 100)));
+
+    channel.close();
+    try {
+      channel.read(ByteBuffer.allocate(1));
+      Assert.fail("Closed channel could still be read.");
+    } catch (ClosedChannelException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Verifies messages with compressed payload are refused.
+   */
+  @Test(expected = CryptorException.class)
+  public void testRejectEncodedPayload() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation alice = new Conversation(pad, "alice@luna");
+    alice.setPayloadCodec(PayloadCodec.DEFLATE);
+    EncryptedMessage encMessage =
+        alice.encryptAndAddMessage(new PlainMessage("alice", "luna", new byte[4096]));
+    alice.openDecryptingChannel(encMessage);
+  }
+}
@@ -83,4 +83,104 @@ public class EncryptedMessageTest extends CommonTestUtils {
     Assert.assertFalse("Attempted to modify encrypted message and was able to change immutable object.",
         Arrays.equals(chop, encMessage.getChop(0)));
   }
+
+  /**
+   * Serializes an encrypted message to the compact binary and base64 formats and back. Verifies
+   * the restored message decrypts to the original and both are smaller than the hex serialization.
+   */
+  @Test
+  public void testCompactSerialization() throws CryptorException, PadGeneratorException {
+
+    OneTimePad pad = createRealisticPad();
+    PlainMessage plainMessage = new PlainMessage("alice", "luna", getSampleMessageBytes());
+    EncryptedMessage encMessage =
+        Cryptor.encryptMessage(plainMessage, pad, 8, PayloadCodec.DEFLATE);
+
+    byte[] binary = encMessage.serializeToBytes();
+    Assert.assertTrue("Binary serialization is not smaller than hex serialization.",
+        binary.length < encMessage.serializeToHex().length());
+    Assert.assertTrue("Base64 serialization is not smaller than hex serialization.",
+        encMessage.serializeToBase64().length() < encMessage.serializeToHex().length());
+
+    EncryptedMessage fromBinary = EncryptedMessage.deserializeFromBytes(binary);
+    EncryptedMessage fromBase64 =
+        EncryptedMessage.deserializeFromBase64(encMessage.serializeToBase64());
+    for (EncryptedMessage restored : new EncryptedMessage[] {fromBinary, fromBase64}) {
+      Assert.assertEquals("Restored message has different hex representation.",
+          encMessage.serializeToHex(), restored.serializeToHex());
+      Assert.assertEquals("Restored message has different follow up chunk.",
+          encMessage.getFollowUpChunkIndex(), restored.getFollowUpChunkIndex());
+      Assert.assertEquals("Restored message did not decrypt to original.", plainMessage,
+          Cryptor.decryptMessage(restored, pad, true));
+    }
+  }
+
+  /**
+   * Truncated binary messages must be refused.
+   */
+  @Test(expected = CryptorException.class)
+  public void testTruncatedCompactSerialization() throws CryptorException, PadGeneratorException {
+
+    OneTimePad pad = createRealisticPad();
+    EncryptedMessage encMessage = Cryptor.encryptMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()), pad, 0);
+    byte[] binary = encMessage.serializeToBytes();
+    EncryptedMessage.deserializeFromBytes(Arrays.copyOf(binary, binary.length - 1));
+  }
+
+  /**
+   * Binary messages announcing no or too many chunk index digits must be refused.
+   */
+  @Test
+  public void testInvalidChunkIndexDigits() throws CryptorException, PadGeneratorException {
+
+    OneTimePad pad = createRealisticPad();
+    byte[] binary = Cryptor.encryptMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()), pad, 0).serializeToBytes();
+    for (byte digits : new byte[] {0, -1, 11}) {
+      binary[3] = digits;
+      try {
+        EncryptedMessage.deserializeFromBytes(binary);
+        Assert.fail("Accepted " + digits + " chunk index digits.");
+      } catch (CryptorException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Restores a message from its hex serialization. Verifies it matches the original and that
+   * lines of another pad are refused.
+   */
+  @Test
+  public void testHexRoundTrip() throws Throwable {
+    OneTimePad pad = OneTimePadGenerator.generatePad(1000, 16, getDefaultParties(),
+        ChunkAllocation.withBlockSize(3));
+    EncryptedMessage encMessage = Cryptor.encryptMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()), pad, 0);
+    EncryptedMessage restored =
+        EncryptedMessage.deserializeFromHex(encMessage.serializeToHex(), pad);
+    Assert.assertEquals("Hex round trip altered the message.", encMessage.serializeToBase64(),
+        restored.serializeToBase64());
+    Assert.assertEquals("Restored message not decrypted.", new String(getSampleMessageBytes()),
+        Cryptor.decryptMessage(restored, pad, true).getPayloadAsString());
+
+    // The codec of compressed messages is carried by the lines.
+    EncryptedMessage compressed = Cryptor.encryptMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()), pad, 0, PayloadCodec.DEFLATE);
+    EncryptedMessage restoredCompressed =
+        EncryptedMessage.deserializeFromHex(compressed.serializeToHex(), pad);
+    Assert.assertEquals("Hex round trip lost the codec.", PayloadCodec.DEFLATE,
+        restoredCompressed.getPayloadCodec());
+    Assert.assertEquals("Restored compressed message not decrypted.",
+        new String(getSampleMessageBytes()),
+        Cryptor.decryptMessage(restoredCompressed, pad, true).getPayloadAsString());
+    try {
+      EncryptedMessage.deserializeFromHex(encMessage.serializeToHex(),
+          OneTimePadGenerator.generatePad(100, 16, new String[] {"eve@earth"}));
+      Assert.fail("Lines of another pad were accepted.");
+    } catch (OneTimePadMissmatchException e) {
+      // expected
+    }
+  }
 }
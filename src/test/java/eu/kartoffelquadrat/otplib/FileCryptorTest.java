@@ -0,0 +1,146 @@
+/**
+ * Unit tests for the parallel file cryptor.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileCryptorTest extends CommonTestUtils {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Encrypts a file spanning several segments, with a size that is no multiple of the chunk size.
+   * Verifies the receiver decrypts the original content, and that messages and further files
+   * never reuse the reserved chunks, not even after the conversation was restored.
+   */
+  @Test
+  public void testEncryptDecryptFile() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(64 * 1024, 64,
+        new String[] {"alice@luna", "bob@mars"}, ChunkAllocation.withBlockSize(16));
+    Conversation alice = new Conversation(pad, "alice@luna");
+    Conversation bob = new Conversation(pad, "bob@mars");
+    byte[] content = new byte[3 * 1024 * 1024 / 2 + 17];
+    new Random(42).nextBytes(content);
+    Path plain = folder.getRoot().toPath().resolve("attachment.bin");
+    Files.write(plain, content);
+
+    Path encrypted = folder.getRoot().toPath().resolve("attachment.otp");
+    FileCryptor fileCryptor = new FileCryptor(new ForkJoinPool(4));
+    try {
+      fileCryptor.encrypt(alice, plain, encrypted);
+      Assert.fail("File encrypted without chunk reservation.");
+    } catch (ChunkReservationException e) {
+      // expected
+    }
+    Path journalFile = folder.getRoot().toPath().resolve("alice.journal");
+    ChunkReservationJournal journal =
+        ChunkReservationJournal.open(journalFile, pad, "alice@luna", 64);
+    alice.setChunkReservation(journal);
+    fileCryptor.encrypt(alice, plain, encrypted);
+    final String savedHistory = alice.serializeEncryptedMessagesToJson();
+    Assert.assertFalse("File was not encrypted.", Arrays.equals(content,
+        Arrays.copyOfRange(Files.readAllBytes(encrypted), 0, content.length)));
+
+    Path decrypted = folder.getRoot().toPath().resolve("attachment.out");
+    fileCryptor.decrypt(bob, encrypted, decrypted);
+    Assert.assertTrue("Decrypted file differs from the original.",
+        Arrays.equals(content, Files.readAllBytes(decrypted)));
+
+    // The range is reserved, messages continue behind it.
+    int fileChunks = (content.length + 63) / 64;
+    EncryptedMessage next =
+        alice.encryptAndAddMessage(new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    ChunkAllocation allocation = pad.getChunkAllocation();
+    Assert.assertEquals("Message reuses chunks of the file.", fileChunks,
+        allocation.getSequenceIndex(next.getStartChunkIndex(), 2));
+    journal.close();
+
+    // The history does not hold the range, the reopened journal keeps restored messages behind it.
+    Conversation restored = Conversation.restore(savedHistory, "alice@luna", pad);
+    try (ChunkReservationJournal reopened =
+             ChunkReservationJournal.open(journalFile, pad, "alice@luna", 64)) {
+      restored.setChunkReservation(reopened);
+      EncryptedMessage afterRestore = restored.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+      Assert.assertTrue("Restored conversation reuses chunks of the file.",
+          allocation.getSequenceIndex(afterRestore.getStartChunkIndex(), 2) > fileChunks);
+    }
+  }
+
+  /**
+   * Verifies files encrypted with a pad outside the conversation are refused.
+   */
+  @Test(expected = OneTimePadMissmatchException.class)
+  public void testRejectForeignPad() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(1024, 64,
+        new String[] {"alice@luna", "bob@mars"});
+    OneTimePad otherPad = OneTimePadGenerator.generatePad(1024, 64,
+        new String[] {"alice@luna", "bob@titan"});
+    Path plain = folder.getRoot().toPath().resolve("note.txt");
+    Files.write(plain, getSampleMessageBytes());
+    Path encrypted = folder.getRoot().toPath().resolve("note.otp");
+
+    Conversation alice = new Conversation(pad, "alice@luna");
+    FileCryptor fileCryptor = new FileCryptor();
+    try (ChunkReservationJournal journal = ChunkReservationJournal.open(
+        folder.getRoot().toPath().resolve("alice.journal"), pad, "alice@luna", 64)) {
+      alice.setChunkReservation(journal);
+      fileCryptor.encrypt(alice, plain, encrypted);
+    }
+    fileCryptor.decrypt(new Conversation(otherPad, "alice@luna"), encrypted,
+        folder.getRoot().toPath().resolve("note.out"));
+  }
+
+  /**
+   * Verifies files naming a start chunk outside the pad are refused.
+   */
+  @Test
+  public void testRejectInvalidStartChunk() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(1024, 64,
+        new String[] {"alice@luna", "bob@mars"});
+    Path plain = folder.getRoot().toPath().resolve("note.txt");
+    Files.write(plain, getSampleMessageBytes());
+    Path encrypted = folder.getRoot().toPath().resolve("note.otp");
+
+    Conversation alice = new Conversation(pad, "alice@luna");
+    FileCryptor fileCryptor = new FileCryptor();
+    try (ChunkReservationJournal journal = ChunkReservationJournal.open(
+        folder.getRoot().toPath().resolve("alice.journal"), pad, "alice@luna", 64)) {
+      alice.setChunkReservation(journal);
+      fileCryptor.encrypt(alice, plain, encrypted);
+    }
+
+    // The start chunk follows magic, version, hash length and hash.
+    byte[] file = Files.readAllBytes(encrypted);
+    int startChunkOffset = 4 + 1 + 2 + pad.getHash().length();
+    for (int startChunk : new int[] {-1, pad.getChunkAmount()}) {
+      ByteBuffer.wrap(file).putInt(startChunkOffset, startChunk);
+      Files.write(encrypted, file);
+      try {
+        fileCryptor.decrypt(new Conversation(pad, "bob@mars"), encrypted,
+            folder.getRoot().toPath().resolve("note.out"));
+        Assert.fail("Accepted start chunk " + startChunk + ".");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Unit tests for the memory footprint estimates.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.nio.file.Path;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MemoryFootprintTest extends CommonTestUtils {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Verifies the pad estimate is dominated by its key material and shrinks once chunks are wiped.
+   */
+  @Test
+  public void testPadFootprint() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    MemoryFootprint footprint = pad.getMemoryFootprint();
+    long keyBytes = (long) pad.getChunkAmount() * pad.getChunkSize();
+    long chunkBytes = footprint.getHeapComponents().get("chunks");
+    Assert.assertTrue("Chunk estimate is below the key material.", chunkBytes > keyBytes);
+    Assert.assertTrue("Chunk estimate exceeds array overhead.", chunkBytes < 2 * keyBytes);
+    Assert.assertTrue("Digest tree is not accounted for.",
+        footprint.getHeapComponents().get("digestTree") > 0);
+    Assert.assertEquals("Pads should not hold off-heap memory.", 0, footprint.getOffHeapBytes());
+
+    // Wiping the chunks of some messages lowers the estimate.
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    for (int i = 0; i < 10; i++) {
+      conversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    }
+    pad.wipeConsumedChunks(conversation.getHistoryVector());
+    Assert.assertTrue("Wiped chunks are still accounted for.",
+        pad.getMemoryFootprint().getHeapBytes() < footprint.getHeapBytes());
+  }
+
+  /**
+   * Verifies the message estimate covers all chops and the conversation tracks its history
+   * incrementally.
+   */
+  @Test
+  public void testConversationFootprint() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    long emptyHistory = conversation.getMemoryFootprint().getHeapComponents().get("history");
+    Assert.assertEquals("Empty conversation reports history bytes.", 0, emptyHistory);
+
+    long messageBytes = 0;
+    for (int i = 0; i < 5; i++) {
+      EncryptedMessage encMessage = conversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+      MemoryFootprint messageFootprint = encMessage.getMemoryFootprint();
+      Assert.assertTrue("Chops are below the encrypted payload.",
+          messageFootprint.getHeapComponents().get("chops")
+              >= (long) encMessage.getChopAmount() * encMessage.getChopSize());
+      messageBytes += messageFootprint.getHeapBytes();
+    }
+
+    MemoryFootprint footprint = conversation.getMemoryFootprint();
+    Assert.assertEquals("History estimate does not match its messages.", messageBytes,
+        (long) footprint.getHeapComponents().get("history"));
+    Assert.assertEquals("Pad estimate differs from the pad's own estimate.",
+        pad.getMemoryFootprint().getHeapBytes(),
+        (long) footprint.getHeapComponents().get("pads"));
+    Assert.assertEquals("Conversation without reservation holds off-heap memory.", 0,
+        footprint.getOffHeapBytes());
+
+    // A reservation journal maps its file outside of the heap.
+    Path journalFile = folder.getRoot().toPath().resolve("alice.journal");
+    try (ChunkReservationJournal journal =
+             ChunkReservationJournal.open(journalFile, pad, "alice@luna", 64)) {
+      conversation.setChunkReservation(journal);
+      Assert.assertEquals("Mapped journal is not accounted for.",
+          journal.getMemoryFootprint().getOffHeapBytes(),
+          conversation.getMemoryFootprint().getOffHeapBytes());
+      Assert.assertTrue("Mapped journal is empty.",
+          journal.getMemoryFootprint().getOffHeapBytes() > 0);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Unit tests for the message dispatcher.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+
+  /**
+   * Registers receiving conversations of many pads. Verifies messages in compact and hex form are
+   * added to the conversation of their pad, and unknown pads are refused.
+   */
+  @Test
+  public void testRouting() throws Throwable {
+
+    String[] machines = {"mars", "venus", "titan", "io", "europa", "ganymede", "callisto",
+        "phobos", "deimos", "triton", "ceres", "vesta", "pallas", "juno", "hebe", "iris", "flora",
+        "metis", "hygiea", "eunomia"};
+    List<Conversation> senders = new ArrayList<>();
+    List<Conversation> receivers = new ArrayList<>();
+    try (MessageDispatcher dispatcher = new MessageDispatcher(3)) {
+      for (String machine : machines) {
+        OneTimePad pad = OneTimePadGenerator.generatePad(256, 32,
+            new String[] {"alice@luna", "bob@" + machine});
+        senders.add(new Conversation(pad, "alice@luna"));
+        Conversation receiver = new Conversation(pad, "bob@" + machine);
+        receivers.add(receiver);
+        dispatcher.register(receiver);
+      }
+
+      // Compact messages and a batch of hex messages for every pad
+      List<CompletableFuture<PlainMessage>> results = new ArrayList<>();
+      StringBuilder hexBatch = new StringBuilder();
+      for (int i = 0; i < machines.length; i++) {
+        results.add(dispatcher.dispatch(EncryptedMessage.deserializeFromBytes(
+            senders.get(i).encryptAndAddMessage(new PlainMessage("alice", "luna",
+                ("compact " + i).getBytes())).serializeToBytes())));
+        for (int j = 0; j < 2; j++) {
+          hexBatch.append(senders.get(i).encryptAndAddMessage(new PlainMessage("alice", "luna",
+              ("hex " + i + " " + j).getBytes())).serializeToHex()).append("\n");
+        }
+      }
+      results.addAll(dispatcher.dispatchHexLines(hexBatch.toString()));
+      Assert.assertEquals("Expected one result per message.", 3 * machines.length,
+          results.size());
+      for (int i = 0; i < machines.length; i++) {
+        Assert.assertEquals("Compact message misrouted.", "compact " + i,
+            results.get(i).get().getPayloadAsString().trim());
+        Assert.assertEquals("Hex message misrouted.", "hex " + i + " 1",
+            results.get(machines.length + 2 * i + 1).get().getPayloadAsString().trim());
+      }
+
+      // Foreign pads are refused
+      OneTimePad foreign = OneTimePadGenerator.generatePad(256, 32,
+          new String[] {"alice@luna", "eve@earth"});
+      EncryptedMessage unknown = new Conversation(foreign, "alice@luna")
+          .encryptAndAddMessage(new PlainMessage("alice", "luna", "secret".getBytes()));
+      try {
+        dispatcher.dispatch(unknown).get();
+        Assert.fail("Message of an unregistered pad was dispatched.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue("Unexpected failure.",
+            e.getCause() instanceof OneTimePadMissmatchException);
+      }
+      try {
+        dispatcher.register(receivers.get(0));
+        Assert.fail("Pad was registered twice.");
+      } catch (OneTimePadMissmatchException e) {
+        // expected
+      }
+    }
+    for (Conversation receiver : receivers) {
+      Assert.assertEquals("Messages missing in conversation.", 3,
+          receiver.getEncryptedConversationHistory().size());
+    }
+  }
+
+  /**
+   * Verifies messages dispatched after the dispatcher was closed fail instead of throwing.
+   */
+  @Test
+  public void testDispatchAfterClose() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(256, 32,
+        new String[] {"alice@luna", "bob@mars"});
+    EncryptedMessage message = new Conversation(pad, "alice@luna")
+        .encryptAndAddMessage(new PlainMessage("alice", "luna", "late".getBytes()));
+    MessageDispatcher dispatcher = new MessageDispatcher(2);
+    dispatcher.register(new Conversation(pad, "bob@mars"));
+    dispatcher.close();
+
+    List<CompletableFuture<PlainMessage>> results = new ArrayList<>();
+    results.add(dispatcher.dispatch(message));
+    results.addAll(dispatcher.dispatchHexLines(message.serializeToHex()));
+    for (CompletableFuture<PlainMessage> result : results) {
+      try {
+        result.get();
+        Assert.fail("Message was dispatched by a closed dispatcher.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue("Unexpected failure.",
+            e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+  }
+}
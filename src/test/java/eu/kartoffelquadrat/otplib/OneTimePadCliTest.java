@@ -0,0 +1,168 @@
+/**
+ * Unit tests for the batch command line tool.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OneTimePadCliTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Generates pads for two groups, converts one to JSON and verifies all of them.
+   */
+  @Test
+  public void testGenerateConvertVerify() throws Throwable {
+
+    Path groups = folder.newFile("groups.txt").toPath();
+    Files.write(groups, "alice@luna, bob@mars\ncarol@io,dave@europa,erin@ganymede\n"
+        .getBytes(StandardCharsets.UTF_8));
+    Path pads = folder.newFolder("pads").toPath();
+    Assert.assertEquals("Generation failed.", 0, OneTimePadCli.execute("generate",
+        "out=" + pads, "groups=" + groups, "padSize=128", "chunkSize=16"));
+
+    File[] generated = pads.toFile().listFiles();
+    Assert.assertEquals("Expected one pad per group.", 2, generated.length);
+    Path json = folder.getRoot().toPath().resolve("converted.json");
+    Assert.assertEquals("Conversion failed.", 0,
+        OneTimePadCli.execute("convert", "in=" + generated[0], "out=" + json));
+    Assert.assertEquals("Converted pad differs.",
+        SerializationTools.readPadFile(generated[0].toPath()), SerializationTools.readPadFile(json));
+    Files.copy(json, pads.resolve("converted.json"));
+
+    Assert.assertEquals("Verification failed.", 0,
+        OneTimePadCli.execute("verify", "pads=" + pads));
+
+    // A truncated pad must fail verification
+    byte[] padBytes = Files.readAllBytes(generated[1].toPath());
+    Files.write(generated[1].toPath(), Arrays.copyOf(padBytes, padBytes.length - 8));
+    Assert.assertEquals("Truncated pad passed verification.", 1,
+        OneTimePadCli.execute("verify", "pads=" + pads));
+
+    // So must a pad generated from an insecure random source
+    Path insecure = folder.newFolder("insecure").toPath();
+    SerializationTools.writePadFile(OneTimePadGenerator.generateInsecurePad(128, 16,
+        new String[] {"alice@luna", "bob@mars"}, ChunkAllocation.ROUND_ROBIN,
+        new DeterministicRandomSource(7)), insecure.resolve("insecure.pad"));
+    Assert.assertEquals("Insecure pad passed verification.", 1,
+        OneTimePadCli.execute("verify", "pads=" + insecure));
+  }
+
+  /**
+   * Encrypts a directory tree with binary and empty files, then decrypts it. Verifies every file is
+   * restored to its exact content and a second run continues on fresh chunks.
+   */
+  @Test
+  public void testEncryptDecryptTree() throws Throwable {
+
+    Path padFile = folder.getRoot().toPath().resolve("pad.pad");
+    SerializationTools.writePadFile(OneTimePadGenerator.generatePad(4096, 64,
+        new String[] {"alice@luna", "ops@batch"}), padFile);
+
+    Path plain = folder.newFolder("plain").toPath();
+    Files.createDirectories(plain.resolve("nested/deeper"));
+    Random random = new Random(42);
+    byte[] binary = new byte[20000];
+    random.nextBytes(binary);
+    Files.write(plain.resolve("random.bin"), binary);
+    Files.write(plain.resolve("nested/empty.txt"), new byte[0]);
+    Files.write(plain.resolve("nested/deeper/text.txt"),
+        "Trailing whitespace stays.   ".getBytes(StandardCharsets.UTF_8));
+
+    Path encrypted = folder.getRoot().toPath().resolve("encrypted");
+    Path decrypted = folder.getRoot().toPath().resolve("decrypted");
+    Assert.assertEquals("Encryption failed.", 0, OneTimePadCli.execute("encrypt",
+        "pad=" + padFile, "party=ops@batch", "in=" + plain, "out=" + encrypted));
+    Assert.assertTrue("Encrypted file missing.",
+        Files.exists(encrypted.resolve("nested/deeper/text.txt.enc")));
+    Assert.assertEquals("Decryption failed.", 0, OneTimePadCli.execute("decrypt",
+        "pad=" + padFile, "in=" + encrypted, "out=" + decrypted));
+
+    try (Stream<Path> files = Files.walk(plain)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        Assert.assertTrue("File content differs: " + file, Arrays.equals(
+            Files.readAllBytes(file), Files.readAllBytes(decrypted.resolve(plain.relativize(file)))));
+      }
+    }
+
+    // A second run must not reuse any chunk of the first run
+    Path state = padFile.resolveSibling("pad.pad.ops@batch.next");
+    int firstRunEnd = Integer.parseInt(new String(Files.readAllBytes(state)).trim());
+    Assert.assertTrue("State was not advanced.", firstRunEnd > 1);
+    Path again = folder.getRoot().toPath().resolve("again.enc");
+    Assert.assertEquals("Encryption failed.", 0, OneTimePadCli.execute("encrypt",
+        "pad=" + padFile, "party=ops@batch", "in=" + plain.resolve("random.bin"), "out=" + again));
+    EncryptedMessage message = EncryptedMessage.deserializeFromBytes(Files.readAllBytes(again));
+    Assert.assertEquals("Second run did not resume at reserved chunk.", firstRunEnd,
+        message.getStartChunkIndex());
+
+    // Running out of chunks fails the command, files written before stay reserved
+    Path nearlyExhausted = folder.newFile("exhausted").toPath();
+    Files.write(nearlyExhausted, "4000".getBytes(StandardCharsets.UTF_8));
+    Path partial = folder.getRoot().toPath().resolve("partial");
+    Assert.assertEquals("Exhaustion was not reported.", 1, OneTimePadCli.execute("encrypt",
+        "pad=" + padFile, "party=alice@luna", "in=" + plain, "out=" + partial,
+        "state=" + nearlyExhausted));
+    int reservedEnd = Integer.parseInt(new String(Files.readAllBytes(nearlyExhausted)).trim());
+    if (Files.exists(partial)) {
+      try (Stream<Path> files = Files.walk(partial)) {
+        for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+          EncryptedMessage written = EncryptedMessage.deserializeFromBytes(
+              Files.readAllBytes(file));
+          Assert.assertTrue("Written file uses unreserved chunks: " + file,
+              written.getFollowUpChunkIndex() <= reservedEnd);
+        }
+      }
+    }
+    Assert.assertFalse("Temporary state file was left behind.",
+        Files.exists(nearlyExhausted.resolveSibling("exhausted.tmp")));
+  }
+
+  /**
+   * Encrypts files at and just above the size bound of compressed payloads. Verifies the first one
+   * is restored, and the second one is refused without reserving chunks.
+   */
+  @Test
+  public void testPayloadSizeBound() throws Throwable {
+
+    Path padFile = folder.getRoot().toPath().resolve("pad.pad");
+    SerializationTools.writePadFile(OneTimePadGenerator.generatePad(4096, 64,
+        new String[] {"alice@luna", "ops@batch"}), padFile);
+    Path state = padFile.resolveSibling("pad.pad.ops@batch.next");
+
+    Path atBound = folder.getRoot().toPath().resolve("bound.bin");
+    Files.write(atBound, new byte[PayloadCodec.MAX_DECODED_BYTES]);
+    Path encrypted = folder.getRoot().toPath().resolve("bound.bin.enc");
+    Path decrypted = folder.getRoot().toPath().resolve("bound.out");
+    Assert.assertEquals("Encryption failed.", 0, OneTimePadCli.execute("encrypt",
+        "pad=" + padFile, "party=ops@batch", "in=" + atBound, "out=" + encrypted));
+    Assert.assertEquals("Decryption failed.", 0, OneTimePadCli.execute("decrypt",
+        "pad=" + padFile, "in=" + encrypted, "out=" + decrypted));
+    Assert.assertEquals("Decrypted file differs in size.", PayloadCodec.MAX_DECODED_BYTES,
+        Files.size(decrypted));
+    final byte[] reserved = Files.readAllBytes(state);
+
+    Path aboveBound = folder.getRoot().toPath().resolve("above.bin");
+    Files.write(aboveBound, new byte[PayloadCodec.MAX_DECODED_BYTES + 1]);
+    Assert.assertEquals("Oversized file was encrypted.", 1, OneTimePadCli.execute("encrypt",
+        "pad=" + padFile, "party=ops@batch", "in=" + aboveBound,
+        "out=" + folder.getRoot().toPath().resolve("above.bin.enc")));
+    Assert.assertTrue("Chunks were reserved for the oversized file.",
+        Arrays.equals(reserved, Files.readAllBytes(state)));
+  }
+}
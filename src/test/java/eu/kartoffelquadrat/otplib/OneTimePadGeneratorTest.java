@@ -68,12 +68,15 @@ public class OneTimePadGeneratorTest {
   }
 
   /**
-   * Tests creation of chunk by verifying byte array size.
+   * Tests creation of key material by verifying the amount and size of its chunks.
    */
   @Test
   public void generateChunkSizeTest() {
-    byte[] testChunk = OneTimePadGenerator.generateChunk(8);
-    Assert.assertEquals("Generated test chunk is not of requested size.", 8, testChunk.length);
+    byte[][] keyMaterial =
+        OneTimePadGenerator.generateKeyMaterial(2, 8, new SecureRandomSource());
+    Assert.assertEquals("Unexpected amount of chunks.", 2, keyMaterial.length);
+    Assert.assertEquals("Generated test chunk is not of requested size.", 8,
+        keyMaterial[0].length);
   }
 
   /**
@@ -83,8 +86,10 @@ public class OneTimePadGeneratorTest {
   public void generateChunkEntropyTest() {
 
     // This test could in prinicple be false negative. Yet the likelinessis 1/((8*16)^2)=6E-5
-    byte[] chunk1 = OneTimePadGenerator.generateChunk(16);
-    byte[] chunk2 = OneTimePadGenerator.generateChunk(16);
+    byte[][] keyMaterial =
+        OneTimePadGenerator.generateKeyMaterial(2, 16, new SecureRandomSource());
+    byte[] chunk1 = keyMaterial[0];
+    byte[] chunk2 = keyMaterial[1];
 
     boolean identical = true;
     for (int i = 0; i < chunk1.length; i++) {
@@ -6,7 +6,12 @@
 
 package eu.kartoffelquadrat.otplib;
 
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import junit.framework.Assert;
 import org.junit.Test;
 
@@ -60,4 +65,342 @@ public class OneTimePadTest extends CommonTestUtils {
     boolean identical = Arrays.equals(untamperedChunk, pad.getChunkContent(1));
     Assert.assertTrue("Tampered with pad contents and the original pad has changed.", identical);
   }
+
+  /**
+   * Flips a single bit of a chunk after creation. Verifies both the full verification and the lazy
+   * verification on first access detect the corruption, while untouched blocks stay usable.
+   */
+  @Test
+  public void testCorruptionDetection() throws Throwable {
+
+    // 4096 chunks of 64 bytes form four blocks
+    OneTimePad pad = OneTimePadGenerator.generatePad(4096, 64, getDefaultParties());
+    String root = pad.getDigestRoot();
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, stored);
+    byte[] storedBytes = stored.toByteArray();
+
+    // Flip a bit in chunk 3000, which is stored at the end of the chunk section
+    int chunkOffset = storedBytes.length - 8 - 4 * 32 - 8 - (4096 - 3000) * 64;
+    storedBytes[chunkOffset] ^= 1;
+    OneTimePad corrupted =
+        SerializationTools.readBinaryPad(new ByteArrayInputStream(storedBytes));
+
+    try {
+      corrupted.verifyIntegrity();
+      Assert.fail("Full verification did not detect the flipped bit.");
+    } catch (PadIntegrityException e) {
+      // expected
+    }
+    try {
+      corrupted.getVerifiedChunkContent(3001);
+      Assert.fail("Lazy verification did not detect the flipped bit.");
+    } catch (PadIntegrityException e) {
+      // expected
+    }
+    corrupted.getVerifiedChunkContent(1);
+    Assert.assertEquals("Stored digests should still match the original root.", root,
+        corrupted.getDigestRoot());
+
+    // A different pad never has the same root
+    Assert.assertFalse("Distinct pads share a digest root.", root.equals(
+        OneTimePadGenerator.generatePad(4096, 64, getDefaultParties()).getDigestRoot()));
+  }
+
+  /**
+   * Pads serialized to JSON carry their digest tree. Verifies an intact pad passes verification
+   * after a JSON round trip.
+   */
+  @Test
+  public void testDigestTreeSurvivesJson() throws Throwable {
+    OneTimePad pad = createRealisticPad();
+    OneTimePad restored = SerializationTools.getGsonPadConverter()
+        .fromJson(SerializationTools.getGsonPadConverter().toJson(pad), OneTimePad.class);
+    restored.verifyIntegrity();
+    Assert.assertEquals("Digest root changed in JSON form.", pad.getDigestRoot(),
+        restored.getDigestRoot());
+  }
+
+  /**
+   * Carves two sub-pads from the end of a pad. Verifies the sub-pads share the key bytes of the
+   * parent, are disjoint, are withdrawn from the parent, and carry a fingerprint of their own.
+   */
+  @Test
+  public void testCarveSubPads() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(1000, 16, getDefaultParties());
+    HistoryVector unused = new Conversation(pad, "alice@luna").getHistoryVector();
+    OneTimePad first = pad.carveSubPad(100, new String[] {"alice@luna", "bob@mars"}, unused);
+    OneTimePad second = pad.carveSubPad(50, new String[] {"alice@luna", "bob@mars"}, unused);
+
+    // Sub-pads reference the last chunks of the parent, the second one directly before the first
+    Assert.assertSame("Sub-pad does not reference parent key bytes.",
+        pad.getChunkReference(900), first.getChunkReference(0));
+    Assert.assertSame("Sub-pads are not consecutive.", pad.getChunkReference(850),
+        second.getChunkReference(0));
+    Assert.assertEquals("Carved amount not tracked.", 150, pad.getCarvedChunkAmount());
+    try {
+      pad.getChunkContent(850);
+      Assert.fail("Parent handed out a carved chunk.");
+    } catch (OutOfChunksException e) {
+      // expected
+    }
+    pad.getChunkContent(849);
+
+    // Identical carving on another device yields the identical sub-pad, distinct from the others
+    Assert.assertFalse("Sub-pads share a hash.", first.getHash().equals(second.getHash()));
+    Assert.assertFalse("Sub-pad shares the parent hash.", first.getHash().equals(pad.getHash()));
+    first.verifyConsistency();
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, stored);
+    OneTimePad restored =
+        SerializationTools.readBinaryPad(new ByteArrayInputStream(stored.toByteArray()));
+    Assert.assertEquals("Carved amount not persisted.", 150, restored.getCarvedChunkAmount());
+
+    // Messages are exchanged within the sub-pad
+    Conversation alice = new Conversation(first, "alice@luna");
+    Conversation bob = new Conversation(first, "bob@mars");
+    EncryptedMessage message = alice.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    Assert.assertEquals("Sub-pad message not decrypted.", new String(getSampleMessageBytes()),
+        bob.addEncryptedMessage(message).getPayloadAsString());
+
+    try {
+      pad.carveSubPad(851, new String[] {"alice@luna"}, unused);
+      Assert.fail("Carved more chunks than left.");
+    } catch (OutOfChunksException e) {
+      // expected
+    }
+    try {
+      pad.carveSubPad(10, new String[] {"eve@earth"}, unused);
+      Assert.fail("Carved a sub-pad for a foreign party.");
+    } catch (InvalidPartyException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Wiping a pad that shares key bytes with another pad must leave the other pad intact, and
+   * wiping a pad converted to another layout must still zero its key bytes.
+   */
+  @Test
+  public void testWipeSharedChunks() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(4096, 64, getDefaultParties());
+    OneTimePad subPad = pad.carveSubPad(100, new String[] {"alice@luna", "bob@mars"},
+        new Conversation(pad, "alice@luna").getHistoryVector());
+    Conversation alice = new Conversation(subPad, "alice@luna");
+    alice.encryptAndAddMessage(new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    Assert.assertTrue("Nothing was wiped.", subPad.wipeConsumedChunks(alice.getHistoryVector()) > 0);
+
+    pad.verifyIntegrity();
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, stored);
+    SerializationTools.readBinaryPad(new ByteArrayInputStream(stored.toByteArray()))
+        .verifyIntegrity();
+
+    // Pads in another layout own their key bytes, wiping overwrites them.
+    OneTimePad rearranged = pad.withLayout(PadLayout.PARTY_MAJOR);
+    Conversation bob = new Conversation(rearranged, "bob@mars");
+    EncryptedMessage message =
+        bob.encryptAndAddMessage(new PlainMessage("bob", "mars", getSampleMessageBytes()));
+    List<byte[]> consumedChunks = new ArrayList<>();
+    for (int chunkId : message.getChunksUsed()) {
+      consumedChunks.add(rearranged.getChunkReference(chunkId));
+    }
+    rearranged.wipeConsumedChunks(bob.getHistoryVector());
+    for (byte[] chunk : consumedChunks) {
+      Assert.assertTrue("Wiped chunk of a converted pad was not zeroed.",
+          Arrays.equals(new byte[chunk.length], chunk));
+    }
+    pad.verifyIntegrity();
+  }
+
+  /**
+   * Carving must not hand out chunks a party of the parent pad already consumed.
+   */
+  @Test
+  public void testCarveRefusesConsumedChunks() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(100, 64, getDefaultParties());
+    Conversation alice = new Conversation(pad, "alice@luna");
+    for (int i = 0; i < 8; i++) {
+      alice.encryptAndAddMessage(new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    }
+
+    // Alice's messages reach beyond chunk 60, so the last 40 chunks overlap with her consumption.
+    int consumedEnd = alice.getHistoryVector().getHighWaterMark(0);
+    Assert.assertTrue("Test messages do not reach the carved range.", consumedEnd > 60);
+    try {
+      pad.carveSubPad(40, new String[] {"bob@mars"}, alice.getHistoryVector());
+      Assert.fail("Carved chunks that were already consumed.");
+    } catch (OutOfChunksException e) {
+      // expected
+    }
+    Assert.assertEquals("Refused carving withdrew chunks.", 0, pad.getCarvedChunkAmount());
+    pad.carveSubPad(100 - consumedEnd, new String[] {"bob@mars"}, alice.getHistoryVector());
+  }
+
+  /**
+   * Stores a block allocated pad in party major layout. Verifies the chunks of a party are stored
+   * contiguously, while chunk ids, digest root and conversations are unaffected by the layout.
+   */
+  @Test
+  public void testPartyMajorLayout() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(1000, 16, getDefaultParties(),
+        ChunkAllocation.withBlockSize(5));
+    OneTimePad partyMajor = pad.withLayout(PadLayout.PARTY_MAJOR);
+    Assert.assertEquals("Layout not applied.", PadLayout.PARTY_MAJOR, partyMajor.getLayout());
+    Assert.assertEquals("Layout changed the digest root.", pad.getDigestRoot(),
+        partyMajor.getDigestRoot());
+    Assert.assertEquals("Layout changed the hash.", pad.getHash(), partyMajor.getHash());
+    for (int chunkId = 0; chunkId < 1000; chunkId++) {
+      Assert.assertTrue("Chunk id maps to other key bytes.", Arrays.equals(
+          pad.getChunkReference(chunkId), partyMajor.getChunkReference(chunkId)));
+      Assert.assertNotSame("Key bytes are shared.", pad.getChunkReference(chunkId),
+          partyMajor.getChunkReference(chunkId));
+    }
+    partyMajor.verifyIntegrity();
+
+    // The 250 chunks of the second party follow the 250 chunks of the first party
+    ChunkAllocation allocation = pad.getChunkAllocation();
+    for (int seq = 0; seq < 250; seq++) {
+      Assert.assertTrue("Party region is not contiguous.", Arrays.equals(
+          pad.getChunkReference(allocation.getChunkId(1, seq, 4)),
+          partyMajor.getPhysicalChunkReference(250 + seq)));
+    }
+
+    // The layout survives the binary form, and messages decrypt across layouts
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(partyMajor, stored);
+    OneTimePad restored =
+        SerializationTools.readBinaryPad(new ByteArrayInputStream(stored.toByteArray()));
+    Assert.assertEquals("Layout not persisted.", PadLayout.PARTY_MAJOR, restored.getLayout());
+    restored.verifyIntegrity();
+    String[] parties = getDefaultParties();
+    Conversation sender = new Conversation(restored, parties[1]);
+    Conversation receiver = new Conversation(pad, parties[2]);
+    EncryptedMessage message = sender.encryptAndAddMessage(new PlainMessage(
+        parties[1].split("@")[0], parties[1].split("@")[1], getSampleMessageBytes()));
+    Assert.assertEquals("Message not decrypted across layouts.",
+        new String(getSampleMessageBytes()),
+        receiver.addEncryptedMessage(message).getPayloadAsString());
+    Assert.assertTrue("Round trip to interleaved layout altered the pad.",
+        Arrays.deepEquals(new byte[][] {pad.getChunkReference(7)},
+            new byte[][] {restored.withLayout(PadLayout.INTERLEAVED).getChunkReference(7)}));
+  }
+
+  /**
+   * Wipes the chunks consumed by three messages. Verifies wiped chunks are gone from memory and
+   * from the serialized forms, while the conversation continues on the remaining key material.
+   */
+  @Test
+  public void testWipeConsumedChunks() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(1000, 16, getDefaultParties());
+    final String root = pad.getDigestRoot();
+    Conversation alice = new Conversation(pad, "alice@luna");
+    Conversation bob = new Conversation(pad, "bob@mars");
+    EncryptedMessage last = null;
+    for (int i = 0; i < 3; i++) {
+      last = alice.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+      bob.addEncryptedMessage(last);
+    }
+    ByteArrayOutputStream before = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, before);
+
+    // Alice owns every fourth chunk, all of them up to her follow-up chunk are consumed
+    int expected = last.getFollowUpChunkIndex() / 4;
+    Assert.assertEquals("Unexpected amount of wiped chunks.", expected,
+        pad.wipeConsumedChunks(bob.getHistoryVector()));
+    Assert.assertEquals("Wiping is not idempotent.", 0,
+        pad.wipeConsumedChunks(bob.getHistoryVector()));
+    Assert.assertEquals("Wiped chunks not counted.", expected, pad.getWipedChunkAmount());
+    try {
+      pad.getChunkContent(0);
+      Assert.fail("Wiped chunk was handed out.");
+    } catch (ChunkWipedException e) {
+      // expected
+    }
+    pad.getChunkContent(1);
+    pad.verifyIntegrity();
+    Assert.assertEquals("Wiping changed the digest root.", root, pad.getDigestRoot());
+
+    // Binary and JSON forms shrink and keep the conversation going. Every wiped chunk splits the
+    // live chunks, which adds one range of eight bytes to the table. The single block of the pad
+    // now holds wiped chunks, its index and the digest over its remaining chunks take 36 bytes.
+    ByteArrayOutputStream after = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, after);
+    Assert.assertEquals("Binary form did not shrink.",
+        before.size() - expected * 16 + (expected - 1) * 8 + 36, after.size());
+    OneTimePad restored =
+        SerializationTools.readBinaryPad(new ByteArrayInputStream(after.toByteArray()));
+    OneTimePad restoredJson = SerializationTools.getGsonPadConverter()
+        .fromJson(SerializationTools.getGsonPadConverter().toJson(pad), OneTimePad.class);
+    Assert.assertEquals("Wipes not persisted in JSON.", expected,
+        restoredJson.getWipedChunkAmount());
+    restored.verifyIntegrity();
+    restoredJson.verifyIntegrity();
+
+    // Pads without stored digests compute their tree over the remaining chunks.
+    JsonObject withoutTree = SerializationTools.getGsonPadConverter().toJsonTree(pad)
+        .getAsJsonObject();
+    withoutTree.remove("digestTree");
+    SerializationTools.getGsonPadConverter().fromJson(withoutTree, OneTimePad.class)
+        .verifyIntegrity();
+
+    EncryptedMessage next = alice.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    Assert.assertEquals("Message not decrypted after wipe.", new String(getSampleMessageBytes()),
+        new Conversation(restored, "bob@mars").addEncryptedMessage(next).getPayloadAsString());
+  }
+
+  /**
+   * Wipes part of a block and stores the pad. Verifies the remaining chunks of the block are still
+   * checked after loading, in binary and JSON form, while the root stays the one of the original
+   * key material. Trees stored without digests over the remaining chunks trust them once.
+   */
+  @Test
+  public void testVerifyPartiallyWipedBlocks() throws Throwable {
+
+    // 4096 chunks of 64 bytes form four blocks, the wiped chunks all lie in the first one
+    OneTimePad pad = OneTimePadGenerator.generatePad(4096, 64, getDefaultParties());
+    final String root = pad.getDigestRoot();
+    Conversation alice = new Conversation(pad, "alice@luna");
+    alice.encryptAndAddMessage(new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    Assert.assertTrue("No chunks wiped.", pad.wipeConsumedChunks(alice.getHistoryVector()) > 0);
+
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, stored);
+    JsonObject json = SerializationTools.getGsonPadConverter().toJsonTree(pad).getAsJsonObject();
+    OneTimePad fromBinary =
+        SerializationTools.readBinaryPad(new ByteArrayInputStream(stored.toByteArray()));
+    OneTimePad fromJson = SerializationTools.getGsonPadConverter().fromJson(json, OneTimePad.class);
+    for (OneTimePad restored : new OneTimePad[] {fromBinary, fromJson}) {
+      restored.verifyIntegrity();
+      Assert.assertEquals("Wiping or storing changed the digest root.", root,
+          restored.getDigestRoot());
+      restored.getChunkReference(1)[0] ^= 1;
+      try {
+        restored.verifyIntegrity();
+        Assert.fail("Corruption of a partially wiped block was not detected.");
+      } catch (PadIntegrityException e) {
+        // expected
+      }
+    }
+
+    // Earlier versions stored no digests over remaining chunks, the tree covers them on load.
+    json.getAsJsonObject("digestTree").remove("remainders");
+    OneTimePad legacy = SerializationTools.getGsonPadConverter().fromJson(json, OneTimePad.class);
+    legacy.verifyIntegrity();
+    legacy.getChunkReference(1)[0] ^= 1;
+    try {
+      legacy.verifyIntegrity();
+      Assert.fail("Corruption after the legacy tree was covered was not detected.");
+    } catch (PadIntegrityException e) {
+      // expected
+    }
+  }
 }
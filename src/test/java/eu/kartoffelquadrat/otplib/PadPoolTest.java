@@ -0,0 +1,104 @@
+/**
+ * Unit tests for the pad pool.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class PadPoolTest extends CommonTestUtils {
+
+  /**
+   * Takes pads from a filled pool and beyond. Verifies pads are distinct, intact, bound to their
+   * parties, and that an empty pool falls back to generation on the spot.
+   */
+  @Test
+  public void testTakeFromPool() throws Throwable {
+
+    try (PadPool pool = new PadPool(1024, 32, 2)) {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (pool.getAvailableAmount() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals("Pool was not filled.", 2, pool.getAvailableAmount());
+
+      OneTimePad first = pool.take(getDefaultParties());
+      OneTimePad second = pool.take(new String[] {"alice@luna", "bob@mars"},
+          ChunkAllocation.withBlockSize(4));
+      Assert.assertEquals("Unexpected pad size.", 1024, first.getChunkAmount());
+      Assert.assertEquals("Unexpected chunk size.", 32, first.getChunkSize());
+      Assert.assertEquals("Parties not bound.", 2, second.getPartyAmount());
+      Assert.assertEquals("Allocation not bound.", 4, second.getChunkAllocation().getBlockSize());
+      Assert.assertFalse("Pads share key material.",
+          first.getDigestRoot().equals(second.getDigestRoot()));
+      first.verifyConsistency();
+      first.verifyIntegrity();
+      second.verifyIntegrity();
+
+      // Messages are exchanged on a pooled pad
+      EncryptedMessage message = new Conversation(first, "alice@luna").encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+      Assert.assertEquals("Message not decrypted.", new String(getSampleMessageBytes()),
+          new Conversation(first, "bob@mars").addEncryptedMessage(message)
+              .getPayloadAsString());
+
+      try {
+        pool.take(new String[] {"alice"});
+        Assert.fail("Invalid party was accepted.");
+      } catch (PadGeneratorException e) {
+        // expected
+      }
+    }
+
+    // A pool without target amount generates every pad on the spot
+    try (PadPool pool = new PadPool(64, 16, 0)) {
+      pool.take(getDefaultParties()).verifyIntegrity();
+      Assert.assertEquals("Expected a miss.", 1, pool.getMissCount());
+    }
+  }
+
+  /**
+   * Takes pads for the same parties in quick succession. Verifies every pad gets its own hash, so
+   * one can succeed the other in a conversation.
+   */
+  @Test
+  public void testDistinctHashes() throws Throwable {
+
+    try (PadPool pool = new PadPool(64, 16, 0)) {
+      Set<String> hashes = new HashSet<>();
+      for (int i = 0; i < 100; i++) {
+        Assert.assertTrue("Pad hash handed out twice.",
+            hashes.add(pool.take(getDefaultParties()).getHash()));
+      }
+
+      OneTimePad first = pool.take(getDefaultParties());
+      Conversation conversation = new Conversation(first, "alice@luna");
+      conversation.addSuccessorPad(pool.take(getDefaultParties()));
+      Assert.assertEquals("Successor pad not chained.", 2, conversation.getPadChain().size());
+    }
+  }
+
+  /**
+   * Verifies invalid pool parameters are refused, each with a message of its own.
+   */
+  @Test
+  public void testRejectInvalidParameters() throws Throwable {
+    try {
+      new PadPool(0, 16, 1).close();
+      Assert.fail("Empty pads were accepted.");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue("Unexpected message.", e.getMessage().startsWith("Pad size"));
+    }
+    try {
+      new PadPool(64, 16, -1).close();
+      Assert.fail("Negative target amount was accepted.");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue("Unexpected message.", e.getMessage().startsWith("Target amount"));
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ * Unit tests for the pad registry.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PadRegistryTest extends CommonTestUtils {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * In-memory store that counts loads and optionally delays loads and stores.
+   */
+  private static class CountingStore implements PadStore {
+    private final Map<String, OneTimePad> pads = new ConcurrentHashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private volatile CountDownLatch storeGate = new CountDownLatch(0);
+    private final CountDownLatch storing = new CountDownLatch(1);
+
+    @Override
+    public OneTimePad load(String padHash) throws IOException {
+      loads.incrementAndGet();
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      OneTimePad pad = pads.get(padHash);
+      if (pad == null) {
+        throw new NoSuchFileException(padHash);
+      }
+      return pad;
+    }
+
+    @Override
+    public void store(OneTimePad pad) throws IOException {
+      storing.countDown();
+      try {
+        storeGate.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      pads.put(pad.getHash(), pad);
+    }
+  }
+
+  /**
+   * Registers more pads than fit into the weight bound. Verifies the least recently used unpinned
+   * pads are evicted, pinned pads stay, and statistics track hits, misses and loads.
+   */
+  @Test
+  public void testWeightedEvictionAndPinning() throws Throwable {
+
+    // Every pad weighs 100 chunks of 16 bytes, three of them fit
+    CountingStore store = new CountingStore();
+    List<String> hashes = new ArrayList<>();
+    for (String machine : new String[] {"mars", "venus", "titan", "io", "europa"}) {
+      OneTimePad pad =
+          OneTimePadGenerator.generatePad(100, 16, new String[] {"alice@luna", "bob@" + machine});
+      store.store(pad);
+      hashes.add(pad.getHash());
+    }
+    PadRegistry registry = new PadRegistry(store, 3 * 1600);
+
+    PinnedPad pinned = registry.pin(hashes.get(0));
+    for (int i = 1; i < 5; i++) {
+      registry.get(hashes.get(i));
+    }
+    Assert.assertEquals("Weight bound not respected.", 3, registry.getSize());
+    Assert.assertEquals("Unexpected weight.", 3 * 1600, registry.getWeight());
+    Assert.assertEquals("Expected two evictions.", 2, registry.getEvictionCount());
+
+    // The pinned pad is served from the heap, evicted ones are loaded again
+    registry.get(hashes.get(0));
+    registry.get(hashes.get(4));
+    Assert.assertEquals("Expected two hits.", 2, registry.getHitCount());
+    Assert.assertSame("Pinned pad was replaced.", pinned.getPad(), registry.get(hashes.get(0)));
+    registry.get(hashes.get(1));
+    Assert.assertEquals("Expected six loads.", 6, store.loads.get());
+    Assert.assertEquals("Misses and loads differ.", registry.getMissCount(),
+        registry.getLoadCount());
+
+    // Once unpinned, the first pad is evicted as the least recently used one
+    pinned.close();
+    pinned.close();
+    registry.get(hashes.get(4));
+    registry.get(hashes.get(2));
+    Assert.assertEquals("Weight bound not respected.", 3 * 1600, registry.getWeight());
+    registry.get(hashes.get(0));
+    Assert.assertEquals("Unpinned pad was not evicted.", 8, store.loads.get());
+
+    try {
+      registry.get("0000");
+      Assert.fail("Unknown pad was handed out.");
+    } catch (NoSuchFileException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Requests the same pad from several threads while its load is held back. Verifies a single
+   * load serves all of them.
+   */
+  @Test
+  public void testConcurrentRequestsShareLoad() throws Throwable {
+
+    CountingStore store = new CountingStore();
+    OneTimePad pad = createRealisticPad();
+    store.store(pad);
+    store.gate = new CountDownLatch(1);
+    PadRegistry registry = new PadRegistry(store, Long.MAX_VALUE);
+
+    List<Thread> threads = new ArrayList<>();
+    List<OneTimePad> results = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          OneTimePad result = registry.get(pad.getHash());
+          synchronized (results) {
+            results.add(result);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(200);
+    store.gate.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals("Not all requests served.", 4, results.size());
+    Assert.assertEquals("Pad loaded more than once.", 1, store.loads.get());
+  }
+
+  /**
+   * Registers a pad with a directory store and loads it through a second registry.
+   */
+  @Test
+  public void testDirectoryStore() throws Throwable {
+
+    Path directory = folder.newFolder("pads").toPath();
+    OneTimePad pad = createRealisticPad();
+    new PadRegistry(new DirectoryPadStore(directory), 1 << 19).register(pad);
+
+    PadRegistry registry = new PadRegistry(new DirectoryPadStore(directory), 1 << 19);
+    OneTimePad loaded = registry.get(pad.getHash());
+    Assert.assertEquals("Stored pad differs.", pad.getDigestRoot(), loaded.getDigestRoot());
+    Assert.assertEquals("Pad larger than the bound was kept.", 0, registry.getSize());
+  }
+
+  /**
+   * Wipes chunks of a cached pad, then forces its eviction. Verifies the pad is written back, so
+   * loading it again does not restore the wiped chunks, and that malformed hashes never reach the
+   * file system.
+   */
+  @Test
+  public void testModifiedPadWrittenBack() throws Throwable {
+
+    Path directory = folder.newFolder("pads").toPath();
+    DirectoryPadStore store = new DirectoryPadStore(directory);
+    OneTimePad pad = createRealisticPad();
+    PadRegistry registry = new PadRegistry(store, (long) pad.getChunkAmount() * pad.getChunkSize());
+    registry.register(pad);
+
+    Conversation conversation = new Conversation(registry.get(pad.getHash()), "alice@luna");
+    for (int i = 0; i < 3; i++) {
+      conversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    }
+    pad.wipeConsumedChunks(conversation.getHistoryVector());
+    Assert.assertTrue("No chunks wiped.", pad.getWipedChunkAmount() > 0);
+    Assert.assertEquals("Weight ignores wiped chunks.",
+        (long) (pad.getChunkAmount() - pad.getWipedChunkAmount()) * pad.getChunkSize(),
+        registry.getWeight());
+
+    // Registering another pad exceeds the bound and evicts the modified one
+    registry.register(
+        OneTimePadGenerator.generatePad(100, 16, new String[] {"alice@luna", "bob@mars"}));
+    Assert.assertEquals("Modified pad not evicted.", 1, registry.getEvictionCount());
+    Assert.assertEquals("Modified pad not written back.", 1, registry.getWriteBackCount());
+    Assert.assertEquals("Wiped chunks were restored.", pad.getWipedChunkAmount(),
+        registry.get(pad.getHash()).getWipedChunkAmount());
+
+    try {
+      store.load("../" + directory.getFileName() + "/" + pad.getHash());
+      Assert.fail("Malformed hash resolved to a file.");
+    } catch (IOException e) {
+      Assert.assertTrue("Unexpected failure.", e.getMessage().startsWith("Malformed pad hash"));
+    }
+  }
+
+  /**
+   * Holds back the write back of a modified pad. Verifies the registry keeps serving requests
+   * meanwhile, and evicts the pad once its write completed.
+   */
+  @Test(timeout = 10000)
+  public void testWriteBackOutsideLock() throws Throwable {
+
+    // Every pad weighs 100 chunks of 16 bytes, one of them fits
+    CountingStore store = new CountingStore();
+    OneTimePad modified =
+        OneTimePadGenerator.generatePad(100, 16, new String[] {"alice@luna", "bob@mars"});
+    OneTimePad other =
+        OneTimePadGenerator.generatePad(100, 16, new String[] {"alice@luna", "bob@titan"});
+    store.pads.put(modified.getHash(), modified);
+    store.pads.put(other.getHash(), other);
+    PadRegistry registry = new PadRegistry(store, 1600);
+
+    Conversation conversation = new Conversation(registry.get(modified.getHash()), "alice@luna");
+    conversation.encryptAndAddMessage(new PlainMessage("alice", "luna", new byte[16]));
+    modified.wipeConsumedChunks(conversation.getHistoryVector());
+
+    store.storeGate = new CountDownLatch(1);
+    Thread loader = new Thread(() -> {
+      try {
+        registry.get(other.getHash());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    loader.start();
+    store.storing.await();
+    Assert.assertEquals("Pad being written was evicted early.", 2, registry.getSize());
+    Assert.assertSame("Pad being written was not served from the heap.", modified,
+        registry.get(modified.getHash()));
+
+    store.storeGate.countDown();
+    loader.join();
+    Assert.assertEquals("Modified pad not written back.", 1, registry.getWriteBackCount());
+    Assert.assertEquals("Weight bound not respected.", 1, registry.getSize());
+  }
+}
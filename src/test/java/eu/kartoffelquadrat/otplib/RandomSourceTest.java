@@ -0,0 +1,82 @@
+/**
+ * Unit tests for the random sources used by the pad generator.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.util.Arrays;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RandomSourceTest extends CommonTestUtils {
+
+  /**
+   * Verifies deterministic sources reproduce pads for equal seeds only, are marked insecure, and
+   * need an explicit opt-in.
+   */
+  @Test
+  public void testDeterministicSource() throws Throwable {
+    OneTimePad first = OneTimePadGenerator.generateInsecurePad(512, 24, getDefaultParties(),
+        ChunkAllocation.ROUND_ROBIN, new DeterministicRandomSource(42));
+    OneTimePad second = OneTimePadGenerator.generateInsecurePad(512, 24, getDefaultParties(),
+        ChunkAllocation.ROUND_ROBIN, new DeterministicRandomSource(42));
+    OneTimePad third = OneTimePadGenerator.generateInsecurePad(512, 24, getDefaultParties(),
+        ChunkAllocation.ROUND_ROBIN, new DeterministicRandomSource(43));
+    Assert.assertEquals("Equal seeds produced different key material.", first.getDigestRoot(),
+        second.getDigestRoot());
+    Assert.assertFalse("Different seeds produced equal key material.",
+        first.getDigestRoot().equals(third.getDigestRoot()));
+    Assert.assertFalse("Deterministic source claims to be secure.",
+        new DeterministicRandomSource(42).isSecure());
+    Assert.assertFalse("Insecure pad is not marked.", first.isSecure());
+    Assert.assertFalse("Mark lost in JSON form.", SerializationTools.getGsonPadConverter()
+        .fromJson(SerializationTools.getGsonPadConverter().toJson(first), OneTimePad.class)
+        .isSecure());
+
+    try {
+      OneTimePadGenerator.generatePad(512, 24, getDefaultParties(), ChunkAllocation.ROUND_ROBIN,
+          new DeterministicRandomSource(42));
+      Assert.fail("Insecure source accepted without opt-in.");
+    } catch (PadGeneratorException e) {
+      // expected
+    }
+    try {
+      new PadPool(64, 16, 0, new DeterministicRandomSource(42)).close();
+      Assert.fail("Pool accepted an insecure source.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Verifies the buffered secure source never hands out the same bytes twice, for requests below
+   * and above its buffer size, and refuses unknown algorithms.
+   */
+  @Test
+  public void testSecureSource() throws Throwable {
+    SecureRandomSource source = new SecureRandomSource("SHA1PRNG", null, 100);
+    Assert.assertTrue("Secure source claims to be insecure.", source.isSecure());
+    byte[] previous = new byte[64];
+    source.nextBytes(previous);
+    for (int length : new int[] {64, 36, 100, 250}) {
+      byte[] next = new byte[length];
+      source.nextBytes(next);
+      Assert.assertFalse("Bytes were handed out twice.",
+          Arrays.equals(Arrays.copyOf(previous, 32), Arrays.copyOf(next, 32)));
+      previous = next;
+    }
+    OneTimePad pad = OneTimePadGenerator.generatePad(256, 16, getDefaultParties(),
+        ChunkAllocation.ROUND_ROBIN, source);
+    pad.verifyIntegrity();
+    Assert.assertTrue("Secure pad is marked insecure.", pad.isSecure());
+
+    try {
+      new SecureRandomSource("NoSuchAlgorithm", null, 100);
+      Assert.fail("Unknown algorithm was accepted.");
+    } catch (PadGeneratorException e) {
+      // expected
+    }
+  }
+}
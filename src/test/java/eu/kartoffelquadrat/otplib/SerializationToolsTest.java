@@ -7,13 +7,24 @@
 package eu.kartoffelquadrat.otplib;
 
 import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
 import junit.framework.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class SerializationToolsTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   /**
    * Creates a random one time pad, then tries to convert it to JSON and back to a one time pad
    * object.
@@ -37,6 +48,28 @@ public class SerializationToolsTest {
     Assert.assertTrue("Json Pad is not equal to original.", identical);
   }
 
+  /**
+   * Writes a pad in binary form and reads it back. Verifies the restored pad is identical and its
+   * hash unchanged.
+   */
+  @Test
+  public void testBinaryBackAndForthConversion() throws PadGeneratorException, IOException {
+
+    OneTimePad pad =
+        OneTimePadGenerator.generatePad(12, 12, new String[] {"alice@luna", "bob@mars"});
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SerializationTools.writeBinaryPad(pad, output);
+    byte[] binaryPad = output.toByteArray();
+    Assert.assertTrue("Binary form is not recognized.", SerializationTools.isBinaryPad(binaryPad));
+    Assert.assertFalse("JSON form is recognized as binary.", SerializationTools.isBinaryPad(
+        SerializationTools.getGsonPadConverter().toJson(pad).getBytes()));
+
+    OneTimePad restoredPad = SerializationTools.readBinaryPad(new ByteArrayInputStream(binaryPad));
+    Assert.assertTrue("Binary Pad is not equal to original.", pad.equals(restoredPad));
+    Assert.assertEquals("Hash changed in binary form.", pad.getHash(), restoredPad.getHash());
+  }
+
   /**
    * Test to verify if the custom Gson works as intended for encrypted messages. This test simulates
    * what a library user would do when saving / loading a chat conversation.
@@ -104,4 +137,66 @@ public class SerializationToolsTest {
     Assert.assertEquals("Message 4 was not identical after serialization and decryption",
         decryptedMessage4, new String(bob02));
   }
+
+  /**
+   * Wipes chunks of a stored pad and rewrites its file. Verifies the file shrinks, holds the wiped
+   * pad and no temporary file is left behind.
+   */
+  @Test
+  public void testRewriteBinaryPadFile() throws Throwable {
+
+    String[] parties = new String[] {"alice@luna", "bob@mars"};
+    OneTimePad pad = OneTimePadGenerator.generatePad(512, 32, parties);
+    Path padFile = folder.getRoot().toPath().resolve("pad.bin");
+    try (OutputStream output = Files.newOutputStream(padFile)) {
+      SerializationTools.writeBinaryPad(pad, output);
+    }
+    final long sizeBefore = Files.size(padFile);
+
+    Conversation alice = new Conversation(pad, "alice@luna");
+    for (int i = 0; i < 20; i++) {
+      alice.encryptAndAddMessage(new PlainMessage("alice", "luna", new byte[100]));
+    }
+    int wiped = pad.wipeConsumedChunks(alice.getHistoryVector());
+    SerializationTools.rewriteBinaryPadFile(pad, padFile);
+
+    Assert.assertTrue("Pad file did not shrink.", Files.size(padFile) < sizeBefore);
+    Assert.assertEquals("Temporary file left behind.", 1, folder.getRoot().list().length);
+    OneTimePad restored = SerializationTools.readBinaryPad(Files.newInputStream(padFile));
+    Assert.assertEquals("Wiped chunks not restored.", wiped, restored.getWipedChunkAmount());
+    Assert.assertEquals("Digest root changed.", pad.getDigestRoot(), restored.getDigestRoot());
+  }
+
+  /**
+   * Writes a pad over and over while another thread wipes its chunks. Verifies every written form
+   * is readable and intact.
+   */
+  @Test
+  public void testWriteWhileWiping() throws Throwable {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(8192, 16,
+        new String[] {"alice@luna", "bob@mars"});
+    Conversation alice = new Conversation(pad, "alice@luna");
+    Throwable[] wipeFailure = new Throwable[1];
+    Thread wiper = new Thread(() -> {
+      try {
+        for (int i = 0; i < 2000; i++) {
+          alice.encryptAndAddMessage(new PlainMessage("alice", "luna", new byte[16]));
+          pad.wipeConsumedChunks(alice.getHistoryVector());
+        }
+      } catch (Throwable e) {
+        wipeFailure[0] = e;
+      }
+    });
+    wiper.start();
+    while (wiper.isAlive()) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      SerializationTools.writeBinaryPad(pad, output);
+      OneTimePad restored =
+          SerializationTools.readBinaryPad(new ByteArrayInputStream(output.toByteArray()));
+      restored.verifyIntegrity();
+    }
+    wiper.join();
+    Assert.assertNull("Wiping failed.", wipeFailure[0]);
+  }
 }
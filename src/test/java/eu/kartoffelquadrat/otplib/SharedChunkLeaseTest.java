@@ -0,0 +1,99 @@
+/**
+ * Unit tests for chunk leases shared by several processes.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedChunkLeaseTest extends CommonTestUtils {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Lets four workers, each with a lease of its own on the same file, encrypt concurrently as the
+   * same party. Verifies no chunk is used twice and the receiver accepts every message.
+   */
+  @Test
+  public void testConcurrentWorkers() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Path leaseFile = folder.getRoot().toPath().resolve("alice.lease");
+    List<EncryptedMessage> sent = Collections.synchronizedList(new ArrayList<>());
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> workers = new ArrayList<>();
+    for (int worker = 0; worker < 4; worker++) {
+      workers.add(new Thread(() -> {
+        try (SharedChunkLease lease = SharedChunkLease.open(leaseFile, pad, "alice@luna", 16)) {
+          Conversation conversation = new Conversation(pad, "alice@luna");
+          conversation.setChunkReservation(lease);
+          for (int i = 0; i < 25; i++) {
+            sent.add(conversation.encryptAndAddMessage(
+                new PlainMessage("alice", "luna", getSampleMessageBytes())));
+          }
+        } catch (Throwable t) {
+          failures.add(t);
+        }
+      }));
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    Assert.assertTrue("Worker failed: " + failures, failures.isEmpty());
+    Assert.assertEquals("Messages missing.", 100, sent.size());
+
+    // The ledger of the receiver refuses any message overlapping with another
+    Conversation receiver = new Conversation(pad, "bob@mars");
+    receiver.setDuplicatePolicy(DuplicatePolicy.REJECT);
+    for (EncryptedMessage message : sent) {
+      Assert.assertEquals("Message not decrypted.", new String(getSampleMessageBytes()),
+          receiver.addEncryptedMessage(message).getPayloadAsString());
+    }
+  }
+
+  /**
+   * Verifies a lease never hands out chunks below the position the conversation reached through its
+   * history, and that batches are only taken when the current one is exhausted.
+   */
+  @Test
+  public void testBatchesRespectHistory() throws Throwable {
+
+    OneTimePad pad = createRealisticPad();
+    Conversation conversation = new Conversation(pad, "alice@luna");
+    EncryptedMessage before = conversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+
+    SharedChunkLease lease = SharedChunkLease.open(folder.getRoot().toPath().resolve("a.lease"),
+        pad, "alice@luna", 64);
+    conversation.setChunkReservation(lease);
+    EncryptedMessage first = conversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    conversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", getSampleMessageBytes()));
+    Assert.assertEquals("History position not respected.", before.getFollowUpChunkIndex(),
+        first.getStartChunkIndex());
+    Assert.assertEquals("Expected a single batch.", 1, lease.getLeasedBatches());
+    lease.close();
+
+    // A second process continues behind the batch of the first one
+    SharedChunkLease other = SharedChunkLease.open(folder.getRoot().toPath().resolve("a.lease"),
+        pad, "alice@luna", 64);
+    int granted = other.reserve(0, 4);
+    Assert.assertEquals("Second process got chunks of the first batch.",
+        first.getStartChunkIndex() + 64 * 4, granted);
+    other.close();
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Unit tests for the loopback message hub.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.hub;
+
+import eu.kartoffelquadrat.otplib.Conversation;
+import eu.kartoffelquadrat.otplib.CryptorException;
+import eu.kartoffelquadrat.otplib.EncryptedMessage;
+import eu.kartoffelquadrat.otplib.OneTimePad;
+import eu.kartoffelquadrat.otplib.OneTimePadGenerator;
+import eu.kartoffelquadrat.otplib.PadGeneratorException;
+import eu.kartoffelquadrat.otplib.PlainMessage;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class MessageHubTest {
+
+  // Time granted to the hub to process join requests before messages are sent.
+  private static final long JOIN_GRACE_MILLIS = 200;
+
+  /**
+   * Verifies a message sent by one party is routed to all other parties of the same pad, but not
+   * to the sender or to clients of another pad.
+   */
+  @Test(timeout = 10000)
+  public void testRouteByPadPrefix()
+      throws IOException, PadGeneratorException, CryptorException, InterruptedException {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(64, 16,
+        new String[] {"alice@luna", "bob@mars", "bob@titan"});
+    OneTimePad otherPad = OneTimePadGenerator.generatePad(64, 16,
+        new String[] {"eve@phobos", "bob@mars"});
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    EncryptedMessage message = aliceConversation.encryptAndAddMessage(
+        new PlainMessage("alice", "luna", "Meet me at the crater.".getBytes()));
+
+    try (MessageHub hub = new MessageHub();
+         HubClient alice = new HubClient(hub.getPort());
+         HubClient bobMars = new HubClient(hub.getPort());
+         HubClient bobTitan = new HubClient(hub.getPort());
+         HubClient eve = new HubClient(hub.getPort())) {
+      hub.start();
+      alice.join(pad.getHash());
+      bobMars.join(pad.getHash());
+      bobTitan.join(pad.getHash());
+      eve.join(otherPad.getHash());
+      Thread.sleep(JOIN_GRACE_MILLIS);
+
+      alice.send(message);
+      Assert.assertEquals("Routed message differs from original.", message.serializeToHex(),
+          bobMars.receive());
+      Assert.assertEquals("Routed message differs from original.", message.serializeToHex(),
+          bobTitan.receive());
+
+      // Eve only receives the follow-up message for her own pad, nothing from alice's pad.
+      Conversation eveConversation = new Conversation(otherPad, "eve@phobos");
+      EncryptedMessage eveMessage = eveConversation.encryptAndAddMessage(
+          new PlainMessage("eve", "phobos", "Anyone there?".getBytes()));
+      HubClient bobOnOtherPad = new HubClient(hub.getPort());
+      bobOnOtherPad.join(otherPad.getHash());
+      Thread.sleep(JOIN_GRACE_MILLIS);
+      bobOnOtherPad.send(eveMessage);
+      Assert.assertEquals("Client received message of a pad it did not join.",
+          eveMessage.serializeToHex(), eve.receive());
+      bobOnOtherPad.close();
+    }
+  }
+
+  /**
+   * Verifies a batch of messages arrives complete and in order.
+   */
+  @Test(timeout = 10000)
+  public void testBatchedSend()
+      throws IOException, PadGeneratorException, CryptorException, InterruptedException {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(new String[] {"alice@luna", "bob@mars"});
+    Conversation aliceConversation = new Conversation(pad, "alice@luna");
+    List<EncryptedMessage> batch = new LinkedList<>();
+    for (int i = 0; i < 500; i++) {
+      batch.add(aliceConversation.encryptAndAddMessage(
+          new PlainMessage("alice", "luna", ("Message number " + i).getBytes())));
+    }
+
+    try (MessageHub hub = new MessageHub();
+         HubClient alice = new HubClient(hub.getPort());
+         HubClient bob = new HubClient(hub.getPort())) {
+      hub.start();
+      alice.join(pad.getHash());
+      bob.join(pad.getHash());
+      Thread.sleep(JOIN_GRACE_MILLIS);
+
+      alice.send(batch);
+      for (EncryptedMessage message : batch) {
+        Assert.assertEquals("Batched message lost or reordered.", message.serializeToHex(),
+            bob.receive());
+      }
+    }
+  }
+
+  /**
+   * Verifies a client that stops reading is disconnected once its queue exceeds the bound, while
+   * other clients of the pad keep receiving. Messages are larger than the default read buffer, so
+   * the buffer of the sender grows and shrinks for every message.
+   */
+  @Test(timeout = 30000)
+  public void testStalledReaderDisconnected()
+      throws IOException, PadGeneratorException, CryptorException, InterruptedException {
+
+    OneTimePad pad = OneTimePadGenerator.generatePad(
+        new String[] {"alice@luna", "bob@mars", "carol@io"});
+    EncryptedMessage message = new Conversation(pad, "alice@luna").encryptAndAddMessage(
+        new PlainMessage("alice", "luna", new byte[40 * 1024]));
+    int amount = 400;
+
+    try (MessageHub hub = new MessageHub(0, 1024 * 1024);
+         HubClient alice = new HubClient(hub.getPort());
+         HubClient bob = new HubClient(hub.getPort());
+         HubClient carol = new HubClient(hub.getPort())) {
+      hub.start();
+      alice.join(pad.getHash());
+      bob.join(pad.getHash());
+      carol.join(pad.getHash());
+      Thread.sleep(JOIN_GRACE_MILLIS);
+
+      // Carol reads nothing while alice sends far more than socket buffers and bound can hold.
+      for (int i = 0; i < amount; i++) {
+        alice.send(message);
+        Assert.assertEquals("Message to reading client lost.", message.serializeToHex(),
+            bob.receive());
+      }
+
+      int received = 0;
+      try {
+        while (received <= amount) {
+          carol.receive();
+          received++;
+        }
+        Assert.fail("Stalled client was not disconnected.");
+      } catch (IOException e) {
+        // expected
+      }
+      Assert.assertTrue("Stalled client received all messages.", received < amount);
+    }
+  }
+}
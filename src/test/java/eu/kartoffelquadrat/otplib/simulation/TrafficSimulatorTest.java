@@ -0,0 +1,43 @@
+/**
+ * Unit tests for the traffic simulator.
+ *
+ * @author Maximilian Schiedermeier
+ */
+
+package eu.kartoffelquadrat.otplib.simulation;
+
+import eu.kartoffelquadrat.otplib.ChunkAllocation;
+import eu.kartoffelquadrat.otplib.PayloadCodec;
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TrafficSimulatorTest {
+
+  /**
+   * Runs a short simulation with one idle party on a pad too small for the run. Verifies all sent
+   * messages are delivered to every other party, no party sends beyond its chunks and chunks of
+   * the idle party are stranded.
+   */
+  @Test(timeout = 30000)
+  public void testLopsidedSimulation() throws Throwable {
+
+    TrafficSimulator simulator = new TrafficSimulator(1024, 64, new double[] {400, 100, 0}, 16,
+        128, 1, PayloadCodec.NONE, ChunkAllocation.ROUND_ROBIN);
+    SimulationReport report = simulator.run();
+    System.out.print(report);
+
+    Assert.assertTrue("Simulation did not send any messages.", report.getMessagesSent() > 0);
+    Assert.assertEquals("Not every message was delivered to every other party.",
+        report.getMessagesSent() * 2, report.getMessagesDelivered());
+    Assert.assertTrue("Parties sent more messages than the pad has chunks.",
+        report.getMessagesSent() <= 1024);
+    Assert.assertTrue("Pad exhaustion was not determined.",
+        report.getPadExhaustionSeconds() < Double.POSITIVE_INFINITY);
+    Assert.assertTrue("Idle party should leave chunks stranded.",
+        report.getStrandedChunkShare() > 0.3);
+    Assert.assertTrue("Padding should cost more key material than payload.",
+        report.getKeyBytesPerPayloadByte() >= 1);
+    Assert.assertTrue("Latency percentiles are not ordered.",
+        report.getLatencyMillis(50) <= report.getLatencyMillis(99));
+  }
+}